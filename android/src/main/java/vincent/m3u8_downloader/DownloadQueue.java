@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import vincent.m3u8_downloader.bean.M3U8Task;
+import vincent.m3u8_downloader.bean.M3U8TaskState;
 
 /**
  * ================================================
@@ -114,4 +115,41 @@ class DownloadQueue {
     public boolean isHead(M3U8Task task){
         return task.equals(peek());
     }
+
+    /**
+     * 是否处于队列前count个，即可以同时下载的任务
+     * @param task
+     * @param count
+     * @return
+     */
+    public boolean isActive(M3U8Task task, int count){
+        int index = queue.indexOf(task);
+        return index >= 0 && index < count;
+    }
+
+    /**
+     * 返回队列前count个元素
+     * @param count
+     * @return
+     */
+    public List<M3U8Task> getActiveTasks(int count){
+        return new ArrayList<>(queue.subList(0, Math.min(count, queue.size())));
+    }
+
+    /**
+     * 返回排在前activeCount个之后、没有暂停的最多count个任务，即接下来要下载的任务
+     * @param activeCount
+     * @param count
+     * @return
+     */
+    public List<M3U8Task> getWaitingTasks(int activeCount, int count){
+        List<M3U8Task> tasks = new ArrayList<>();
+        for (int i = activeCount; i < queue.size() && tasks.size() < count; i++) {
+            M3U8Task task = queue.get(i);
+            if (task.getState() != M3U8TaskState.PAUSE) {
+                tasks.add(task);
+            }
+        }
+        return tasks;
+    }
 }
@@ -0,0 +1,143 @@
+package vincent.m3u8_downloader;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import vincent.m3u8_downloader.utils.M3U8Log;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 按host自适应调整同时下载的切片数（AIMD）
+ * 每个统计周期计算该host的总吞吐量：线程占满且吞吐量还在上升时加1；
+ * 出现超时、429、503时减半，之后冷却一段时间再尝试增加。
+ * 控制器按host保存在内存中，下一个任务直接从上次吞吐量最高时的并发数开始。
+ * ================================================
+ */
+class HostConcurrencyController {
+    /**
+     * 统计周期
+     */
+    private static final long WINDOW = 2000;
+    /**
+     * 减半后多久内不再增加，也不再重复减半
+     */
+    private static final long COOL_DOWN = 2 * WINDOW;
+    /**
+     * 吞吐量至少提高这个比例才认为还在上升
+     */
+    private static final float GROWTH_THRESHOLD = 1.05f;
+
+    private static final Map<String, HostConcurrencyController> controllers = new HashMap<>();
+
+    private final String host;
+    private final AtomicLong windowBytes = new AtomicLong();
+    private volatile int limit;
+    private int maxLimit;
+    private long lastTick;
+    private long lastThroughput = 0;
+    private long coolDownUntil = 0;
+    private int bestLimit;
+    private long bestThroughput = 0;
+    /**
+     * 正在下载的切片数，由{@link M3U8SegmentScheduler}在自己的锁内维护，tick和restart在控制器的锁内读取
+     */
+    volatile int running = 0;
+
+    private HostConcurrencyController(String host) {
+        this.host = host;
+        this.maxLimit = M3U8DownloaderConfig.getMaxThreadCount();
+        this.limit = Math.min(M3U8DownloaderConfig.getThreadCount(), maxLimit);
+        this.bestLimit = limit;
+        this.lastTick = System.currentTimeMillis();
+    }
+
+    /**
+     * 获取host对应的控制器，同一个host的任务共用一个
+     * @param host
+     * @return
+     */
+    public static HostConcurrencyController obtain(String host) {
+        synchronized (controllers) {
+            HostConcurrencyController controller = controllers.get(host);
+            if (controller == null) {
+                controller = new HostConcurrencyController(host);
+                controllers.put(host, controller);
+            } else {
+                controller.restart();
+            }
+            return controller;
+        }
+    }
+
+    /**
+     * 新任务开始时从历史最佳并发数开始
+     * 同一个host还有切片在下载时只更新上限，不打断正在进行的减半和冷却
+     */
+    private synchronized void restart() {
+        maxLimit = M3U8DownloaderConfig.getMaxThreadCount();
+        if (running > 0) {
+            limit = Math.min(limit, maxLimit);
+            return;
+        }
+        limit = Math.min(bestLimit, maxLimit);
+        lastThroughput = 0;
+        coolDownUntil = 0;
+        lastTick = System.currentTimeMillis();
+        windowBytes.set(0);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * 记录下载的字节数
+     * @param len
+     */
+    public void onBytes(long len) {
+        windowBytes.addAndGet(len);
+    }
+
+    /**
+     * 服务器过载的信号：超时、429、503，并发数减半
+     */
+    public synchronized void onCongestion() {
+        long now = System.currentTimeMillis();
+        if (now < coolDownUntil) return;
+        limit = Math.max(1, limit / 2);
+        coolDownUntil = now + COOL_DOWN;
+        lastThroughput = 0;
+        M3U8Log.d("host " + host + " congested, limit: " + limit);
+    }
+
+    /**
+     * 定时调用，每个统计周期调整一次并发数
+     */
+    public synchronized void tick() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastTick;
+        if (elapsed < WINDOW) return;
+        lastTick = now;
+        long throughput = windowBytes.getAndSet(0) * 1000 / elapsed;
+        if (throughput > bestThroughput) {
+            bestThroughput = throughput;
+            bestLimit = limit;
+        }
+        // 线程没有占满时吞吐量不能反映并发数的效果
+        boolean saturated = running >= limit;
+        if (saturated && now >= coolDownUntil && limit < maxLimit
+                && throughput > lastThroughput * GROWTH_THRESHOLD) {
+            limit++;
+            M3U8Log.d("host " + host + " throughput " + throughput + " B/s, limit: " + limit);
+        }
+        lastThroughput = throughput;
+    }
+}
@@ -0,0 +1,31 @@
+package vincent.m3u8_downloader;
+
+import java.io.IOException;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 存储空间不足，预检时发现剩余空间放不下整个视频
+ * message以ENOSPC开头，和写文件时系统报出的空间不足一样处理
+ * ================================================
+ */
+public class InsufficientSpaceException extends IOException {
+    private final long requiredBytes;
+    private final long usableBytes;
+
+    public InsufficientSpaceException(long requiredBytes, long usableBytes) {
+        super("ENOSPC: required " + requiredBytes + " bytes, usable " + usableBytes + " bytes");
+        this.requiredBytes = requiredBytes;
+        this.usableBytes = usableBytes;
+    }
+
+    public long getRequiredBytes() {
+        return requiredBytes;
+    }
+
+    public long getUsableBytes() {
+        return usableBytes;
+    }
+}
@@ -2,7 +2,6 @@ package vincent.m3u8_downloader;
 
 import android.os.Handler;
 import android.os.Message;
-import android.text.TextUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -11,18 +10,42 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
-import java.net.HttpURLConnection;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
 
 import vincent.m3u8_downloader.bean.M3U8;
+import vincent.m3u8_downloader.bean.M3U8Key;
+import vincent.m3u8_downloader.bean.M3U8Map;
 import vincent.m3u8_downloader.bean.M3U8Ts;
+import vincent.m3u8_downloader.bean.VariantPolicy;
+import vincent.m3u8_downloader.metrics.DownloadMetrics;
+import vincent.m3u8_downloader.metrics.StripedCounter;
+import vincent.m3u8_downloader.net.FetchCall;
+import vincent.m3u8_downloader.net.FetchListener;
+import vincent.m3u8_downloader.net.FetchRequest;
+import vincent.m3u8_downloader.net.FetchResponse;
+import vincent.m3u8_downloader.net.Fetchers;
+import vincent.m3u8_downloader.net.HttpStatusException;
 import vincent.m3u8_downloader.utils.AES128Utils;
+import vincent.m3u8_downloader.utils.BandwidthLimiter;
+import vincent.m3u8_downloader.utils.BufferPool;
+import vincent.m3u8_downloader.utils.InitSectionCache;
+import vincent.m3u8_downloader.utils.IoStats;
+import vincent.m3u8_downloader.utils.KeyCache;
 import vincent.m3u8_downloader.utils.M3U8Log;
 import vincent.m3u8_downloader.utils.MUtils;
 
@@ -46,12 +69,33 @@ class M3U8DownloadTask {
     private OnTaskDownloadListener onTaskDownloadListener;
     //加密Key，默认为空，不加密
     private String encryptKey = null;
-    private String m3u8FileName = "local.m3u8";
-    private String keyName = "key.key";
+    private static final String M3U8_FILE_NAME = "local.m3u8";
+    /**
+     * 下载中的切片文件后缀
+     */
+    private static final String PART_SUFFIX = ".part";
+    /**
+     * 对冲请求单独写入的文件
+     */
+    private static final String HEDGE_SUFFIX = ".hedge";
+    /**
+     * 预检同时进行的HEAD请求数
+     */
+    private static final int PREFLIGHT_THREAD_COUNT = 8;
+    /**
+     * 录制直播时剩余空间低于这个值就停止录制，已录制的部分正常完成
+     */
+    private static final long RECORD_RESERVE_BYTES = 64 * 1024 * 1024;
+    /**
+     * 录制直播最多保存的切片数（4秒的切片约11小时），到达后停止录制。
+     * 切片列表、下载窗口、断点索引和本地播放列表都随切片数增长，录制的结果需要完整的列表，
+     * 不能丢弃已完成的切片，所以用这个上限保证内存和磁盘占用有界
+     */
+    static final int MAX_RECORD_SEGMENTS = 10000;
     //文件保存的路径
     private String saveDir;
-    //当前下载完成的文件个数
-    private volatile int curTs = 0;
+    //当前下载完成的文件个数，多个下载线程同时累加
+    private final AtomicInteger curTs = new AtomicInteger();
     //总文件的个数
     private volatile int totalTs = 0;
     //单个文件的大小
@@ -60,17 +104,73 @@ class M3U8DownloadTask {
     private volatile long totalFileSize = 0;
     private volatile boolean isStartDownload = true;
     /**
-     * 当前已经在下完成的大小
+     * 当前已经在下完成的大小，多个下载线程同时累加
+     */
+    private final StripedCounter curLength = new StripedCounter();
+    /**
+     * 预检估算的整个视频字节数，没有预检时为-1
+     */
+    private volatile long totalBytes = -1;
+    /**
+     * 开始下载前本地已有的字节数（完成的切片和.part）
+     */
+    private volatile long existingBytes = 0;
+    /**
+     * 正在进行的预检，停止任务时取消
+     */
+    private volatile SegmentPreflight preflight;
+    /**
+     * 其他镜像上的m3u8地址或目录
+     */
+    private volatile List<String> mirrorUrls;
+    /**
+     * 主m3u8的码率选择策略
+     */
+    private volatile VariantPolicy variantPolicy;
+    /**
+     * 录制直播的最长时长，单位毫秒，0为不限制，小于0表示不录制（直播列表只下载一次）
+     */
+    private volatile long recordMillis = -1;
+    /**
+     * 是否正在轮询直播列表
+     */
+    private volatile boolean isRecording = false;
+    /**
+     * 任务目录中的播放列表索引，记录切片完成状态，续传时不用重新解析m3u8
+     */
+    private volatile PlaylistIndex playlistIndex;
+    /**
+     * 等待合并的字节范围切片
+     */
+    private RangeGroupJob pendingGroup;
+    /**
+     * 有镜像时为每个请求选择镜像
      */
-    private long curLength = 0;
+    private volatile MirrorSelector mirrorSelector;
     /**
      * 任务是否正在运行中
      */
-    private boolean isRunning = false;
+    private volatile boolean isRunning = false;
+    /**
+     * 切片所在host的并发控制器，决定同时下载的切片数
+     */
+    private HostConcurrencyController hostController;
+    /**
+     * 切片失败重试策略
+     */
+    private SegmentRetryPolicy retryPolicy;
+    /**
+     * 本次下载累计的重试次数
+     */
+    private final AtomicInteger retryCount = new AtomicInteger();
+    /**
+     * 单个任务的限速
+     */
+    private final BandwidthLimiter speedLimiter = new BandwidthLimiter();
     /**
-     * 线程池最大线程数，默认为3
+     * 所有任务共享的限速
      */
-    private int threadCount = 3;
+    private BandwidthLimiter globalSpeedLimiter;
     /**
      * 读取超时时间
      */
@@ -83,7 +183,27 @@ class M3U8DownloadTask {
      * 定时任务
      */
     private Timer netSpeedTimer;
-    private ExecutorService executor;//线程池
+    /**
+     * 切片提交到全局调度器，以任务url作为标识
+     */
+    private String taskKey;
+    private volatile SegmentLatch downloadLatch;
+    /**
+     * 按播放顺序推进的下载窗口，记录可播放的前缀
+     */
+    private SegmentWindow segmentWindow;
+    /**
+     * 切片下载完成时通知等待的播放请求
+     */
+    private final Object segmentLock = new Object();
+    /**
+     * 传输中的切片，停止任务时取消
+     */
+    private final Set<FetchCall> activeTransfers = Collections.synchronizedSet(new HashSet<FetchCall>());
+    /**
+     * 最近完成的切片耗时，决定什么时候发对冲请求
+     */
+    private final SegmentHedger.Samples segmentTimes = new SegmentHedger.Samples();
     private M3U8 currentM3U8;
 
     private WeakHandler mHandler = new WeakHandler(new Handler.Callback() {
@@ -99,11 +219,11 @@ class M3U8DownloadTask {
                     break;
 
                 case WHAT_ON_START_DOWNLOAD:
-                    onTaskDownloadListener.onStartDownload(totalTs, curTs);
+                    onTaskDownloadListener.onStartDownload(totalTs, curTs.get());
                     break;
 
                 case WHAT_ON_PROGRESS:
-                    onTaskDownloadListener.onDownloading(totalFileSize, itemFileSize, totalTs, curTs);
+                    onTaskDownloadListener.onDownloading(totalFileSize, itemFileSize, totalTs, curTs.get());
                     break;
 
                 case WHAT_ON_SUCCESS:
@@ -120,7 +240,6 @@ class M3U8DownloadTask {
     public M3U8DownloadTask(){
         connTimeout = M3U8DownloaderConfig.getConnTimeout();
         readTimeout = M3U8DownloaderConfig.getReadTimeout();
-        threadCount = M3U8DownloaderConfig.getThreadCount();
     }
 
     /**
@@ -130,6 +249,7 @@ class M3U8DownloadTask {
      * @param onTaskDownloadListener
      */
     public void download(final String url, OnTaskDownloadListener onTaskDownloadListener) {
+        taskKey = url;
         saveDir = MUtils.getSaveFileDir(url);
         M3U8Log.d("start download ,SaveDir: "+ saveDir);
         mHandler.sendEmptyMessage(WHAT_ON_START_DOWNLOAD);
@@ -156,6 +276,38 @@ class M3U8DownloadTask {
         return encryptKey;
     }
 
+    /**
+     * 设置镜像，下次开始下载时生效
+     * @param mirrorUrls 其他镜像上的m3u8地址或者所在目录
+     */
+    public void setMirrors(List<String> mirrorUrls){
+        this.mirrorUrls = mirrorUrls;
+    }
+
+    /**
+     * 设置主m3u8的码率选择策略，下次开始下载时生效
+     * @param variantPolicy 为null时选第一个码率
+     */
+    public void setVariantPolicy(VariantPolicy variantPolicy){
+        this.variantPolicy = variantPolicy;
+    }
+
+    /**
+     * 设置录制直播的时长，下次开始下载时生效
+     * @param seconds m3u8没有#EXT-X-ENDLIST时持续获取新切片，直到直播结束或者录制了这么多秒，0为不限制，小于0不录制；
+     *                无论哪种都最多录制{@link #MAX_RECORD_SEGMENTS}个切片
+     */
+    public void setRecordSeconds(long seconds){
+        this.recordMillis = seconds < 0 ? -1 : seconds * 1000;
+    }
+
+    /**
+     * 是否正在录制直播
+     */
+    public boolean isRecording() {
+        return isRecording;
+    }
+
     /**
      * 获取任务是否正在执行
      *
@@ -167,64 +319,52 @@ class M3U8DownloadTask {
 
     /**
      * 先获取m3u8信息
+     * 解析到第一个切片就开始下载，后面的切片边解析边提交，很长的m3u8不用等全部传输完。
+     * 需要预检时要先知道所有切片，解析完再开始下载。
+     * 任务目录中有上次保存的播放列表索引时直接从索引恢复，不再请求m3u8。
      *
      * @param url
      */
-    private void getM3U8Info(String url) {
+    private void getM3U8Info(final String url) {
+        final long recordDeadline = recordMillis > 0 ? System.currentTimeMillis() + recordMillis : 0;
+        final SegmentLatch latch = new SegmentLatch();
+        downloadLatch = latch;
+        final AtomicBoolean started = new AtomicBoolean(false);
+        PlaylistIndex index = PlaylistIndex.load(new File(saveDir), url, variantPolicy);
+        if (index != null) {
+            M3U8Log.d("resume from playlist index: " + index.getM3U8().getTsList().size() + " segments");
+            playlistIndex = index;
+            onTaskDownloadListener.onStart();
+            onM3U8Ready(url, index.getM3U8(), latch, started, recordDeadline);
+            return;
+        }
+        playlistIndex = new PlaylistIndex(new File(saveDir));
+        OnM3U8ParseListener parseListener = null;
+        if (!M3U8DownloaderConfig.isPreflightEnabled()) {
+            parseListener = new OnM3U8ParseListener() {
+                @Override
+                public void onTs(M3U8 m3U8, M3U8Ts ts, int index) throws IOException {
+                    if (downloadLatch != latch) {
+                        // 任务已经重新开始，这次解析作废
+                        throw new InterruptedIOException("task restarted");
+                    }
+                    if (!started.get()) {
+                        started.set(true);
+                        startDownload(m3U8, latch);
+                    } else if (isRunning) {
+                        submitTs(m3U8, ts, index, latch);
+                    }
+                    if (!isRunning) {
+                        throw new InterruptedIOException("task stopped");
+                    }
+                }
+            };
+        }
 
-        M3U8InfoManger.getInstance().getM3U8Info(url, new OnM3U8InfoListener() {
+        M3U8InfoManger.getInstance().getM3U8Info(url, variantPolicy, parseListener, new OnM3U8InfoListener() {
             @Override
-            public void onSuccess(final M3U8 m3U8) {
-                currentM3U8 = m3U8;
-
-                new Thread() {
-                    @Override
-                    public void run() {
-                        try {
-                            final CountDownLatch latch = new CountDownLatch(m3U8.getTsList().size());
-                            // 开始下载
-                            startDownload(m3U8, latch);
-
-                            // 等待线程执行完毕
-                            latch.await();
-
-                            // 关闭线程池
-                            if (executor != null) {
-                                executor.shutdown();
-                            }
-                            if (isRunning) {
-                                currentM3U8.setDirFilePath(saveDir);
-                                if (M3U8DownloaderConfig.isConvert()) {
-                                    // 转成mp4
-                                    convertMP4();
-                                } else {
-                                    // 否则生成local.m3u8文件
-                                    File m3u8File;
-                                    if (TextUtils.isEmpty(currentM3U8.getKey())) {
-                                        m3u8File = MUtils.createLocalM3U8(new File(saveDir), m3u8FileName, currentM3U8);
-                                    } else {
-                                        m3u8File = MUtils.createLocalM3U8(new File(saveDir), m3u8FileName, currentM3U8, keyName);
-                                    }
-                                    currentM3U8.setM3u8FilePath(m3u8File.getPath());
-                                }
-
-                                mHandler.sendEmptyMessage(WHAT_ON_SUCCESS);
-                                isRunning = false;
-                            }
-                        } catch (InterruptedIOException e) {
-                            //被中断了，使用stop时会抛出这个，不需要处理
-                            return;
-                        } catch (IOException e) {
-                            handlerError(e);
-                            return;
-                        } catch (InterruptedException e) {
-                            handlerError(e);
-                            return;
-                        } catch (Exception e) {
-                            handlerError(e);
-                        }
-                    }
-                }.start();
+            public void onSuccess(M3U8 m3U8) {
+                onM3U8Ready(url, m3U8, latch, started, recordDeadline);
             }
 
             @Override
@@ -234,260 +374,1839 @@ class M3U8DownloadTask {
 
             @Override
             public void onError(Throwable errorMsg) {
+                //边解析边下载时任务被停止
+                if (errorMsg instanceof InterruptedIOException) return;
                 handlerError(errorMsg);
             }
         });
     }
 
+    /**
+     * 得到m3u8信息之后在单独的线程中等待切片下载完毕，然后生成本地m3u8或者合并mp4
+     */
+    private void onM3U8Ready(final String url, final M3U8 m3U8, final SegmentLatch latch,
+                             final AtomicBoolean started, final long recordDeadline) {
+        currentM3U8 = m3U8;
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (downloadLatch != latch) return;
+                    if (!started.get()) {
+                        // 开始下载
+                        started.set(true);
+                        startDownload(m3U8, latch);
+                    }
+                    // 列表已经解析完，后面不会再有可以合并的切片
+                    flushPending();
+                    if (m3U8.isEndList() && isRunning) {
+                        savePlaylistIndex(url, m3U8);
+                    }
+                    if (recordMillis >= 0 && !m3U8.isEndList() && isRunning) {
+                        // 直播列表，继续录制新切片
+                        recordLive(m3U8, latch, recordDeadline);
+                    }
+                    latch.finish();
+
+                    // 等待切片全部下载完毕，任务停止时也会被释放
+                    latch.await();
+
+                    if (isRunning && downloadLatch == latch) {
+                        playlistIndex.flush();
+                        currentM3U8.setDirFilePath(saveDir);
+                        if (M3U8DownloaderConfig.isConvert()) {
+                            // 转成mp4
+                            convertMP4();
+                        } else {
+                            // 否则生成local.m3u8文件，用到的key和初始化段保存在同一目录
+                            saveKeys(currentM3U8);
+                            saveMaps(currentM3U8);
+                            File m3u8File = MUtils.createLocalM3U8(new File(saveDir), M3U8_FILE_NAME, currentM3U8);
+                            currentM3U8.setM3u8FilePath(m3u8File.getPath());
+                        }
+
+                        mHandler.sendEmptyMessage(WHAT_ON_SUCCESS);
+                        isRunning = false;
+                    }
+                } catch (InterruptedIOException e) {
+                    //被中断了，使用stop时会抛出这个，不需要处理
+                    return;
+                } catch (IOException e) {
+                    handlerError(e);
+                    return;
+                } catch (InterruptedException e) {
+                    handlerError(e);
+                    return;
+                } catch (Exception e) {
+                    handlerError(e);
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * 点播列表解析完成后保存索引，已经保存过（从索引恢复）时不再保存
+     */
+    private void savePlaylistIndex(String url, M3U8 m3U8) {
+        PlaylistIndex index = playlistIndex;
+        if (index.isSaved()) return;
+        try {
+            index.save(url, variantPolicy, m3U8);
+        } catch (IOException e) {
+            // 保存失败只是下次不能直接续传
+            M3U8Log.d("save playlist index failed: " + e.getMessage());
+        }
+    }
+
     /**
      * 开始下载
      * 关于断点续传，每个任务会根据url进行生成相应Base64目录
      * 如果任务已经停止、开始下载之前，下一次会判断相关任务目录中已经下载完成的ts文件是否已经下载过了，下载了就不再下载
+     * 播放列表索引中记录为完成的切片直接跳过，不检查文件
      * @param m3U8
      */
-    private void startDownload(final M3U8 m3U8, final CountDownLatch latch) {
+    private void startDownload(final M3U8 m3U8, final SegmentLatch latch) throws IOException {
         final File dir = new File(saveDir);
         //没有就创建
         if (!dir.exists()) {
             dir.mkdirs();
         }
-        if (!TextUtils.isEmpty(m3U8.getKey())) {
-            // 保存key文件
-            try {
-                MUtils.saveFile(m3U8.getKey().getBytes("ISO-8859-1"), saveDir + File.separator + "key.key");
-            } catch (IOException e) {
-                e.printStackTrace();
-                handlerError(e);
-            }
-        }
         totalTs = m3U8.getTsList().size();
-        if (executor != null) {
-            executor.shutdownNow();
-        }
-//        //等待线程池完全关闭
-//        while (executor != null && !executor.isTerminated()) {
-//            //等待中
-//            try {
-//                M3U8Log.d("startDownload wait executor shutDown!");
-//                Thread.sleep(100);
-//            } catch (InterruptedException e) {
-//                M3U8Log.e(e.getMessage());
-//            }
-//        }
-        M3U8Log.d("executor is shutDown ! Downloading !");
+        // 清掉上一次残留的切片
+        M3U8SegmentScheduler.getInstance().cancel(taskKey);
+        synchronized (this) {
+            pendingGroup = null;
+        }
         //初始化值
-        curTs = 1;
+        curTs.set(1);
         isRunning = true;
         isStartDownload = true;
-        executor = null;
+        retryCount.set(0);
+        retryPolicy = SegmentRetryPolicy.fromConfig();
+        totalBytes = -1;
+        List<String> mirrors = mirrorUrls;
+        mirrorSelector = mirrors == null || mirrors.isEmpty() ? null : new MirrorSelector(taskKey, mirrors);
+        if (M3U8DownloaderConfig.isPreflightEnabled()) {
+            preflight(m3U8, dir);
+            if (!isRunning) return;
+        }
 
-        executor = Executors.newFixedThreadPool(threadCount);
+        final M3U8SegmentScheduler scheduler = M3U8SegmentScheduler.getInstance();
+        final PlaylistIndex index = playlistIndex;
         final String basePath = m3U8.getBasePath();
+        hostController = HostConcurrencyController.obtain(obtainHost(m3U8));
+        scheduler.setController(taskKey, hostController);
+        // 顺序下载时只下载可播放位置之后lookAhead时长内的切片，边下边播
+        long lookAheadMillis = M3U8DownloaderConfig.isSequentialDownload()
+                ? M3U8DownloaderConfig.getLookAheadSeconds() * 1000L : 0;
+        segmentWindow = new SegmentWindow(m3U8.getTsList(), lookAheadMillis);
+        scheduler.setWindow(taskKey, segmentWindow);
+        M3U8Log.d("Downloading ! host: " + hostController.getHost() + ", threadCount: " + hostController.getLimit());
         netSpeedTimer = new Timer();
         netSpeedTimer.schedule(new TimerTask() {
             @Override
             public void run() {
-                onTaskDownloadListener.onProgress(curLength);
+                onTaskDownloadListener.onProgress(curLength.sum());
+                hostController.tick();
+                scheduler.onLimitChanged();
+                index.flush();
             }
         }, 0, 1500);
 
-        for (final M3U8Ts m3U8Ts : m3U8.getTsList()) {//循环下载
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    File file;
-                    try {
-                        String fileName = M3U8EncryptHelper.encryptFileName(encryptKey, m3U8Ts.obtainEncodeTsFileName());
-                        file = new File(dir + File.separator + fileName);
-                    } catch (Exception e) {
-                        file = new File(dir + File.separator + m3U8Ts.getUrl());
-                    }
+        List<M3U8Ts> tsList = m3U8.getTsList();
+        for (int i = 0; i < tsList.size(); i++) {//循环下载
+            if (index.isComplete(i)) {
+                curTs.incrementAndGet();
+                tsList.get(i).setFileSize(index.getSize(i));
+                segmentWindow.markDone(i);
+                continue;
+            }
+            latch.add(1);
+            enqueue(new SegmentJob(i, tsList.get(i), dir, basePath, latch, segmentWindow));
+        }
+    }
 
-                    if (!file.exists()) {//下载过的就不管了
-
-                        FileOutputStream fos = null;
-                        InputStream inputStream = null;
-                        try {
-                            URL url = new URL(m3U8Ts.obtainFullUrl(basePath));
-                            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-//                            conn.addRequestProperty("Referer", "http://xxxxxxxx.com/");
-                            conn.setConnectTimeout(connTimeout);
-                            conn.setReadTimeout(readTimeout);
-                            if (conn.getResponseCode() == 200) {
-                                if (isStartDownload){
-                                    isStartDownload = false;
-                                    mHandler.sendEmptyMessage(WHAT_ON_START_DOWNLOAD);
-                                }
-                                inputStream = conn.getInputStream();
-                                fos = new FileOutputStream(file);//会自动创建文件
-                                int len = 0;
-                                byte[] buf = new byte[1024];
-                                while ((len = inputStream.read(buf)) != -1) {
-                                    curLength += len;
-                                    fos.write(buf, 0, len);//写入流中
-                                }
-                            } else {
-                                handlerError(new Throwable(String.valueOf(conn.getResponseCode())));
-                            }
-                        } catch (MalformedURLException e) {
-                            handlerError(e);
-                        } catch (IOException e) {
-                            handlerError(e);
-                        } catch (Exception e) {
-                            handlerError(e);
-                        }
-                        finally
-                        {//关流
-                            if (inputStream != null) {
-                                try {
-                                    inputStream.close();
-                                } catch (IOException e) {
-                                }
-                            }
-                            if (fos != null) {
-                                try {
-                                    fos.close();
-                                } catch (IOException e) {
-                                }
-                            }
-                        }
+    /**
+     * 边解析边下载时，提交开始下载之后解析出的切片
+     */
+    private void submitTs(M3U8 m3U8, M3U8Ts ts, int index, SegmentLatch latch) {
+        totalTs = index + 1;
+        segmentWindow.add(ts);
+        latch.add(1);
+        enqueue(new SegmentJob(index, ts, new File(saveDir), m3U8.getBasePath(), latch, segmentWindow));
+    }
 
-                        itemFileSize = file.length();
-                        m3U8Ts.setFileSize(itemFileSize);
-                        mHandler.sendEmptyMessage(WHAT_ON_PROGRESS);
-                        curTs++;
-                    } else {
-                        curTs ++;
-                        itemFileSize = file.length();
-                        m3U8Ts.setFileSize(itemFileSize);
-                    }
-                    latch.countDown();
-                }
-            });
+    /**
+     * 把切片交给调度器。同一个文件中首尾相接的字节范围切片先攒起来，
+     * 攒够合并上限或者遇到不能合并的切片时作为一个Range请求提交
+     */
+    private synchronized void enqueue(SegmentJob job) {
+        RangeGroupJob group = pendingGroup;
+        if (group != null && group.tryAdd(job)) return;
+        flushPending();
+        M3U8Ts ts = job.m3U8Ts;
+        if (ts.hasByteRange() && ts.getByteRangeLength() < M3U8DownloaderConfig.getRangeMergeSize()) {
+            pendingGroup = new RangeGroupJob(job);
+        } else {
+            M3U8SegmentScheduler.getInstance().submit(taskKey, job.index, job);
         }
     }
 
     /**
-     * M3U8转MP4
+     * 提交攒着的字节范围切片，只有一个时按普通切片提交
      */
-    private void convertMP4() {
-        mHandler.sendEmptyMessage(WHAT_ON_CONVERT);
-        final File dir = new File(saveDir);
-
-        FileOutputStream fos = null;
-        InputStream inputStream = null;
-        String mp4FilePath = saveDir + ".mp4";
-        File mp4File = null;
-        int len = 0;
+    private synchronized void flushPending() {
+        RangeGroupJob group = pendingGroup;
+        pendingGroup = null;
+        if (group == null) return;
+        SegmentJob first = group.jobs.get(0);
+        M3U8SegmentScheduler.getInstance().submit(taskKey, first.index, group.jobs.size() == 1 ? first : group);
+    }
 
+    /**
+     * 录制直播：按目标时长重新获取媒体m3u8，媒体序号比已有切片大的作为新切片提交到调度器，
+     * 直到出现#EXT-X-ENDLIST、到达录制时长、切片数达到{@link #MAX_RECORD_SEGMENTS}、任务停止或者剩余空间不足。
+     * 每次重新获取的列表只取新增的切片，用完即丢弃，只记住上一次列表中的地址用于识别序号重置。
+     * 配置了镜像时重新获取也通过镜像选择，一个镜像失败就换下一个。
+     * @param deadline 录制截止时间，0为不限制
+     */
+    private void recordLive(M3U8 m3U8, SegmentLatch latch, long deadline) throws InterruptedException {
+        isRecording = true;
         try {
-            mp4File = new File(mp4FilePath);
-            if (mp4File.exists()) {
-                mp4File.delete();
+            List<M3U8Ts> tsList = m3U8.getTsList();
+            long lastSequence = tsList.isEmpty() ? -1 : tsList.get(tsList.size() - 1).getSequence();
+            Set<String> lastUrls = new HashSet<>();
+            for (M3U8Ts ts : tsList) {
+                lastUrls.add(ts.getUrl());
             }
-            fos = new FileOutputStream(mp4File);
-            byte[] bytes = new byte[1024];
-            for (final M3U8Ts m3U8Ts : currentM3U8.getTsList()) {
-                File file;
-                try {
-                    String fileName = M3U8EncryptHelper.encryptFileName(encryptKey, m3U8Ts.obtainEncodeTsFileName());
-                    file = new File(dir + File.separator + fileName);
-                } catch (Exception e) {
-                    file = new File(dir + File.separator + m3U8Ts.getUrl());
+            long targetMillis = (long) (Math.max(1, m3U8.getTargetDuration()) * 1000);
+            long delay = targetMillis;
+            M3U8Log.d("recording live playlist: " + m3U8.getUrl());
+            while (isRunning && downloadLatch == latch) {
+                long now = System.currentTimeMillis();
+                if (deadline > 0 && now >= deadline) {
+                    M3U8Log.d("recording reached deadline");
+                    break;
                 }
-                // ts片段不存在，直接跳过
-                if(!file.exists())
-                    continue;
-                inputStream = new FileInputStream(file);
-                if (!TextUtils.isEmpty(currentM3U8.getKey())) {
-                    // 加密文件，一次性处理
-                    // 创建流
-                    int available = inputStream.available();
-                    if (bytes.length < available)
-                        bytes = new byte[available];
-                    inputStream.read(bytes);
-                    // 解密，追加到mp4文件中
-                    fos.write(AES128Utils.decryptTs(bytes, currentM3U8.getKey(), currentM3U8.getIv()));
-                } else {
-                    // 追加到mp4文件中
-                    while ((len = inputStream.read(bytes)) != -1) {
-                        fos.write(bytes, 0, len);
-                    }
+                if (!hasSpaceForRecording()) {
+                    M3U8Log.d("recording stopped, not enough space");
+                    break;
                 }
-                // 关闭流
-                inputStream.close();
-            }
-            // 设置文件路径
-            currentM3U8.setM3u8FilePath(mp4FilePath);
-            // 合并成功，删除m3u8和ts文件
-            MUtils.clearDir(dir);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            handlerError(e);
-        } catch (IOException e) {
-            e.printStackTrace();
-            handlerError(e);
-        } catch (Exception e) {
-            e.printStackTrace();
-            handlerError(e);
-        } finally {
-            // 关流
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException e) {
+                if (m3U8.getTsList().size() >= MAX_RECORD_SEGMENTS) {
+                    M3U8Log.d("recording stopped, reached " + MAX_RECORD_SEGMENTS + " segments");
+                    break;
                 }
-            }
-            if (fos != null) {
+                sleepWhileRunning(deadline > 0 ? Math.min(delay, deadline - now) : delay);
+                if (!isRunning || downloadLatch != latch) break;
+                M3U8 live;
                 try {
-                    fos.close();
+                    live = reloadPlaylist(m3U8.getUrl());
                 } catch (IOException e) {
+                    // 偶尔获取失败，稍后再试
+                    M3U8Log.d("reload live playlist failed: " + e.getMessage());
+                    delay = targetMillis / 2;
+                    continue;
+                }
+                List<M3U8Ts> liveList = live.getTsList();
+                // 推流重启后媒体序号会从头开始，这时按地址判断新切片
+                boolean reset = !liveList.isEmpty() && liveList.get(liveList.size() - 1).getSequence() < lastSequence;
+                int added = 0;
+                for (M3U8Ts ts : liveList) {
+                    if (reset ? lastUrls.contains(ts.getUrl()) : ts.getSequence() <= lastSequence) continue;
+                    if (m3U8.getTsList().size() >= MAX_RECORD_SEGMENTS) break;
+                    if (added == 0 && !reset && ts.getSequence() > lastSequence + 1 && lastSequence >= 0) {
+                        M3U8Log.d("live playlist skipped " + (ts.getSequence() - lastSequence - 1) + " segments");
+                    }
+                    m3U8.addTs(ts);
+                    submitTs(m3U8, ts, m3U8.getTsList().size() - 1, latch);
+                    added++;
+                }
+                flushPending();
+                if (!liveList.isEmpty()) {
+                    lastSequence = liveList.get(liveList.size() - 1).getSequence();
+                    lastUrls.clear();
+                    for (M3U8Ts ts : liveList) {
+                        lastUrls.add(ts.getUrl());
+                    }
+                }
+                if (live.isEndList()) {
+                    M3U8Log.d("live playlist ended");
+                    break;
                 }
+                // 列表没有变化时半个目标时长后再取
+                delay = added > 0 ? targetMillis : targetMillis / 2;
             }
-            if (mp4File != null && mp4File.exists() && mp4File.length() == 0) {
-                // 空文件，删除
-                mp4File.delete();
+        } finally {
+            isRecording = false;
+        }
+    }
+
+    /**
+     * 重新获取直播的媒体m3u8，配置了镜像时选择镜像，失败后换下一个，所有镜像都失败才抛出
+     */
+    private M3U8 reloadPlaylist(String url) throws IOException {
+        MirrorSelector selector = mirrorSelector;
+        if (selector == null) return MUtils.parseIndex(url);
+        Set<Integer> failed = new HashSet<>();
+        IOException error = null;
+        while (failed.size() < selector.size()) {
+            int mirror = selector.select(failed);
+            long startTime = System.currentTimeMillis();
+            try {
+                M3U8 live = MUtils.parseIndex(selector.resolve(mirror, url));
+                selector.onSuccess(mirror, 0, System.currentTimeMillis() - startTime);
+                return live;
+            } catch (IOException e) {
+                selector.onFailure(mirror);
+                failed.add(mirror);
+                error = e;
             }
         }
+        throw error;
     }
 
     /**
-     * 通知异常
-     *
-     * @param e
+     * 录制时保留一定的剩余空间，合并mp4时还需要和已录制部分一样大的空间
      */
-    private void handlerError(Throwable e) {
-        e.printStackTrace();
-        if (!"Task running".equals(e.getMessage())) {
-            stop();
+    private boolean hasSpaceForRecording() {
+        long required = RECORD_RESERVE_BYTES;
+        if (M3U8DownloaderConfig.isConvert()) {
+            required += existingBytes + curLength.sum();
         }
-        //不提示被中断的情况
-        if ("thread interrupted".equals(e.getMessage())) {
-            return;
+        return new File(saveDir).getUsableSpace() >= required;
+    }
+
+    /**
+     * 等待一段时间，任务停止时立即返回
+     */
+    private void sleepWhileRunning(long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        synchronized (segmentLock) {
+            long remaining;
+            while (isRunning && (remaining = end - System.currentTimeMillis()) > 0) {
+                segmentLock.wait(remaining);
+            }
         }
-        Message msg = Message.obtain();
-        msg.obj = e;
-        msg.what = WHAT_ON_ERROR;
-        mHandler.sendMessage(msg);
     }
 
     /**
-     * 停止任务
+     * 预检：得到整个视频的字节数，剩余空间不够时直接失败，不用等到写满才报错
      */
-    public void stop() {
-        if (netSpeedTimer != null) {
-            netSpeedTimer.cancel();
-            netSpeedTimer = null;
+    private void preflight(M3U8 m3U8, File dir) throws IOException {
+        List<M3U8Ts> tsList = m3U8.getTsList();
+        SegmentPreflight p = new SegmentPreflight(tsList, m3U8.getBasePath());
+        long existing = 0;
+        PlaylistIndex index = playlistIndex;
+        for (int i = 0; i < tsList.size(); i++) {
+            if (index.isComplete(i)) {
+                p.setSize(i, index.getSize(i));
+                existing += index.getSize(i);
+                continue;
+            }
+            File file = obtainTsFile(dir, tsList.get(i));
+            if (file.exists()) {
+                p.setSize(i, file.length());
+                existing += file.length();
+                continue;
+            }
+            File partFile = new File(file.getPath() + PART_SUFFIX);
+            // 分段下载的.part是预分配的，不代表已下载的长度
+            if (partFile.exists() && !new File(partFile.getPath() + SegmentChunks.CHUNKS_SUFFIX).exists()) {
+                existing += partFile.length();
+            }
         }
-        isRunning = false;
-        if (executor != null) {
-            executor.shutdownNow();
+        preflight = p;
+        long total;
+        try {
+            total = p.run(Math.min(M3U8DownloaderConfig.getMaxConnectionsPerHost(), PREFLIGHT_THREAD_COUNT));
+        } finally {
+            preflight = null;
+        }
+        if (!isRunning || total < 0) return;
+        existingBytes = existing;
+        totalBytes = total;
+        // 合并mp4时切片和mp4同时存在，需要两倍空间
+        long required = total - existing;
+        if (M3U8DownloaderConfig.isConvert()) {
+            required += total;
+        }
+        long usable = dir.getUsableSpace();
+        if (required > usable) {
+            throw new InsufficientSpaceException(required, usable);
+        }
+    }
+
+    /**
+     * 单个切片的下载，失败后按重试策略重新提交到调度器
+     */
+    private class SegmentJob implements Runnable {
+        private final int index;
+        private final M3U8Ts m3U8Ts;
+        private final File dir;
+        private final String basePath;
+        private final SegmentLatch latch;
+        private final SegmentWindow window;
+        /**
+         * 已经失败的次数
+         */
+        private int attempt = 0;
+        /**
+         * 服务器不按Range返回时不再分段
+         */
+        private volatile boolean chunkDisabled = false;
+        /**
+         * 这个切片已经失败过的镜像，换下一个镜像重新下载
+         */
+        private final Set<Integer> failedMirrors = Collections.synchronizedSet(new HashSet<Integer>());
+
+        SegmentJob(int index, M3U8Ts m3U8Ts, File dir, String basePath, SegmentLatch latch, SegmentWindow window) {
+            this.index = index;
+            this.m3U8Ts = m3U8Ts;
+            this.dir = dir;
+            this.basePath = basePath;
+            this.latch = latch;
+            this.window = window;
+        }
+
+        @Override
+        public void run() {
+            File file = obtainTsFile(dir, m3U8Ts);
+
+            // 下载过的就不管了，其他任务下载过的相同切片直接链接过来（字节范围切片不共享）
+            if (file.exists() || (!m3U8Ts.hasByteRange()
+                    && SegmentStore.getInstance().link(m3U8Ts.obtainFullUrl(basePath), file, dir.getName()))) {
+                curTs.incrementAndGet();
+                itemFileSize = file.length();
+                m3U8Ts.setFileSize(itemFileSize);
+                onSegmentReady();
+                return;
+            }
+            File partFile = new File(file.getPath() + PART_SUFFIX);
+            if (new File(partFile.getPath() + SegmentChunks.CHUNKS_SUFFIX).exists()) {
+                // 上次是分段下载的，从各段断点继续
+                SegmentChunks chunks = SegmentChunks.load(partFile);
+                if (chunks != null) {
+                    startChunks(file, chunks);
+                    return;
+                }
+                SegmentChunks.clear(partFile);
+                partFile.delete();
+            }
+            // 传输可能在其他线程异步完成，完成前保留并发名额
+            Runnable finish = M3U8SegmentScheduler.getInstance().detach();
+            SegmentTransfer transfer = new SegmentTransfer(this, file, finish, null);
+            activeTransfers.add(transfer);
+            String url = m3U8Ts.obtainFullUrl(basePath);
+            long delay = SegmentHedger.getInstance().getDelay(segmentTimes);
+            if (delay >= 0) {
+                transfer.race = new HedgeRace(this, file, url, transfer);
+                transfer.race.watch(delay);
+            }
+            transfer.start(url);
         }
+
+        /**
+         * 把还没下载完的段分别提交到调度器，和其他切片一样占用并发名额
+         */
+        void startChunks(File file, SegmentChunks chunks) {
+            String url = m3U8Ts.obtainFullUrl(basePath);
+            int started = 0;
+            for (int i = 0; i < chunks.getCount(); i++) {
+                if (chunks.isChunkComplete(i)) continue;
+                chunks.onChunkStart();
+                started++;
+                M3U8SegmentScheduler.getInstance().submit(taskKey, index, new ChunkJob(this, file, url, chunks, i));
+            }
+            if (started == 0) {
+                // 所有段都已经完成，只差提交
+                onChunksDone(file, chunks);
+            }
+        }
+
+        /**
+         * 所有段都结束后调用
+         */
+        void onChunksDone(File file, SegmentChunks chunks) {
+            chunks.close();
+            Exception e = chunks.getError();
+            File partFile = new File(file.getPath() + PART_SUFFIX);
+            if (chunkDisabled) {
+                // 分段不可用，丢掉预分配的文件，重试时整段下载
+                SegmentChunks.clear(partFile);
+                partFile.delete();
+            }
+            if (e == null && !chunks.isComplete()) {
+                e = new IOException("incomplete chunks");
+            }
+            if (e == null) {
+                try {
+                    commitPartFile(partFile, file);
+                    SegmentChunks.clear(partFile);
+                } catch (IOException ex) {
+                    e = ex;
+                }
+            }
+            onTransferDone(file, e);
+        }
+
+        /**
+         * 切片传输结束
+         * @param e 为空表示下载成功
+         */
+        void onTransferDone(File file, Exception e) {
+            if (e != null) {
+                if (e instanceof SocketTimeoutException) {
+                    hostController.onCongestion();
+                }
+                //任务已停止，已下载的部分保留在.part文件中，下次续传
+                if (!isRunning) return;
+                MirrorSelector selector = mirrorSelector;
+                if (selector != null && !failedMirrors.isEmpty()) {
+                    if (failedMirrors.size() < selector.size()) {
+                        // 还有没试过的镜像，404这类不重试的错误也先换镜像
+                        M3U8Log.d("switch mirror for " + m3U8Ts.getUrl() + ": " + e.getMessage());
+                        M3U8SegmentScheduler.getInstance().submit(taskKey, index, this);
+                        return;
+                    }
+                    // 所有镜像都失败了，按重试策略重新开始一轮
+                    failedMirrors.clear();
+                }
+                attempt++;
+                DownloadMetrics.getInstance().onSegmentFailed();
+                if (retryPolicy.shouldRetry(attempt, e)) {
+                    long delay = retryPolicy.getDelay(attempt, e);
+                    retryCount.incrementAndGet();
+                    DownloadMetrics.getInstance().onRetry();
+                    M3U8Log.d("retry " + m3U8Ts.getUrl() + " (" + attempt + ") after " + delay + "ms: " + e.getMessage());
+                    M3U8SegmentScheduler.getInstance().submitDelayed(taskKey, index, this, delay);
+                } else {
+                    handlerError(e);
+                }
+                return;
+            }
+            itemFileSize = file.length();
+            m3U8Ts.setFileSize(itemFileSize);
+            if (!m3U8Ts.hasByteRange()) {
+                SegmentStore.getInstance().put(m3U8Ts.obtainFullUrl(basePath), file, dir.getName());
+            }
+            DownloadMetrics.getInstance().onSegmentCompleted();
+            mHandler.sendEmptyMessage(WHAT_ON_PROGRESS);
+            curTs.incrementAndGet();
+            onSegmentReady();
+        }
+
+        private void onSegmentReady() {
+            playlistIndex.markComplete(index, m3U8Ts.getFileSize());
+            if (window.markDone(index)) {
+                M3U8SegmentScheduler.getInstance().onLimitChanged();
+            }
+            synchronized (segmentLock) {
+                segmentLock.notifyAll();
+            }
+            latch.countDown();
+        }
+    }
+
+    /**
+     * 把切片用到的key保存到任务目录，供本地m3u8使用
+     */
+    private void saveKeys(M3U8 m3U8) throws IOException {
+        for (M3U8Key key : m3U8.getKeys()) {
+            if (key.getUrl() == null) continue;
+            File file = new File(saveDir, key.obtainKeyFileName());
+            if (!file.exists()) {
+                MUtils.saveFile(KeyCache.getInstance().get(key.getUrl()), file.getPath());
+            }
+        }
+    }
+
+    /**
+     * 把fMP4切片用到的初始化段保存到任务目录，供本地m3u8使用
+     */
+    private void saveMaps(M3U8 m3U8) throws IOException {
+        for (M3U8Map map : m3U8.getMaps()) {
+            File file = new File(saveDir, map.obtainMapFileName());
+            if (!file.exists()) {
+                MUtils.saveFile(InitSectionCache.getInstance().get(map), file.getPath());
+            }
+        }
+    }
+
+    /**
+     * 切片保存的文件
+     */
+    private File obtainTsFile(File dir, M3U8Ts m3U8Ts) {
+        try {
+            String fileName = M3U8EncryptHelper.encryptFileName(encryptKey, m3U8Ts.obtainEncodeTsFileName());
+            return new File(dir + File.separator + fileName);
+        } catch (Exception e) {
+            return new File(dir + File.separator + m3U8Ts.getUrl());
+        }
+    }
+
+    /**
+     * 切片所在的host，用于按host控制并发
+     */
+    private String obtainHost(M3U8 m3U8) {
+        if (!m3U8.getTsList().isEmpty()) {
+            try {
+                return new URL(m3U8.getTsList().get(0).obtainFullUrl(m3U8.getBasePath())).getHost();
+            } catch (MalformedURLException e) {
+                M3U8Log.e(e.getMessage());
+            }
+        }
+        try {
+            return new URL(m3U8.getBasePath()).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    /**
+     * 下载单个切片
+     * 下载中的数据写在.part文件中，完整后再重命名为正式文件，所以正式文件存在即表示下载完成。
+     * .part文件已有数据时，通过Range请求从当前长度继续下载。
+     * 请求通过{@link Fetchers}发出，回调可能在调用线程，也可能在传输线程。
+     */
+    private class SegmentTransfer implements FetchListener, FetchCall {
+        private final SegmentJob job;
+        private final File file;
+        private final File partFile;
+        private final Runnable finish;
+        private long offset;
+        private long contentLength = -1;
+        private long received = 0;
+        private FileOutputStream fos;
+        private byte[] buf;
+        /**
+         * 缓冲区攒满再写入文件，减少write次数
+         */
+        private int filled = 0;
+        /**
+         * 不需要响应体就已经完成（.part已经完整）
+         */
+        private boolean committed = false;
+        /**
+         * 切片太大，改为分段并行下载
+         */
+        private SegmentChunks chunks;
+        private FetchResponse response;
+        private volatile FetchCall call;
+        /**
+         * 实际发出的请求，同步传输时通过它断开连接
+         */
+        private volatile FetchRequest request;
+        private long startTime;
+        /**
+         * 和对冲请求的竞争，没有对冲时为空
+         */
+        private HedgeRace race;
+        /**
+         * 是否为对冲请求，对冲请求总是从头下载到单独的文件
+         */
+        private final boolean hedge;
+        private volatile boolean cancelled = false;
+        private final MirrorRequest mirrorRequest;
+
+        SegmentTransfer(SegmentJob job, File file, Runnable finish, HedgeRace race) {
+            this.job = job;
+            this.mirrorRequest = new MirrorRequest(job.failedMirrors);
+            this.file = file;
+            this.race = race;
+            this.hedge = race != null;
+            this.partFile = new File(file.getPath() + (hedge ? HEDGE_SUFFIX : PART_SUFFIX));
+            this.finish = finish;
+        }
+
+        void start(String url) {
+            if (hedge) {
+                partFile.delete();
+            }
+            offset = partFile.exists() ? partFile.length() : 0;
+            M3U8Ts ts = job.m3U8Ts;
+            if (ts.hasByteRange() && offset >= ts.getByteRangeLength()) {
+                // 超出范围的.part不可信，重新下载这一段
+                partFile.delete();
+                offset = 0;
+            }
+            FetchRequest request = new FetchRequest(url);
+//            request.addHeader("Referer", "http://xxxxxxxx.com/");
+            // 压缩后长度对不上Range，切片按原始字节传输
+            request.addHeader("Accept-Encoding", "identity");
+            if (ts.hasByteRange()) {
+                // 字节范围切片只请求文件中的这一段
+                request.addHeader("Range", "bytes=" + (ts.getByteRangeOffset() + offset) + "-"
+                        + (ts.getByteRangeOffset() + ts.getByteRangeLength() - 1));
+            } else if (offset > 0) {
+                request.addHeader("Range", "bytes=" + offset + "-");
+            }
+            startTime = System.currentTimeMillis();
+            this.request = mirrorRequest.resolve(request);
+            if (cancelled) {
+                this.request.cancel();
+            }
+            call = Fetchers.get().fetch(this.request, this);
+            if (!isRunning) {
+                cancel();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            FetchRequest r = request;
+            if (r != null) {
+                r.cancel();
+            }
+            FetchCall c = call;
+            if (c != null) {
+                c.cancel();
+            }
+        }
+
+        @Override
+        public boolean onResponse(FetchResponse response) throws IOException {
+            if (cancelled) {
+                throw new InterruptedIOException("transfer cancelled");
+            }
+            this.response = response;
+            int code = response.getCode();
+            if (code == 429 || code == 503) {
+                // 服务器限流，降低并发
+                hostController.onCongestion();
+            }
+            M3U8Ts ts = job.m3U8Ts;
+            boolean append;
+            if (ts.hasByteRange()) {
+                if (code == 200) {
+                    // 返回的是整个文件
+                    throw new IOException("range not supported");
+                }
+                if (code != 206) {
+                    long retryAfter = MUtils.parseLong(response.getHeader("Retry-After"), -1);
+                    throw new HttpStatusException(code, retryAfter < 0 ? -1 : retryAfter * 1000);
+                }
+                if (MUtils.parseContentRangeStart(response.getHeader("Content-Range")) != ts.getByteRangeOffset() + offset) {
+                    partFile.delete();
+                    throw new IOException("Content-Range mismatch: " + response.getHeader("Content-Range"));
+                }
+                append = offset > 0;
+            } else if (code == 416 && offset > 0) {
+                // .part已经是完整的切片，只差重命名
+                if (MUtils.parseContentRangeTotal(response.getHeader("Content-Range")) == offset) {
+                    claim();
+                    commitPartFile(partFile, file);
+                    committed = true;
+                    return false;
+                }
+                partFile.delete();
+                throw new HttpStatusException(code);
+            } else if (code == 206 && offset > 0) {
+                if (MUtils.parseContentRangeStart(response.getHeader("Content-Range")) != offset) {
+                    // 服务器返回的范围对不上，丢弃重新下载
+                    partFile.delete();
+                    throw new IOException("Content-Range mismatch: " + response.getHeader("Content-Range"));
+                }
+                append = true;
+            } else if (code == 200) {
+                // 不支持Range，从头下载
+                append = false;
+                offset = 0;
+            } else {
+                long retryAfter = MUtils.parseLong(response.getHeader("Retry-After"), -1);
+                throw new HttpStatusException(code, retryAfter < 0 ? -1 : retryAfter * 1000);
+            }
+            if (isStartDownload){
+                isStartDownload = false;
+                mHandler.sendEmptyMessage(WHAT_ON_START_DOWNLOAD);
+            }
+            contentLength = MUtils.parseLong(response.getHeader("Content-Length"), -1);
+            long threshold = M3U8DownloaderConfig.getChunkThreshold();
+            if (code == 200 && threshold > 0 && contentLength >= threshold && !job.chunkDisabled && !hedge
+                    && "bytes".equalsIgnoreCase(response.getHeader("Accept-Ranges"))) {
+                // 大切片：放弃这个响应，改为多个Range请求并行下载
+                claim();
+                chunks = SegmentChunks.create(partFile, contentLength);
+                M3U8Log.d("split segment " + contentLength + " bytes into " + chunks.getCount() + " chunks: " + file.getName());
+                return false;
+            }
+            fos = new FileOutputStream(partFile, append);//会自动创建文件
+            buf = BufferPool.getInstance().acquire();
+            return true;
+        }
+
+        @Override
+        public long onData(byte[] data, int off, int len) throws IOException {
+            if (!isRunning || cancelled) {
+                throw new InterruptedIOException("thread interrupted");
+            }
+            received += len;
+            long pause = onBytesReceived(len);
+            int remaining = len;
+            while (remaining > 0) {
+                int n = Math.min(remaining, buf.length - filled);
+                System.arraycopy(data, off, buf, filled, n);
+                filled += n;
+                off += n;
+                remaining -= n;
+                if (filled == buf.length) {
+                    flush();
+                }
+            }
+            return pause;
+        }
+
+        private void flush() throws IOException {
+            if (filled > 0) {
+                fos.write(buf, 0, filled);//写入流中
+                IoStats.recordWrite();
+                filled = 0;
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (committed) {
+                done(null);
+                return;
+            }
+            if (chunks != null) {
+                activeTransfers.remove(this);
+                mirrorRequest.onDone(null, 0);
+                finish.run();
+                job.startChunks(file, chunks);
+                return;
+            }
+            try {
+                flush();
+                DownloadMetrics.getInstance().recordSegment(response.getConnectMillis(),
+                        response.getFirstByteMillis(), response.getElapsedMillis());
+                fos.close();
+                fos = null;
+                if (contentLength >= 0 && received != contentLength) {
+                    // 连接提前断开，保留.part等待续传
+                    throw new IOException("incomplete segment: " + (offset + received) + "/" + (offset + contentLength));
+                }
+                claim();
+                commitPartFile(partFile, file);
+            } catch (IOException e) {
+                done(e);
+                return;
+            }
+            if (offset == 0) {
+                // 续传的切片只下载了一部分，耗时不算
+                segmentTimes.record(System.currentTimeMillis() - startTime);
+            }
+            done(null);
+        }
+
+        @Override
+        public void onError(IOException e) {
+            if (fos != null) {
+                try {
+                    // 已经收到的数据留在.part中续传
+                    flush();
+                } catch (IOException ignored) {
+                }
+            }
+            done(e);
+        }
+
+        /**
+         * 提交文件之前先确认赢得了和对冲请求的竞争
+         */
+        private void claim() throws IOException {
+            if (race != null && !race.claim(this)) {
+                throw new InterruptedIOException("lost to hedged request");
+            }
+        }
+
+        private void done(Exception e) {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ignored) {
+                }
+                fos = null;
+            }
+            BufferPool.getInstance().release(buf);
+            buf = null;
+            activeTransfers.remove(this);
+            mirrorRequest.onDone(e, received);
+            try {
+                if (race == null) {
+                    job.onTransferDone(file, e);
+                    return;
+                }
+                if (race.isLoser(this)) {
+                    // 另一个请求已经完成，这里下载的数据作废
+                    curLength.add(-received);
+                    partFile.delete();
+                } else if (hedge && e != null) {
+                    partFile.delete();
+                }
+                if (race.onDone(this, e)) {
+                    job.onTransferDone(file, race.getError());
+                }
+            } finally {
+                finish.run();
+            }
+        }
+    }
+
+    /**
+     * 一个切片的原请求和对冲请求之间的竞争，先完成的提交文件，另一个取消。
+     * 一个请求失败时等另一个的结果，两个都失败才算切片失败。
+     */
+    private class HedgeRace implements Runnable {
+        private final SegmentJob job;
+        private final File file;
+        private final String url;
+        private final SegmentTransfer primary;
+        private SegmentTransfer hedge;
+        private SegmentTransfer winner;
+        private TimerTask timerTask;
+        /**
+         * 还没结束的请求数
+         */
+        private int running = 1;
+        private Exception error;
+
+        HedgeRace(SegmentJob job, File file, String url, SegmentTransfer primary) {
+            this.job = job;
+            this.file = file;
+            this.url = url;
+            this.primary = primary;
+        }
+
+        synchronized void watch(long delay) {
+            timerTask = SegmentHedger.getInstance().schedule(this, delay);
+        }
+
+        /**
+         * 原请求超时未完成，在计时线程中调用
+         * 对冲请求和原请求一样提交到调度器，受全局并发和host并发的限制
+         */
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (winner != null || running == 0 || !isRunning) return;
+            }
+            M3U8SegmentScheduler.getInstance().submit(taskKey, job.index, new Runnable() {
+                @Override
+                public void run() {
+                    startHedge();
+                }
+            });
+        }
+
+        /**
+         * 轮到对冲请求执行时，原请求还没完成才发出
+         */
+        private void startHedge() {
+            SegmentTransfer transfer;
+            synchronized (this) {
+                if (winner != null || running == 0 || !isRunning) return;
+                if (!SegmentHedger.getInstance().tryAcquire()) return;
+                final Runnable finish = M3U8SegmentScheduler.getInstance().detach();
+                transfer = new SegmentTransfer(job, file, new Runnable() {
+                    @Override
+                    public void run() {
+                        SegmentHedger.getInstance().release();
+                        finish.run();
+                    }
+                }, this);
+                hedge = transfer;
+                running++;
+            }
+            DownloadMetrics.getInstance().onHedge();
+            M3U8Log.d("hedge slow segment: " + file.getName());
+            activeTransfers.add(transfer);
+            transfer.start(url);
+        }
+
+        /**
+         * 请求下载完成，准备提交文件
+         * @return 另一个请求已经提交时返回false
+         */
+        boolean claim(SegmentTransfer transfer) {
+            SegmentTransfer other;
+            synchronized (this) {
+                if (winner != null) return winner == transfer;
+                winner = transfer;
+                if (timerTask != null) {
+                    timerTask.cancel();
+                }
+                other = transfer == primary ? hedge : primary;
+            }
+            if (transfer == hedge) {
+                DownloadMetrics.getInstance().onHedgeWon();
+            }
+            if (other != null) {
+                other.cancel();
+            }
+            return true;
+        }
+
+        synchronized boolean isLoser(SegmentTransfer transfer) {
+            return winner != null && winner != transfer;
+        }
+
+        /**
+         * 一个请求结束
+         * @return 需要回调切片结果时返回true：提交文件的请求结束，或者两个请求都失败了
+         */
+        synchronized boolean onDone(SegmentTransfer transfer, Exception e) {
+            running--;
+            if (winner == transfer) {
+                // 提交时出错以提交的结果为准
+                error = e;
+                return true;
+            }
+            if (winner == null && e != null && (error == null || transfer == primary)) {
+                error = e;
+            }
+            if (running == 0 && timerTask != null) {
+                timerTask.cancel();
+            }
+            return running == 0 && winner == null;
+        }
+
+        synchronized Exception getError() {
+            return error;
+        }
+    }
+
+    /**
+     * 一个请求使用的镜像，请求结束后把结果反馈给{@link MirrorSelector}
+     */
+    private class MirrorRequest {
+        /**
+         * 切片已经失败过的镜像，选择时排除，失败后加入
+         */
+        private Set<Integer> failedMirrors;
+        private MirrorSelector selector;
+        private int mirror = -1;
+        private long startTime;
+
+        MirrorRequest(Set<Integer> failedMirrors) {
+            this.failedMirrors = failedMirrors;
+        }
+
+        /**
+         * 选择镜像并替换请求地址，没有镜像时原样返回
+         */
+        FetchRequest resolve(FetchRequest request) {
+            startTime = System.currentTimeMillis();
+            selector = mirrorSelector;
+            if (selector == null) return request;
+            mirror = selector.select(failedMirrors);
+            String url = selector.resolve(mirror, request.getUrl());
+            if (url.equals(request.getUrl())) return request;
+            FetchRequest mirrored = new FetchRequest(url).setMethod(request.getMethod());
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                mirrored.addHeader(header.getKey(), header.getValue());
+            }
+            return mirrored;
+        }
+
+        /**
+         * 请求结束前指定失败时记录到哪个切片
+         */
+        void setFailedMirrors(Set<Integer> failedMirrors) {
+            this.failedMirrors = failedMirrors;
+        }
+
+        void onDone(Exception e, long bytes) {
+            if (selector == null || mirror < 0) return;
+            if (e == null) {
+                selector.onSuccess(mirror, bytes, System.currentTimeMillis() - startTime);
+            } else if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+                // 任务停止、对冲失败等主动取消，不算镜像的问题
+                selector.onCancel(mirror);
+            } else {
+                selector.onFailure(mirror);
+                if (failedMirrors != null) {
+                    failedMirrors.add(mirror);
+                }
+            }
+            mirror = -1;
+        }
+    }
+
+    /**
+     * 统计收到的数据，返回限速需要暂停的毫秒数
+     */
+    private long onBytesReceived(int len) {
+        curLength.add(len);
+        hostController.onBytes(len);
+        DownloadMetrics.getInstance().addBytes(len);
+        long pause = speedLimiter.reserve(len);
+        if (globalSpeedLimiter != null) {
+            pause = Math.max(pause, globalSpeedLimiter.reserve(len));
+        }
+        return pause;
+    }
+
+    /**
+     * 大切片中的一段，和普通切片一样由调度器执行
+     */
+    private class ChunkJob implements Runnable {
+        private final SegmentJob job;
+        private final File file;
+        private final String url;
+        private final SegmentChunks chunks;
+        private final int chunk;
+
+        ChunkJob(SegmentJob job, File file, String url, SegmentChunks chunks, int chunk) {
+            this.job = job;
+            this.file = file;
+            this.url = url;
+            this.chunks = chunks;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public void run() {
+            if (!isRunning) {
+                onDone(new InterruptedIOException("thread interrupted"));
+                return;
+            }
+            Runnable finish = M3U8SegmentScheduler.getInstance().detach();
+            ChunkTransfer transfer = new ChunkTransfer(this, finish);
+            activeTransfers.add(transfer);
+            transfer.start();
+        }
+
+        void onDone(Exception e) {
+            if (chunks.onChunkDone(e)) {
+                job.onChunksDone(file, chunks);
+            }
+        }
+    }
+
+    /**
+     * 下载一段，按位置写入.part文件
+     */
+    private class ChunkTransfer implements FetchListener, FetchCall {
+        private final ChunkJob chunkJob;
+        private final Runnable finish;
+        private long position;
+        private long end;
+        private byte[] buf;
+        private int filled = 0;
+        private FetchResponse response;
+        private volatile FetchCall call;
+        private volatile FetchRequest request;
+        private long received = 0;
+        private final MirrorRequest mirrorRequest;
+
+        ChunkTransfer(ChunkJob chunkJob, Runnable finish) {
+            this.chunkJob = chunkJob;
+            this.mirrorRequest = new MirrorRequest(chunkJob.job.failedMirrors);
+            this.finish = finish;
+        }
+
+        void start() {
+            position = chunkJob.chunks.getPosition(chunkJob.chunk);
+            end = chunkJob.chunks.getEnd(chunkJob.chunk);
+            FetchRequest request = new FetchRequest(chunkJob.url);
+            request.addHeader("Accept-Encoding", "identity");
+            request.addHeader("Range", "bytes=" + position + "-" + (end - 1));
+            this.request = mirrorRequest.resolve(request);
+            call = Fetchers.get().fetch(this.request, this);
+            if (!isRunning) {
+                cancel();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            FetchRequest r = request;
+            if (r != null) {
+                r.cancel();
+            }
+            FetchCall c = call;
+            if (c != null) {
+                c.cancel();
+            }
+        }
+
+        @Override
+        public boolean onResponse(FetchResponse response) throws IOException {
+            this.response = response;
+            int code = response.getCode();
+            if (code == 429 || code == 503) {
+                hostController.onCongestion();
+            }
+            if (code == 200) {
+                // 服务器不按Range返回，之后这个切片整段下载
+                chunkJob.job.chunkDisabled = true;
+                throw new IOException("range not supported");
+            }
+            if (code != 206) {
+                long retryAfter = MUtils.parseLong(response.getHeader("Retry-After"), -1);
+                throw new HttpStatusException(code, retryAfter < 0 ? -1 : retryAfter * 1000);
+            }
+            if (MUtils.parseContentRangeStart(response.getHeader("Content-Range")) != position) {
+                throw new IOException("Content-Range mismatch: " + response.getHeader("Content-Range"));
+            }
+            buf = BufferPool.getInstance().acquire();
+            return true;
+        }
+
+        @Override
+        public long onData(byte[] data, int off, int len) throws IOException {
+            if (!isRunning) {
+                throw new InterruptedIOException("thread interrupted");
+            }
+            received += len;
+            long pause = onBytesReceived(len);
+            int remaining = len;
+            while (remaining > 0) {
+                int n = Math.min(remaining, buf.length - filled);
+                System.arraycopy(data, off, buf, filled, n);
+                filled += n;
+                off += n;
+                remaining -= n;
+                if (filled == buf.length) {
+                    flush();
+                }
+            }
+            return pause;
+        }
+
+        private void flush() throws IOException {
+            if (filled > 0) {
+                chunkJob.chunks.write(chunkJob.chunk, buf, filled);
+                filled = 0;
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            Exception error = null;
+            try {
+                flush();
+                DownloadMetrics.getInstance().recordSegment(response.getConnectMillis(),
+                        response.getFirstByteMillis(), response.getElapsedMillis());
+                if (!chunkJob.chunks.isChunkComplete(chunkJob.chunk)) {
+                    throw new IOException("incomplete chunk: " + chunkJob.chunk);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            done(error);
+        }
+
+        @Override
+        public void onError(IOException e) {
+            if (buf != null) {
+                try {
+                    // 已经收到的数据写入文件，下次从这里继续
+                    flush();
+                } catch (IOException ignored) {
+                }
+            }
+            done(e);
+        }
+
+        private void done(Exception e) {
+            BufferPool.getInstance().release(buf);
+            buf = null;
+            activeTransfers.remove(this);
+            mirrorRequest.onDone(e, received);
+            try {
+                chunkJob.onDone(e);
+            } finally {
+                finish.run();
+            }
+        }
+    }
+
+    /**
+     * 同一个文件中首尾相接的几个字节范围切片，用一个Range请求下载，
+     * 收到的数据按范围依次写入各切片的.part文件，每写满一个就提交一个
+     */
+    private class RangeGroupJob implements Runnable {
+        private final List<SegmentJob> jobs = new ArrayList<>();
+        private long length;
+
+        RangeGroupJob(SegmentJob job) {
+            jobs.add(job);
+            length = job.m3U8Ts.getByteRangeLength();
+        }
+
+        /**
+         * 加入下一个切片
+         * @return 不在同一个文件、和前一段不相接或者超过合并上限时返回false
+         */
+        boolean tryAdd(SegmentJob job) {
+            SegmentJob last = jobs.get(jobs.size() - 1);
+            M3U8Ts ts = job.m3U8Ts;
+            M3U8Ts lastTs = last.m3U8Ts;
+            if (!ts.hasByteRange() || job.index != last.index + 1 || !ts.getUrl().equals(lastTs.getUrl())
+                    || ts.getByteRangeOffset() != lastTs.getByteRangeOffset() + lastTs.getByteRangeLength()
+                    || length + ts.getByteRangeLength() > M3U8DownloaderConfig.getRangeMergeSize()) {
+                return false;
+            }
+            jobs.add(job);
+            length += ts.getByteRangeLength();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            for (SegmentJob job : jobs) {
+                File file = obtainTsFile(job.dir, job.m3U8Ts);
+                if (file.exists() || new File(file.getPath() + PART_SUFFIX).exists()) {
+                    // 有切片已经下载过或者下载了一部分，逐个下载，各自从断点继续
+                    submitSeparately(0);
+                    return;
+                }
+            }
+            Runnable finish = M3U8SegmentScheduler.getInstance().detach();
+            RangeGroupTransfer transfer = new RangeGroupTransfer(this, finish);
+            activeTransfers.add(transfer);
+            transfer.start();
+        }
+
+        /**
+         * 从第from个切片开始改为逐个提交，由各切片自己重试
+         */
+        void submitSeparately(int from) {
+            for (int i = from; i < jobs.size(); i++) {
+                SegmentJob job = jobs.get(i);
+                M3U8SegmentScheduler.getInstance().submit(taskKey, job.index, job);
+            }
+        }
+    }
+
+    /**
+     * 下载一组字节范围切片
+     */
+    private class RangeGroupTransfer implements FetchListener, FetchCall {
+        private final RangeGroupJob group;
+        private final Runnable finish;
+        /**
+         * 正在写入的切片
+         */
+        private int current = 0;
+        /**
+         * 当前切片已经写入的长度
+         */
+        private long written = 0;
+        private File file;
+        private File partFile;
+        private FileOutputStream fos;
+        private byte[] buf;
+        private int filled = 0;
+        private long received = 0;
+        private FetchResponse response;
+        private volatile FetchCall call;
+        private volatile FetchRequest request;
+        private volatile boolean cancelled = false;
+        /**
+         * 合并请求失败时镜像记到正在写入的切片上，由它换镜像重试
+         */
+        private final MirrorRequest mirrorRequest = new MirrorRequest(null);
+
+        RangeGroupTransfer(RangeGroupJob group, Runnable finish) {
+            this.group = group;
+            this.finish = finish;
+        }
+
+        void start() {
+            SegmentJob first = group.jobs.get(0);
+            long start = first.m3U8Ts.getByteRangeOffset();
+            FetchRequest request = new FetchRequest(first.m3U8Ts.obtainFullUrl(first.basePath));
+            request.addHeader("Accept-Encoding", "identity");
+            request.addHeader("Range", "bytes=" + start + "-" + (start + group.length - 1));
+            this.request = mirrorRequest.resolve(request);
+            call = Fetchers.get().fetch(this.request, this);
+            if (!isRunning) {
+                cancel();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            FetchRequest r = request;
+            if (r != null) {
+                r.cancel();
+            }
+            FetchCall c = call;
+            if (c != null) {
+                c.cancel();
+            }
+        }
+
+        @Override
+        public boolean onResponse(FetchResponse response) throws IOException {
+            if (cancelled) {
+                throw new InterruptedIOException("transfer cancelled");
+            }
+            this.response = response;
+            int code = response.getCode();
+            if (code == 429 || code == 503) {
+                hostController.onCongestion();
+            }
+            if (code == 200) {
+                throw new IOException("range not supported");
+            }
+            if (code != 206) {
+                long retryAfter = MUtils.parseLong(response.getHeader("Retry-After"), -1);
+                throw new HttpStatusException(code, retryAfter < 0 ? -1 : retryAfter * 1000);
+            }
+            if (MUtils.parseContentRangeStart(response.getHeader("Content-Range")) != group.jobs.get(0).m3U8Ts.getByteRangeOffset()) {
+                throw new IOException("Content-Range mismatch: " + response.getHeader("Content-Range"));
+            }
+            if (isStartDownload){
+                isStartDownload = false;
+                mHandler.sendEmptyMessage(WHAT_ON_START_DOWNLOAD);
+            }
+            buf = BufferPool.getInstance().acquire();
+            open();
+            return true;
+        }
+
+        @Override
+        public long onData(byte[] data, int off, int len) throws IOException {
+            if (!isRunning || cancelled) {
+                throw new InterruptedIOException("thread interrupted");
+            }
+            received += len;
+            long pause = onBytesReceived(len);
+            int remaining = len;
+            while (remaining > 0) {
+                if (fos == null) {
+                    throw new IOException("range longer than expected");
+                }
+                long left = group.jobs.get(current).m3U8Ts.getByteRangeLength() - written;
+                int n = (int) Math.min(Math.min(remaining, left), buf.length - filled);
+                System.arraycopy(data, off, buf, filled, n);
+                filled += n;
+                written += n;
+                off += n;
+                remaining -= n;
+                if (filled == buf.length) {
+                    flush();
+                }
+                if (n == left) {
+                    commit();
+                }
+            }
+            return pause;
+        }
+
+        /**
+         * 打开当前切片的.part文件，跳过长度为0的切片
+         */
+        private void open() throws IOException {
+            while (current < group.jobs.size()) {
+                SegmentJob job = group.jobs.get(current);
+                file = obtainTsFile(job.dir, job.m3U8Ts);
+                partFile = new File(file.getPath() + PART_SUFFIX);
+                fos = new FileOutputStream(partFile);
+                written = 0;
+                if (job.m3U8Ts.getByteRangeLength() > 0) return;
+                commit();
+            }
+        }
+
+        /**
+         * 当前切片写满，提交后打开下一个
+         */
+        private void commit() throws IOException {
+            flush();
+            fos.close();
+            fos = null;
+            commitPartFile(partFile, file);
+            SegmentJob job = group.jobs.get(current);
+            current++;
+            job.onTransferDone(file, null);
+            if (current < group.jobs.size()) {
+                open();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (filled > 0) {
+                fos.write(buf, 0, filled);
+                IoStats.recordWrite();
+                filled = 0;
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            Exception error = null;
+            try {
+                DownloadMetrics.getInstance().recordSegment(response.getConnectMillis(),
+                        response.getFirstByteMillis(), response.getElapsedMillis());
+                if (current < group.jobs.size()) {
+                    throw new IOException("incomplete range: " + current + "/" + group.jobs.size());
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            done(error);
+        }
+
+        @Override
+        public void onError(IOException e) {
+            if (fos != null) {
+                try {
+                    // 已经收到的数据留在.part中，逐个下载时从这里继续
+                    flush();
+                } catch (IOException ignored) {
+                }
+            }
+            done(e);
+        }
+
+        private void done(Exception e) {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ignored) {
+                }
+                fos = null;
+            }
+            BufferPool.getInstance().release(buf);
+            buf = null;
+            activeTransfers.remove(this);
+            SegmentJob failed = e != null && current < group.jobs.size() ? group.jobs.get(current) : null;
+            if (failed != null) {
+                mirrorRequest.setFailedMirrors(failed.failedMirrors);
+            }
+            mirrorRequest.onDone(e, received);
+            try {
+                if (failed != null && isRunning) {
+                    // 合并请求失败，算作正在写入的切片失败一次，由它换镜像或按重试策略重试，
+                    // 后面的切片逐个下载
+                    M3U8Log.d("range request failed at " + current + "/" + group.jobs.size() + ": " + e.getMessage());
+                    failed.onTransferDone(file, e);
+                    group.submitSeparately(current + 1);
+                }
+            } finally {
+                finish.run();
+            }
+        }
+    }
+
+    /**
+     * 通过重命名把.part文件变成正式文件
+     */
+    private void commitPartFile(File partFile, File file) throws IOException {
+        if (!partFile.renameTo(file)) {
+            throw new IOException("rename failed: " + partFile.getPath());
+        }
+    }
+
+    /**
+     * M3U8转MP4
+     * fMP4切片在第一个切片前写入初始化段，和后面的分片组成可以播放的mp4，
+     * 初始化段和切片都是边读边写，只遍历一次。
+     * 只支持一个初始化段：出现第二个不同的EXT-X-MAP时中途再写一份ftyp/moov会得到损坏的mp4，
+     * 这种情况合并失败，保留下载好的m3u8和切片
+     */
+    private void convertMP4() {
+        mHandler.sendEmptyMessage(WHAT_ON_CONVERT);
+        final File dir = new File(saveDir);
+
+        FileOutputStream fos = null;
+        InputStream inputStream = null;
+        String mp4FilePath = saveDir + ".mp4";
+        File mp4File = null;
+        int len = 0;
+        byte[] bytes = null;
+        byte[] decrypted = null;
+
+        try {
+            checkSingleInitSection(currentM3U8.getTsList());
+            mp4File = new File(mp4FilePath);
+            if (mp4File.exists()) {
+                mp4File.delete();
+            }
+            fos = new FileOutputStream(mp4File);
+            bytes = BufferPool.getInstance().acquire();
+            M3U8Map map = null;
+            for (final M3U8Ts m3U8Ts : currentM3U8.getTsList()) {
+                File file = obtainTsFile(dir, m3U8Ts);
+                // ts片段不存在，直接跳过
+                if(!file.exists())
+                    continue;
+                if (map == null && m3U8Ts.getMap() != null) {
+                    // 重复出现的相同EXT-X-MAP不再写入
+                    map = m3U8Ts.getMap();
+                    writeInitSection(fos, map, m3U8Ts);
+                }
+                inputStream = new FileInputStream(file);
+                if (m3U8Ts.isEncrypted()) {
+                    // 加密文件，用这个切片自己的key和iv边读边解密，追加到mp4文件中
+                    if (decrypted == null) {
+                        decrypted = BufferPool.getInstance().acquire();
+                    }
+                    M3U8Key key = m3U8Ts.getKey();
+                    Cipher cipher = AES128Utils.createTsDecryptCipher(KeyCache.getInstance().get(key.getUrl()),
+                            AES128Utils.obtainIv(key.getIv(), m3U8Ts.getSequence()));
+                    // 解密输出最多比输入多一个分组
+                    int readSize = bytes.length - cipher.getBlockSize();
+                    while ((len = inputStream.read(bytes, 0, readSize)) != -1) {
+                        IoStats.recordRead();
+                        int n = cipher.update(bytes, 0, len, decrypted, 0);
+                        if (n > 0) {
+                            fos.write(decrypted, 0, n);
+                            IoStats.recordWrite();
+                        }
+                    }
+                    int n = cipher.doFinal(decrypted, 0);
+                    if (n > 0) {
+                        fos.write(decrypted, 0, n);
+                        IoStats.recordWrite();
+                    }
+                } else {
+                    // 追加到mp4文件中
+                    while ((len = inputStream.read(bytes)) != -1) {
+                        IoStats.recordRead();
+                        fos.write(bytes, 0, len);
+                        IoStats.recordWrite();
+                    }
+                }
+                // 关闭流
+                inputStream.close();
+            }
+            // 设置文件路径
+            currentM3U8.setM3u8FilePath(mp4FilePath);
+            // 合并成功，删除m3u8和ts文件
+            MUtils.clearDir(dir);
+            SegmentStore.getInstance().release(dir.getName());
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+            handlerError(e);
+        } catch (IOException e) {
+            e.printStackTrace();
+            handlerError(e);
+        } catch (Exception e) {
+            e.printStackTrace();
+            handlerError(e);
+        } finally {
+            // 关流
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                }
+            }
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                }
+            }
+            if (mp4File != null && mp4File.exists() && mp4File.length() == 0) {
+                // 空文件，删除
+                mp4File.delete();
+            }
+            BufferPool.getInstance().release(bytes);
+            BufferPool.getInstance().release(decrypted);
+        }
+    }
+
+    /**
+     * 所有切片必须使用同一个初始化段（或者都没有），否则抛出异常
+     */
+    private static void checkSingleInitSection(List<M3U8Ts> tsList) throws IOException {
+        M3U8Map first = null;
+        for (M3U8Ts ts : tsList) {
+            M3U8Map map = ts.getMap();
+            if (map == null || map == first) continue;
+            if (first == null) {
+                first = map;
+            } else if (!map.getUrl().equals(first.getUrl())
+                    || map.getByteRangeLength() != first.getByteRangeLength()
+                    || map.getByteRangeOffset() != first.getByteRangeOffset()) {
+                throw new IOException("multiple EXT-X-MAP init sections can not be merged into one mp4: " + map.getUrl());
+            }
+        }
+    }
+
+    /**
+     * 写入初始化段，加密的先解密
+     * @param ts 第一个用到这个初始化段的切片，初始化段没有指定iv时按它的序号生成
+     */
+    private void writeInitSection(OutputStream out, M3U8Map map, M3U8Ts ts) throws Exception {
+        byte[] data = InitSectionCache.getInstance().get(map);
+        if (map.isEncrypted()) {
+            M3U8Key key = map.getKey();
+            data = AES128Utils.decryptTs(data, KeyCache.getInstance().get(key.getUrl()),
+                    AES128Utils.obtainIv(key.getIv(), ts.getSequence()));
+        }
+        out.write(data);
+        IoStats.recordWrite();
+    }
+
+    /**
+     * 通知异常
+     *
+     * @param e
+     */
+    private void handlerError(Throwable e) {
+        e.printStackTrace();
+        if (!"Task running".equals(e.getMessage())) {
+            stop();
+        }
+        //不提示被中断的情况
+        if ("thread interrupted".equals(e.getMessage())) {
+            return;
+        }
+        Message msg = Message.obtain();
+        msg.obj = e;
+        msg.what = WHAT_ON_ERROR;
+        mHandler.sendMessage(msg);
+    }
+
+    /**
+     * 停止任务
+     */
+    public void stop() {
+        if (netSpeedTimer != null) {
+            netSpeedTimer.cancel();
+            netSpeedTimer = null;
+        }
+        isRunning = false;
+        PlaylistIndex index = playlistIndex;
+        if (index != null) {
+            index.flush();
+        }
+        SegmentPreflight p = preflight;
+        if (p != null) {
+            p.cancel();
+        }
+        if (taskKey != null) {
+            M3U8SegmentScheduler.getInstance().cancel(taskKey);
+        }
+        FetchCall[] transfers;
+        synchronized (activeTransfers) {
+            transfers = activeTransfers.toArray(new FetchCall[0]);
+        }
+        for (FetchCall transfer : transfers) {
+            transfer.cancel();
+        }
+        // 释放等待中的下载线程
+        SegmentLatch latch = downloadLatch;
+        if (latch != null) {
+            latch.release();
+        }
+        synchronized (segmentLock) {
+            segmentLock.notifyAll();
+        }
+    }
+
+    /**
+     * 设置单个任务的限速，运行中生效
+     * @param bytesPerSecond 每秒字节数，小于等于0不限速
+     */
+    public void setSpeedLimit(long bytesPerSecond) {
+        speedLimiter.setRate(bytesPerSecond);
+    }
+
+    public void setGlobalSpeedLimiter(BandwidthLimiter globalSpeedLimiter) {
+        this.globalSpeedLimiter = globalSpeedLimiter;
+    }
+
+    /**
+     * 本次下载已经完成的切片数
+     */
+    public int getCurTs() {
+        return curTs.get();
+    }
+
+    public int getTotalTs() {
+        return totalTs;
+    }
+
+    M3U8 getCurrentM3U8() {
+        return currentM3U8;
+    }
+
+    /**
+     * 切片保存的文件，用于本地播放
+     * @param index 切片序号
+     */
+    File getTsFile(int index) {
+        M3U8 m3U8 = currentM3U8;
+        if (m3U8 == null || saveDir == null || index < 0 || index >= m3U8.getTsList().size()) return null;
+        return obtainTsFile(new File(saveDir), m3U8.getTsList().get(index));
+    }
+
+    /**
+     * 等待切片下载完成，等待期间把切片提到最前面下载
+     * @param index 切片序号
+     * @param timeout 超时时间，单位毫秒
+     * @return 切片文件是否已经存在
+     */
+    boolean awaitTsFile(int index, long timeout) throws InterruptedException {
+        File file = getTsFile(index);
+        if (file == null) return false;
+        if (file.exists()) return true;
+        M3U8SegmentScheduler.getInstance().promote(taskKey, index);
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (segmentLock) {
+            while (!file.exists() && isRunning) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) break;
+                segmentLock.wait(wait);
+            }
+        }
+        return file.exists();
+    }
+
+    /**
+     * 从头开始连续下载完成、可以播放的时长，单位毫秒
+     */
+    public long getPlayableMillis() {
+        SegmentWindow window = segmentWindow;
+        return window == null ? 0 : window.getPlayableMillis();
+    }
+
+    /**
+     * 累计下载的字节数
+     */
+    public long getDownloadedBytes() {
+        return curLength.sum();
+    }
+
+    /**
+     * 预检估算的整个视频字节数
+     * @return 没有预检或者拿不到大小时返回-1
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * 已完成的字节数，包括开始下载前本地已有的部分
+     */
+    public long getCompletedBytes() {
+        long completed = existingBytes + curLength.sum();
+        long total = totalBytes;
+        return total > 0 ? Math.min(completed, total) : completed;
+    }
+
+    /**
+     * 本次下载累计的切片重试次数
+     */
+    public int getRetryCount() {
+        return retryCount.get();
     }
 
-    public File getM3u8File(String url){
+    public static File getM3u8File(String url){
         try {
-            return new File(MUtils.getSaveFileDir(url), m3u8FileName);
+            return new File(MUtils.getSaveFileDir(url), M3U8_FILE_NAME);
         }catch (Exception e){
             M3U8Log.e(e.getMessage());
         }
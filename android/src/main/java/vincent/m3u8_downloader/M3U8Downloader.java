@@ -6,12 +6,20 @@ import android.text.TextUtils;
 import androidx.annotation.Nullable;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import vincent.m3u8_downloader.bean.M3U8;
 import vincent.m3u8_downloader.bean.M3U8Task;
 import vincent.m3u8_downloader.bean.M3U8TaskState;
+import vincent.m3u8_downloader.bean.VariantPolicy;
+import vincent.m3u8_downloader.metrics.DownloadMetrics;
+import vincent.m3u8_downloader.utils.BandwidthLimiter;
 import vincent.m3u8_downloader.utils.M3U8Log;
+import vincent.m3u8_downloader.utils.MD5Utils;
 import vincent.m3u8_downloader.utils.MUtils;
 
 /**
@@ -27,15 +35,43 @@ public class M3U8Downloader {
 
 
     private long currentTime;
-    private M3U8Task currentM3U8Task;
     private DownloadQueue downLoadQueue;
-    private M3U8DownloadTask m3U8DownLoadTask;
+    /**
+     * 正在下载的任务，key为任务url
+     */
+    private Map<String, M3U8DownloadTask> runningTasks;
+    private String encryptKey;
     private OnM3U8DownloadListener onM3U8DownloadListener;
+    /**
+     * 所有任务共享的限速
+     */
+    private BandwidthLimiter globalSpeedLimiter;
+    /**
+     * 单个任务的限速，key为任务url
+     */
+    private Map<String, Long> speedLimits;
+    /**
+     * 任务的镜像，key为任务url
+     */
+    private Map<String, List<String>> mirrors;
+    /**
+     * 任务的码率选择策略，key为任务url
+     */
+    private Map<String, VariantPolicy> variantPolicies;
+    /**
+     * 录制直播的时长，单位秒，key为任务url
+     */
+    private Map<String, Long> recordSeconds;
 
     private M3U8Downloader() {
 
         downLoadQueue = new DownloadQueue();
-        m3U8DownLoadTask = new M3U8DownloadTask();
+        runningTasks = new ConcurrentHashMap<>();
+        globalSpeedLimiter = new BandwidthLimiter();
+        speedLimits = new HashMap<>();
+        mirrors = new ConcurrentHashMap<>();
+        variantPolicies = new ConcurrentHashMap<>();
+        recordSeconds = new ConcurrentHashMap<>();
     }
 
     public static M3U8Downloader getInstance(){
@@ -46,7 +82,7 @@ public class M3U8Downloader {
     }
 
     /**
-     * 防止快速点击引起ThreadPoolExecutor频繁创建销毁引起crash
+     * 防止快速点击引起任务频繁创建销毁引起crash
      * @return
      */
     private boolean isQuicklyClick(){
@@ -61,10 +97,36 @@ public class M3U8Downloader {
 
 
     /**
-     * 下载下一个任务，直到任务全部完成
+     * 补齐同时下载的任务，直到任务全部完成
      */
     private void downloadNextTask() {
-        startDownloadTask(downLoadQueue.poll());
+        for (M3U8Task task : downLoadQueue.getActiveTasks(M3U8DownloaderConfig.getMaxTaskCount())) {
+            if (!runningTasks.containsKey(task.getUrl())) {
+                startDownloadTask(task);
+            }
+        }
+        prefetchWaitingTasks();
+    }
+
+    /**
+     * 当前任务下载时，提前获取接下来几个任务的m3u8，任务切换时可以直接开始下载切片
+     */
+    private void prefetchWaitingTasks() {
+        int count = M3U8DownloaderConfig.getPrefetchCount();
+        if (count <= 0) return;
+        for (M3U8Task task : downLoadQueue.getWaitingTasks(M3U8DownloaderConfig.getMaxTaskCount(), count)) {
+            M3U8InfoManger.getInstance().prefetch(task.getUrl(), variantPolicies.get(task.getUrl()));
+        }
+    }
+
+    /**
+     * 任务结束（成功或失败），出队并开始下一个任务
+     * @param task
+     */
+    private void finishTask(M3U8Task task) {
+        runningTasks.remove(task.getUrl());
+        downLoadQueue.remove(task);
+        downloadNextTask();
     }
 
     private void pendingTask(M3U8Task task){
@@ -81,7 +143,53 @@ public class M3U8Downloader {
      * @param url
      */
     public void download(String url, String name){
+        download(url, name, null);
+    }
+
+    /**
+     * 下载任务，切片可以从多个镜像下载，每个切片选当前最快的可用镜像
+     * @param url
+     * @param mirrorUrls 其他镜像上的同一个m3u8地址（或所在目录），为空时只用url
+     */
+    public void download(String url, String name, @Nullable List<String> mirrorUrls){
+        download(url, name, mirrorUrls, null);
+    }
+
+    /**
+     * 下载任务，url是主m3u8时按策略选择码率
+     * @param url
+     * @param mirrorUrls 其他镜像上的同一个m3u8地址（或所在目录），为空时只用url
+     * @param variantPolicy 码率选择策略，为null时选第一个码率
+     */
+    public void download(String url, String name, @Nullable List<String> mirrorUrls, @Nullable VariantPolicy variantPolicy){
+        download(url, name, mirrorUrls, variantPolicy, -1);
+    }
+
+    /**
+     * 下载任务，url是直播时可以录制
+     * @param url
+     * @param mirrorUrls 其他镜像上的同一个m3u8地址（或所在目录），为空时只用url
+     * @param variantPolicy 码率选择策略，为null时选第一个码率
+     * @param recordSeconds m3u8没有#EXT-X-ENDLIST时按目标时长轮询新切片，直到直播结束或者录制了这么多秒，
+     *                      0为不限制，小于0时不录制，直播列表只下载一次
+     */
+    public void download(String url, String name, @Nullable List<String> mirrorUrls, @Nullable VariantPolicy variantPolicy, long recordSeconds){
         if (TextUtils.isEmpty(url) || isQuicklyClick())return;
+        if (recordSeconds >= 0) {
+            this.recordSeconds.put(url, recordSeconds);
+        } else {
+            this.recordSeconds.remove(url);
+        }
+        if (mirrorUrls != null && !mirrorUrls.isEmpty()) {
+            mirrors.put(url, mirrorUrls);
+        } else {
+            mirrors.remove(url);
+        }
+        if (variantPolicy != null) {
+            variantPolicies.put(url, variantPolicy);
+        } else {
+            variantPolicies.remove(url);
+        }
         M3U8Task task = new M3U8Task(url);
         if (downLoadQueue.contains(task)){
             task = downLoadQueue.getTask(url);
@@ -93,6 +201,7 @@ public class M3U8Downloader {
         }else {
             downLoadQueue.offer(task);
             startDownloadTask(task);
+            prefetchWaitingTasks();
         }
     }
 
@@ -111,11 +220,11 @@ public class M3U8Downloader {
                 onM3U8DownloadListener.onDownloadPause(task);
             }
 
-            if (url.equals(currentM3U8Task.getUrl())) {
-                m3U8DownLoadTask.stop();
+            M3U8DownloadTask downloadTask = runningTasks.remove(url);
+            downLoadQueue.remove(task);
+            if (downloadTask != null) {
+                downloadTask.stop();
                 downloadNextTask();
-            } else {
-                downLoadQueue.remove(task);
             }
         }
     }
@@ -126,7 +235,7 @@ public class M3U8Downloader {
      */
     public void pause(List<String> urls){
         if (urls == null || urls.size() == 0)return;
-        boolean isCurrentTaskPause = false;
+        boolean isRunningTaskPause = false;
         for (String url : urls){
             if (downLoadQueue.contains(new M3U8Task(url))){
                 M3U8Task task = downLoadQueue.getTask(url);
@@ -135,15 +244,16 @@ public class M3U8Downloader {
                     if (onM3U8DownloadListener != null){
                         onM3U8DownloadListener.onDownloadPause(task);
                     }
-                    if (task.equals(currentM3U8Task)){
-                        m3U8DownLoadTask.stop();
-                        isCurrentTaskPause = true;
+                    M3U8DownloadTask downloadTask = runningTasks.remove(url);
+                    if (downloadTask != null){
+                        downloadTask.stop();
+                        isRunningTaskPause = true;
                     }
                     downLoadQueue.remove(task);
                 }
             }
         }
-        if (isCurrentTaskPause)startDownloadTask(downLoadQueue.peek());
+        if (isRunningTaskPause)downloadNextTask();
     }
 
     /**
@@ -153,7 +263,7 @@ public class M3U8Downloader {
      */
     public boolean checkM3U8IsExist(String url){
         try {
-            return m3U8DownLoadTask.getM3u8File(url).exists();
+            return M3U8DownloadTask.getM3u8File(url).exists();
         }catch (Exception e){
             M3U8Log.e(e.getMessage());
         }
@@ -168,26 +278,32 @@ public class M3U8Downloader {
     public String getM3U8Path(String url){
         String path;
         try {
-            path = m3U8DownLoadTask.getM3u8File(url).getPath();
+            path = M3U8DownloadTask.getM3u8File(url).getPath();
         } catch (Exception e) {
             path = MUtils.getSaveFileDir(url) + File.separator + "local.m3u8";
         }
         return path;
     }
 
+    /**
+     * 是否有任务正在下载
+     * @return
+     */
     public boolean isRunning(){
-        return m3U8DownLoadTask.isRunning();
+        for (M3U8DownloadTask downloadTask : runningTasks.values()) {
+            if (downloadTask.isRunning()) return true;
+        }
+        return false;
     }
 
     /**
-     *  if task is the current task , it will return true
+     *  if task is one of the tasks allowed to download at the same time, it will return true
      * @param url
      * @return
      */
     public boolean isCurrentTask(String url){
         return !TextUtils.isEmpty(url)
-                && downLoadQueue.peek() != null
-                && downLoadQueue.peek().getUrl().equals(url);
+                && downLoadQueue.isActive(new M3U8Task(url), M3U8DownloaderConfig.getMaxTaskCount());
     }
 
 
@@ -196,18 +312,94 @@ public class M3U8Downloader {
     }
 
     public void setEncryptKey(String encryptKey){
-        m3U8DownLoadTask.setEncryptKey(encryptKey);
+        this.encryptKey = encryptKey;
+        for (M3U8DownloadTask downloadTask : runningTasks.values()) {
+            downloadTask.setEncryptKey(encryptKey);
+        }
     }
 
     public String getEncryptKey(){
-        return m3U8DownLoadTask.getEncryptKey();
+        return encryptKey;
+    }
+
+    /**
+     * 设置所有任务合计的下载速度上限，运行中生效
+     * @param bytesPerSecond 每秒字节数，小于等于0不限速
+     */
+    public void setGlobalSpeedLimit(long bytesPerSecond){
+        globalSpeedLimiter.setRate(bytesPerSecond);
+    }
+
+    public long getGlobalSpeedLimit(){
+        return globalSpeedLimiter.getRate();
+    }
+
+    /**
+     * 设置单个任务的下载速度上限，任务还没开始时在开始后生效
+     * @param url
+     * @param bytesPerSecond 每秒字节数，小于等于0不限速
+     */
+    public void setSpeedLimit(String url, long bytesPerSecond){
+        if (TextUtils.isEmpty(url))return;
+        if (bytesPerSecond > 0) {
+            speedLimits.put(url, bytesPerSecond);
+        } else {
+            speedLimits.remove(url);
+        }
+        M3U8DownloadTask downloadTask = runningTasks.get(url);
+        if (downloadTask != null) {
+            downloadTask.setSpeedLimit(bytesPerSecond);
+        }
+    }
+
+    public long getSpeedLimit(String url){
+        Long limit = speedLimits.get(url);
+        return limit == null ? 0 : limit;
+    }
+
+    /**
+     * 按保存目录名查找正在下载的任务，供本地播放服务使用
+     * @param dirName {@link MUtils#getSaveFileDir(String)}的最后一级目录名
+     * @return
+     */
+    M3U8DownloadTask findRunningTask(String dirName){
+        for (Map.Entry<String, M3U8DownloadTask> entry : runningTasks.entrySet()) {
+            if (entry.getValue().isRunning() && dirName.equals(MD5Utils.encode(entry.getKey()))) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 获取下载统计的快照，包含所有任务的汇总和正在下载的任务各自的进度
+     * @return
+     */
+    public Map<String, Object> getMetrics(){
+        Map<String, Object> metrics = DownloadMetrics.getInstance().snapshot();
+        List<Map<String, Object>> tasks = new ArrayList<>();
+        for (Map.Entry<String, M3U8DownloadTask> entry : runningTasks.entrySet()) {
+            M3U8DownloadTask downloadTask = entry.getValue();
+            if (!downloadTask.isRunning()) continue;
+            Map<String, Object> item = new HashMap<>();
+            item.put("url", entry.getKey());
+            item.put("bytes", downloadTask.getDownloadedBytes());
+            item.put("curTs", downloadTask.getCurTs());
+            item.put("totalTs", downloadTask.getTotalTs());
+            item.put("retryCount", downloadTask.getRetryCount());
+            item.put("playableDuration", downloadTask.getPlayableMillis());
+            item.put("totalBytes", downloadTask.getTotalBytes());
+            tasks.add(item);
+        }
+        metrics.put("tasks", tasks);
+        return metrics;
     }
 
     private void startDownloadTask(M3U8Task task){
         if (task == null)return;
         pendingTask(task);
-        if (!downLoadQueue.isHead(task)){
-            M3U8Log.d("start download task, but task is running: " + task.getUrl());
+        if (!downLoadQueue.isActive(task, M3U8DownloaderConfig.getMaxTaskCount())){
+            M3U8Log.d("start download task, but task is waiting: " + task.getUrl());
             return;
         }
 
@@ -215,10 +407,25 @@ public class M3U8Downloader {
             M3U8Log.d("start download task, but task has pause: " + task.getUrl());
             return;
         }
+        M3U8DownloadTask downloadTask = runningTasks.get(task.getUrl());
+        if (downloadTask != null && downloadTask.isRunning()) {
+            M3U8Log.d("start download task, but task is running: " + task.getUrl());
+            return;
+        }
         try {
-            currentM3U8Task = task;
+            if (downloadTask == null) {
+                downloadTask = new M3U8DownloadTask();
+                runningTasks.put(task.getUrl(), downloadTask);
+            }
+            downloadTask.setEncryptKey(encryptKey);
+            downloadTask.setGlobalSpeedLimiter(globalSpeedLimiter);
+            downloadTask.setSpeedLimit(getSpeedLimit(task.getUrl()));
+            downloadTask.setMirrors(mirrors.get(task.getUrl()));
+            downloadTask.setVariantPolicy(variantPolicies.get(task.getUrl()));
+            Long seconds = recordSeconds.get(task.getUrl());
+            downloadTask.setRecordSeconds(seconds == null ? -1 : seconds);
             M3U8Log.d("====== start downloading ===== " + task.getUrl());
-            m3U8DownLoadTask.download(task.getUrl(), onTaskDownloadListener);
+            downloadTask.download(task.getUrl(), new TaskDownloadListener(task, downloadTask));
         }catch (Exception e){
             M3U8Log.e("startDownloadTask Error:"+e.getMessage());
         }
@@ -255,6 +462,7 @@ public class M3U8Downloader {
                 String saveDir = MUtils.getSaveFileDir(url);
                 // 删除文件夹
                 boolean isDelete = MUtils.clearDir(new File(saveDir));
+                SegmentStore.getInstance().release(new File(saveDir).getName());
                 // 删除mp4文件
                 if (isDelete) {
                     isDelete = MUtils.clearDir(new File(saveDir + ".mp4"));
@@ -285,7 +493,9 @@ public class M3U8Downloader {
             public void run() {
                 boolean isDelete = true;
                 for (String url : urls){
-                    isDelete = isDelete && MUtils.clearDir(new File(MUtils.getSaveFileDir(url)));
+                    File saveDir = new File(MUtils.getSaveFileDir(url));
+                    isDelete = isDelete && MUtils.clearDir(saveDir);
+                    SegmentStore.getInstance().release(saveDir.getName());
                 }
                 if (listener != null) {
                     if (isDelete) {
@@ -298,50 +508,109 @@ public class M3U8Downloader {
         }).start();
     }
 
-    private OnTaskDownloadListener onTaskDownloadListener = new OnTaskDownloadListener() {
+    /**
+     * 单个任务的下载监听，每个正在下载的任务各自持有一个
+     */
+    private class TaskDownloadListener implements OnTaskDownloadListener {
+        private final M3U8Task task;
+        private final M3U8DownloadTask downloadTask;
         private long lastLength;
+        private long lastProgressTime;
+        /**
+         * 平滑后的下载速度，字节/毫秒，用于估算剩余时间
+         */
+        private double smoothedRate = -1;
         private float downloadProgress;
 
+        TaskDownloadListener(M3U8Task task, M3U8DownloadTask downloadTask) {
+            this.task = task;
+            this.downloadTask = downloadTask;
+        }
+
+        /**
+         * 任务被暂停或重新开始后，旧任务的回调不再处理
+         */
+        private boolean isStale() {
+            return runningTasks.get(task.getUrl()) != downloadTask;
+        }
+
         @Override
         public void onStartDownload(int totalTs, int curTs) {
             M3U8Log.d("onStartDownload: "+totalTs+"|"+curTs);
 
-            currentM3U8Task.setState(M3U8TaskState.DOWNLOADING);
-            downloadProgress = 1.0f * curTs / totalTs;
+            task.setState(M3U8TaskState.DOWNLOADING);
+            updateProgress(totalTs, curTs);
         }
 
         @Override
         public void onDownloading(long totalFileSize, long itemFileSize, int totalTs, int curTs) {
-            if (!m3U8DownLoadTask.isRunning())return;
+            if (!downloadTask.isRunning())return;
             M3U8Log.d("onDownloading: "+totalFileSize+"|"+itemFileSize+"|"+totalTs+"|"+curTs);
 
-            downloadProgress = 1.0f * curTs / totalTs;
+            updateProgress(totalTs, curTs);
 
             if (onM3U8DownloadListener != null){
-                onM3U8DownloadListener.onDownloadItem(currentM3U8Task, itemFileSize, totalTs, curTs);
+                onM3U8DownloadListener.onDownloadItem(task, itemFileSize, totalTs, curTs);
             }
         }
 
         @Override
         public void onSuccess(M3U8 m3U8) {
-            m3U8DownLoadTask.stop();
-            currentM3U8Task.setM3U8(m3U8);
-            currentM3U8Task.setState( M3U8TaskState.SUCCESS);
+            downloadTask.stop();
+            if (isStale())return;
+            task.setM3U8(m3U8);
+            task.setState( M3U8TaskState.SUCCESS);
             if (onM3U8DownloadListener != null) {
-                onM3U8DownloadListener.onDownloadSuccess(currentM3U8Task);
+                onM3U8DownloadListener.onDownloadSuccess(task);
             }
             M3U8Log.d("m3u8 Downloader onSuccess: "+ m3U8);
-            downloadNextTask();
+            finishTask(task);
+
+        }
+
+        /**
+         * 预检拿到总字节数时按字节计算进度，否则按切片个数
+         */
+        private void updateProgress(int totalTs, int curTs) {
+            long totalBytes = downloadTask.getTotalBytes();
+            if (totalBytes > 0) {
+                downloadProgress = Math.min(1.0f, 1.0f * downloadTask.getCompletedBytes() / totalBytes);
+            } else {
+                downloadProgress = 1.0f * curTs / totalTs;
+            }
+        }
 
+        /**
+         * 按平滑后的速度估算剩余时间
+         */
+        private void updateEta(long curLength) {
+            long now = System.currentTimeMillis();
+            if (lastProgressTime > 0 && now > lastProgressTime) {
+                double rate = 1.0 * (curLength - lastLength) / (now - lastProgressTime);
+                smoothedRate = smoothedRate < 0 ? rate : smoothedRate * 0.7 + rate * 0.3;
+            }
+            lastProgressTime = now;
+            long totalBytes = downloadTask.getTotalBytes();
+            task.setTotalBytes(totalBytes);
+            if (totalBytes > 0 && smoothedRate > 0) {
+                long remaining = Math.max(0, totalBytes - downloadTask.getCompletedBytes());
+                task.setEta((long) (remaining / smoothedRate / 1000));
+            } else {
+                task.setEta(-1);
+            }
         }
 
         @Override
         public void onProgress(long curLength) {
             if (curLength - lastLength > 0) {
-                currentM3U8Task.setProgress(downloadProgress);
-                currentM3U8Task.setSpeed(curLength - lastLength);
+                updateProgress(downloadTask.getTotalTs(), downloadTask.getCurTs());
+                updateEta(curLength);
+                task.setProgress(downloadProgress);
+                task.setSpeed(curLength - lastLength);
+                task.setRetryCount(downloadTask.getRetryCount());
+                task.setPlayableMillis(downloadTask.getPlayableMillis());
                 if (onM3U8DownloadListener != null ){
-                    onM3U8DownloadListener.onDownloadProgress(currentM3U8Task);
+                    onM3U8DownloadListener.onDownloadProgress(task);
                 }
                 lastLength = curLength;
             }
@@ -349,11 +618,11 @@ public class M3U8Downloader {
 
         @Override
         public void onStart() {
-            currentM3U8Task.setState(M3U8TaskState.PREPARE);
+            task.setState(M3U8TaskState.PREPARE);
             if (onM3U8DownloadListener != null){
-                onM3U8DownloadListener.onDownloadPrepare(currentM3U8Task);
+                onM3U8DownloadListener.onDownloadPrepare(task);
             }
-            M3U8Log.d("onDownloadPrepare: "+ currentM3U8Task.getUrl());
+            M3U8Log.d("onDownloadPrepare: "+ task.getUrl());
         }
 
         @Override
@@ -365,18 +634,20 @@ public class M3U8Downloader {
 
         @Override
         public void onError(Throwable errorMsg) {
-            if (errorMsg.getMessage() != null && errorMsg.getMessage().contains("ENOSPC")){
-                currentM3U8Task.setState(M3U8TaskState.ENOSPC);
+            if (isStale())return;
+            if (errorMsg instanceof InsufficientSpaceException
+                    || (errorMsg.getMessage() != null && errorMsg.getMessage().contains("ENOSPC"))){
+                task.setState(M3U8TaskState.ENOSPC);
             }else {
-                currentM3U8Task.setState(M3U8TaskState.ERROR);
+                task.setState(M3U8TaskState.ERROR);
             }
             if (onM3U8DownloadListener != null) {
-                onM3U8DownloadListener.onDownloadError(currentM3U8Task, errorMsg);
+                onM3U8DownloadListener.onDownloadError(task, errorMsg);
             }
             M3U8Log.e("onError: " + errorMsg.getMessage());
-            downloadNextTask();
+            finishTask(task);
         }
 
-    };
+    }
 
 }
@@ -19,11 +19,27 @@ public class M3U8DownloaderConfig {
 
     private static final String TAG_SAVE_DIR = "TAG_SAVE_DIR_M3U8";
     private static final String TAG_THREAD_COUNT = "TAG_THREAD_COUNT_M3U8";
+    private static final String TAG_MAX_THREAD_COUNT = "TAG_MAX_THREAD_COUNT_M3U8";
     private static final String TAG_CONN_TIMEOUT = "TAG_CONN_TIMEOUT_M3U8";
     private static final String TAG_READ_TIMEOUT = "TAG_READ_TIMEOUT_M3U8";
     private static final String TAG_DEBUG = "TAG_DEBUG_M3U8";
     private static final String TAG_SHOW_NOTIFICATION = "TAG_SHOW_NOTIFICATION_M3U8";
     private static final String TAG_IS_CONVERT = "TAG_IS_CONVERT";
+    private static final String TAG_MAX_TASK_COUNT = "TAG_MAX_TASK_COUNT_M3U8";
+    private static final String TAG_GLOBAL_THREAD_COUNT = "TAG_GLOBAL_THREAD_COUNT_M3U8";
+    private static final String TAG_MAX_CONNECTIONS_PER_HOST = "TAG_MAX_CONNECTIONS_PER_HOST_M3U8";
+    private static final String TAG_RETRY_COUNT = "TAG_RETRY_COUNT_M3U8";
+    private static final String TAG_BUFFER_SIZE = "TAG_BUFFER_SIZE_M3U8";
+    private static final String TAG_SEQUENTIAL = "TAG_SEQUENTIAL_M3U8";
+    private static final String TAG_NIO_ENABLED = "TAG_NIO_ENABLED_M3U8";
+    private static final String TAG_CHUNK_THRESHOLD = "TAG_CHUNK_THRESHOLD_M3U8";
+    private static final String TAG_MAX_HEDGES = "TAG_MAX_HEDGES_M3U8";
+    private static final String TAG_SEGMENT_CACHE = "TAG_SEGMENT_CACHE_M3U8";
+    private static final String TAG_PREFLIGHT = "TAG_PREFLIGHT_M3U8";
+    private static final String TAG_PREFETCH_COUNT = "TAG_PREFETCH_COUNT_M3U8";
+    private static final String TAG_RANGE_MERGE_SIZE = "TAG_RANGE_MERGE_SIZE_M3U8";
+    private static final String TAG_LOOK_AHEAD_SECONDS = "TAG_LOOK_AHEAD_SECONDS_M3U8";
+    private static final String TAG_RETRY_STATUS_CODES = "TAG_RETRY_STATUS_CODES_M3U8";
 
     public static M3U8DownloaderConfig build(Context context){
         SPHelper.init(context);
@@ -39,8 +55,10 @@ public class M3U8DownloaderConfig {
         return SPHelper.getString(TAG_SAVE_DIR, Environment.getExternalStorageDirectory().getPath() + File.separator + "M3u8Downloader");
     }
 
+    /**
+     * 单个host初始同时下载的切片数，下载过程中会根据吞吐量在1到maxThreadCount之间自动调整
+     */
     public M3U8DownloaderConfig setThreadCount(int threadCount){
-        if (threadCount > 5) threadCount = 5;
         if (threadCount <= 0) threadCount = 1;
         SPHelper.putInt(TAG_THREAD_COUNT, threadCount);
         return this;
@@ -50,6 +68,211 @@ public class M3U8DownloaderConfig {
        return SPHelper.getInt(TAG_THREAD_COUNT, 3);
     }
 
+    /**
+     * 单个host自动调整时最多同时下载的切片数
+     */
+    public M3U8DownloaderConfig setMaxThreadCount(int maxThreadCount){
+        if (maxThreadCount <= 0) maxThreadCount = 1;
+        SPHelper.putInt(TAG_MAX_THREAD_COUNT, maxThreadCount);
+        return this;
+    }
+
+    public static int getMaxThreadCount(){
+        return SPHelper.getInt(TAG_MAX_THREAD_COUNT, 16);
+    }
+
+    /**
+     * 同时下载的任务数，默认为1，即按队列顺序逐个下载
+     */
+    public M3U8DownloaderConfig setMaxTaskCount(int maxTaskCount){
+        if (maxTaskCount <= 0) maxTaskCount = 1;
+        SPHelper.putInt(TAG_MAX_TASK_COUNT, maxTaskCount);
+        return this;
+    }
+
+    public static int getMaxTaskCount(){
+        return SPHelper.getInt(TAG_MAX_TASK_COUNT, 1);
+    }
+
+    /**
+     * 所有任务共享的最大切片下载线程数
+     */
+    public M3U8DownloaderConfig setGlobalThreadCount(int globalThreadCount){
+        if (globalThreadCount <= 0) globalThreadCount = 1;
+        SPHelper.putInt(TAG_GLOBAL_THREAD_COUNT, globalThreadCount);
+        return this;
+    }
+
+    public static int getGlobalThreadCount(){
+        return SPHelper.getInt(TAG_GLOBAL_THREAD_COUNT, 16);
+    }
+
+    /**
+     * 同一个host最多同时占用的连接数，修改后对之后的请求生效；
+     * 系统连接池保留的空闲连接数只在初始化时设置一次
+     */
+    public M3U8DownloaderConfig setMaxConnectionsPerHost(int maxConnectionsPerHost){
+        if (maxConnectionsPerHost <= 0) maxConnectionsPerHost = 1;
+        SPHelper.putInt(TAG_MAX_CONNECTIONS_PER_HOST, maxConnectionsPerHost);
+        return this;
+    }
+
+    public static int getMaxConnectionsPerHost(){
+        return SPHelper.getInt(TAG_MAX_CONNECTIONS_PER_HOST, 16);
+    }
+
+    /**
+     * 单个切片失败后的最大重试次数，用完后任务才会失败
+     */
+    public M3U8DownloaderConfig setRetryCount(int retryCount){
+        if (retryCount < 0) retryCount = 0;
+        SPHelper.putInt(TAG_RETRY_COUNT, retryCount);
+        return this;
+    }
+
+    public static int getRetryCount(){
+        return SPHelper.getInt(TAG_RETRY_COUNT, 3);
+    }
+
+    /**
+     * 需要重试的响应码，逗号分隔
+     */
+    public M3U8DownloaderConfig setRetryStatusCodes(String retryStatusCodes){
+        SPHelper.putString(TAG_RETRY_STATUS_CODES, retryStatusCodes);
+        return this;
+    }
+
+    public static String getRetryStatusCodes(){
+        return SPHelper.getString(TAG_RETRY_STATUS_CODES, "408,429,500,502,503,504");
+    }
+
+    /**
+     * 下载、合并、解密使用的缓冲区大小，单位字节，最小64KB
+     */
+    public M3U8DownloaderConfig setBufferSize(int bufferSize){
+        if (bufferSize < 64 * 1024) bufferSize = 64 * 1024;
+        SPHelper.putInt(TAG_BUFFER_SIZE, bufferSize);
+        return this;
+    }
+
+    public static int getBufferSize(){
+        return SPHelper.getInt(TAG_BUFFER_SIZE, 64 * 1024);
+    }
+
+    /**
+     * 顺序下载：按播放顺序推进，已下载的部分可以边下边播
+     */
+    public M3U8DownloaderConfig setSequentialDownload(boolean sequential){
+        SPHelper.putBoolean(TAG_SEQUENTIAL, sequential);
+        return this;
+    }
+
+    public static boolean isSequentialDownload(){
+        return SPHelper.getBoolean(TAG_SEQUENTIAL, false);
+    }
+
+    /**
+     * 顺序下载时，最多下载到可播放位置之后多少秒
+     */
+    public M3U8DownloaderConfig setLookAheadSeconds(int lookAheadSeconds){
+        if (lookAheadSeconds < 1) lookAheadSeconds = 1;
+        SPHelper.putInt(TAG_LOOK_AHEAD_SECONDS, lookAheadSeconds);
+        return this;
+    }
+
+    public static int getLookAheadSeconds(){
+        return SPHelper.getInt(TAG_LOOK_AHEAD_SECONDS, 60);
+    }
+
+    /**
+     * 使用NIO传输http切片，一个线程驱动所有传输；https仍使用HttpURLConnection。
+     * 实验性选项，默认关闭；同时传输的切片数仍受全局并发数和每个host连接数的限制
+     */
+    public M3U8DownloaderConfig setNioEnabled(boolean nioEnabled){
+        SPHelper.putBoolean(TAG_NIO_ENABLED, nioEnabled);
+        return this;
+    }
+
+    public static boolean isNioEnabled(){
+        return SPHelper.getBoolean(TAG_NIO_ENABLED, false);
+    }
+
+    /**
+     * 切片大于这个字节数且服务器支持Range时，分成几段并行下载；0为不分段
+     */
+    public M3U8DownloaderConfig setChunkThreshold(int chunkThreshold){
+        if (chunkThreshold < 0) chunkThreshold = 0;
+        SPHelper.putInt(TAG_CHUNK_THRESHOLD, chunkThreshold);
+        return this;
+    }
+
+    public static int getChunkThreshold(){
+        return SPHelper.getInt(TAG_CHUNK_THRESHOLD, 8 * 1024 * 1024);
+    }
+
+    /**
+     * 慢切片的对冲请求最多同时有几个；0为不发对冲请求
+     */
+    public M3U8DownloaderConfig setMaxHedges(int maxHedges){
+        if (maxHedges < 0) maxHedges = 0;
+        SPHelper.putInt(TAG_MAX_HEDGES, maxHedges);
+        return this;
+    }
+
+    public static int getMaxHedges(){
+        return SPHelper.getInt(TAG_MAX_HEDGES, 2);
+    }
+
+    /**
+     * 不同任务之间共享相同url的切片，已经下载过的直接链接，不再重复下载
+     */
+    public M3U8DownloaderConfig setSegmentCacheEnabled(boolean segmentCacheEnabled){
+        SPHelper.putBoolean(TAG_SEGMENT_CACHE, segmentCacheEnabled);
+        return this;
+    }
+
+    public static boolean isSegmentCacheEnabled(){
+        return SPHelper.getBoolean(TAG_SEGMENT_CACHE, true);
+    }
+
+    /**
+     * 下载前并行发HEAD请求得到总大小，检查剩余空间，进度按字节计算
+     */
+    public M3U8DownloaderConfig setPreflightEnabled(boolean preflightEnabled){
+        SPHelper.putBoolean(TAG_PREFLIGHT, preflightEnabled);
+        return this;
+    }
+
+    public static boolean isPreflightEnabled(){
+        return SPHelper.getBoolean(TAG_PREFLIGHT, false);
+    }
+
+    /**
+     * 下载时提前获取队列中接下来几个任务的m3u8和key；0为不预取
+     */
+    public M3U8DownloaderConfig setPrefetchCount(int prefetchCount){
+        if (prefetchCount < 0) prefetchCount = 0;
+        SPHelper.putInt(TAG_PREFETCH_COUNT, prefetchCount);
+        return this;
+    }
+
+    public static int getPrefetchCount(){
+        return SPHelper.getInt(TAG_PREFETCH_COUNT, 2);
+    }
+
+    /**
+     * 同一个文件中相邻的#EXT-X-BYTERANGE切片合并成一个Range请求，合并后最多这么多字节；0为不合并
+     */
+    public M3U8DownloaderConfig setRangeMergeSize(int rangeMergeSize){
+        if (rangeMergeSize < 0) rangeMergeSize = 0;
+        SPHelper.putInt(TAG_RANGE_MERGE_SIZE, rangeMergeSize);
+        return this;
+    }
+
+    public static int getRangeMergeSize(){
+        return SPHelper.getInt(TAG_RANGE_MERGE_SIZE, 4 * 1024 * 1024);
+    }
+
     public M3U8DownloaderConfig setConnTimeout(int connTimeout){
         SPHelper.putInt(TAG_CONN_TIMEOUT, connTimeout);
         return this;
@@ -1,8 +1,14 @@
 package vincent.m3u8_downloader;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import vincent.m3u8_downloader.bean.M3U8;
+import vincent.m3u8_downloader.bean.VariantPolicy;
+import vincent.m3u8_downloader.utils.M3U8Log;
 import vincent.m3u8_downloader.utils.MUtils;
 
 /**
@@ -11,11 +17,24 @@ import vincent.m3u8_downloader.utils.MUtils;
  * 版    本：
  * 创建日期：2017/11/15
  * 描    述: 获取M3U8信息的管理器
+ * 队列中等待的任务可以提前预取m3u8，轮到它时不用再等网络请求
  * ================================================
  */
 public class M3U8InfoManger {
+    /**
+     * 预取的m3u8最多保留多久，过期的地址里的签名可能已经失效
+     */
+    private static final long PREFETCH_TTL = 10 * 60 * 1000;
+    /**
+     * 最多缓存几个预取结果
+     */
+    private static final int MAX_PREFETCH = 8;
+
     private static M3U8InfoManger mM3U8InfoManger;
-    private OnM3U8InfoListener onM3U8InfoListener;
+    /**
+     * 预取的m3u8，key为url
+     */
+    private final Map<String, Prefetch> prefetches = new LinkedHashMap<>();
 
     private M3U8InfoManger() {
     }
@@ -30,26 +49,100 @@ public class M3U8InfoManger {
     }
 
     /**
-     * 获取m3u8信息
+     * 获取m3u8信息，主m3u8选第一个码率
+     *
+     * @param url
+     * @param onM3U8InfoListener
+     */
+    public void getM3U8Info(String url, OnM3U8InfoListener onM3U8InfoListener) {
+        getM3U8Info(url, null, onM3U8InfoListener);
+    }
+
+    /**
+     * 获取m3u8信息，已经按相同策略预取过的直接使用预取结果，正在预取的等它完成
      *
      * @param url
+     * @param policy 主m3u8的码率选择策略，为null时选第一个
      * @param onM3U8InfoListener
      */
-    public synchronized void getM3U8Info(final String url, OnM3U8InfoListener onM3U8InfoListener) {
-        this.onM3U8InfoListener = onM3U8InfoListener;
+    public void getM3U8Info(String url, VariantPolicy policy, OnM3U8InfoListener onM3U8InfoListener) {
+        getM3U8Info(url, policy, null, onM3U8InfoListener);
+    }
+
+    /**
+     * 获取m3u8信息，没有预取结果时边下载边解析，每解析到一个切片回调onM3U8ParseListener
+     * 使用预取结果时不回调切片，直接回调onSuccess
+     *
+     * @param url
+     * @param policy 主m3u8的码率选择策略，为null时选第一个
+     * @param onM3U8ParseListener 切片回调，可以为null
+     * @param onM3U8InfoListener
+     */
+    public void getM3U8Info(final String url, final VariantPolicy policy, final OnM3U8ParseListener onM3U8ParseListener,
+                            final OnM3U8InfoListener onM3U8InfoListener) {
         onM3U8InfoListener.onStart();
+        final Prefetch prefetch = takePrefetch(url, policy);
         new Thread() {
             @Override
             public void run() {
                 try {
-                    M3U8 m3u8 = MUtils.parseIndex(url);
-                    handlerSuccess(m3u8);
+                    M3U8 m3u8 = prefetch == null ? null : prefetch.await();
+                    if (m3u8 == null) {
+                        m3u8 = MUtils.parseIndex(url, policy, onM3U8ParseListener);
+                    } else {
+                        M3U8Log.d("use prefetched m3u8: " + url);
+                    }
+                    handlerSuccess(onM3U8InfoListener, m3u8);
+                } catch (IOException e) {
+                    handlerError(onM3U8InfoListener, e);
+                }
+            }
+        }.start();
+
+    }
+
+    /**
+     * 在后台提前获取m3u8（包括嵌套的m3u8和key），之后{@link #getM3U8Info}可以直接使用
+     *
+     * @param url
+     * @param policy 主m3u8的码率选择策略，为null时选第一个
+     */
+    public void prefetch(final String url, final VariantPolicy policy) {
+        final Prefetch prefetch;
+        synchronized (prefetches) {
+            Prefetch old = prefetches.get(url);
+            if (old != null && !old.isExpired() && old.isSamePolicy(policy)) return;
+            prefetch = new Prefetch(policy);
+            prefetches.remove(url);
+            prefetches.put(url, prefetch);
+            // 超出上限时丢掉最早的
+            Iterator<Map.Entry<String, Prefetch>> iterator = prefetches.entrySet().iterator();
+            while (prefetches.size() > MAX_PREFETCH && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        new Thread("M3U8Prefetch") {
+            @Override
+            public void run() {
+                M3U8 m3u8 = null;
+                try {
+                    m3u8 = MUtils.parseIndex(url, policy);
+                    M3U8Log.d("prefetched m3u8: " + url);
                 } catch (IOException e) {
-                    handlerError(e);
+                    // 预取失败不影响下载，开始时再重新获取
+                    M3U8Log.d("prefetch m3u8 failed: " + e.getMessage());
                 }
+                prefetch.complete(m3u8);
             }
         }.start();
+    }
 
+    private Prefetch takePrefetch(String url, VariantPolicy policy) {
+        synchronized (prefetches) {
+            Prefetch prefetch = prefetches.remove(url);
+            return prefetch == null || prefetch.isExpired() || !prefetch.isSamePolicy(policy) ? null : prefetch;
+        }
     }
 
     /**
@@ -57,7 +150,7 @@ public class M3U8InfoManger {
      *
      * @param e
      */
-    private void handlerError(Throwable e) {
+    private void handlerError(OnM3U8InfoListener onM3U8InfoListener, Throwable e) {
         onM3U8InfoListener.onError(e);
     }
 
@@ -66,7 +159,50 @@ public class M3U8InfoManger {
      *
      * @param m3u8
      */
-    private void handlerSuccess(M3U8 m3u8) {
+    private void handlerSuccess(OnM3U8InfoListener onM3U8InfoListener, M3U8 m3u8) {
         onM3U8InfoListener.onSuccess(m3u8);
     }
+
+    /**
+     * 一次预取
+     */
+    private static class Prefetch {
+        private final long createTime = System.currentTimeMillis();
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final VariantPolicy policy;
+        private volatile M3U8 m3u8;
+
+        Prefetch(VariantPolicy policy) {
+            this.policy = policy;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() - createTime > PREFETCH_TTL;
+        }
+
+        /**
+         * 码率选择策略不同时选出的可能是另一个码率
+         */
+        boolean isSamePolicy(VariantPolicy other) {
+            return policy == null ? other == null : policy.equals(other);
+        }
+
+        void complete(M3U8 m3u8) {
+            this.m3u8 = m3u8;
+            latch.countDown();
+        }
+
+        /**
+         * 等待预取完成
+         * @return 预取失败时返回null
+         */
+        M3U8 await() {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                return null;
+            }
+            return m3u8;
+        }
+    }
 }
@@ -0,0 +1,420 @@
+package vincent.m3u8_downloader;
+
+import android.text.TextUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vincent.m3u8_downloader.bean.M3U8;
+import vincent.m3u8_downloader.bean.M3U8Key;
+import vincent.m3u8_downloader.bean.M3U8Map;
+import vincent.m3u8_downloader.bean.M3U8Ts;
+import vincent.m3u8_downloader.utils.BufferPool;
+import vincent.m3u8_downloader.utils.InitSectionCache;
+import vincent.m3u8_downloader.utils.KeyCache;
+import vincent.m3u8_downloader.utils.M3U8Log;
+import vincent.m3u8_downloader.utils.MD5Utils;
+import vincent.m3u8_downloader.utils.MUtils;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 本地HLS播放服务
+ * 只监听127.0.0.1，直接读取{@link MUtils#getSaveFileDir(String)}下的文件，地址格式为
+ * http://127.0.0.1:port/{保存目录名}/local.m3u8。
+ * 任务下载中时m3u8按任务的切片列表实时生成；请求的切片还没下载时，把它提到最前面下载，
+ * 并阻塞等待到下载完成或超时，播放器不用等整个任务下载完。
+ * ================================================
+ */
+public class M3U8LocalServer {
+    private static final String M3U8_FILE_NAME = "local.m3u8";
+    private static final String KEY_FILE_SUFFIX = ".key";
+    private static final String MAP_FILE_SUFFIX = ".mp4";
+    /**
+     * 等待切片下载的超时时间
+     */
+    private static final long SEGMENT_WAIT_TIMEOUT = 30 * 1000;
+
+    private static M3U8LocalServer instance;
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+
+    private M3U8LocalServer() {
+    }
+
+    public static M3U8LocalServer getInstance() {
+        synchronized (M3U8LocalServer.class) {
+            if (instance == null) {
+                instance = new M3U8LocalServer();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 启动服务，已经启动时直接返回当前端口
+     * @param port 端口，0表示随机分配
+     * @return 实际监听的端口
+     * @throws IOException
+     */
+    public synchronized int start(int port) throws IOException {
+        if (serverSocket != null && !serverSocket.isClosed()) {
+            return serverSocket.getLocalPort();
+        }
+        final ServerSocket socket = new ServerSocket(port, 16, InetAddress.getByName("127.0.0.1"));
+        serverSocket = socket;
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "M3U8LocalServer-" + index.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final ExecutorService pool = executor;
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!socket.isClosed()) {
+                    try {
+                        final Socket client = socket.accept();
+                        pool.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(client);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (!socket.isClosed()) {
+                            M3U8Log.e("local server accept error: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        }, "M3U8LocalServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        M3U8Log.d("local server started, port: " + socket.getLocalPort());
+        return socket.getLocalPort();
+    }
+
+    /**
+     * 停止服务
+     */
+    public synchronized void stop() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+            }
+            serverSocket = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return serverSocket != null && !serverSocket.isClosed();
+    }
+
+    /**
+     * 获取任务的播放地址
+     * @param url 任务url
+     * @return 服务未启动时返回null
+     */
+    public synchronized String getPlaybackUrl(String url) {
+        if (!isRunning() || TextUtils.isEmpty(url)) return null;
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/" + MD5Utils.encode(url) + "/" + M3U8_FILE_NAME;
+    }
+
+    private void handle(Socket client) {
+        try {
+            client.setSoTimeout(30 * 1000);
+            InputStream in = client.getInputStream();
+            OutputStream out = client.getOutputStream();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "ISO-8859-1"));
+            String requestLine = reader.readLine();
+            if (TextUtils.isEmpty(requestLine)) return;
+            String range = null;
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    range = line.substring(colon + 1).trim();
+                }
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                sendStatus(out, 400, "Bad Request");
+                return;
+            }
+            String method = parts[0];
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                sendStatus(out, 405, "Method Not Allowed");
+                return;
+            }
+            serve(out, parts[1], range, "HEAD".equals(method));
+        } catch (SocketException e) {
+            // 播放器拖动进度时会主动断开，忽略
+        } catch (Exception e) {
+            M3U8Log.e("local server error: " + e.getMessage());
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void serve(OutputStream out, String path, String range, boolean headOnly) throws IOException, InterruptedException {
+        int query = path.indexOf('?');
+        if (query >= 0) path = path.substring(0, query);
+        String[] segments = path.split("/");
+        // 只允许 /{目录名}/{文件名}，避免访问保存目录以外的文件
+        if (segments.length != 3 || segments[1].length() == 0 || segments[2].length() == 0
+                || segments[1].contains("..") || segments[2].contains("..")) {
+            sendStatus(out, 404, "Not Found");
+            return;
+        }
+        String dirName = segments[1];
+        String fileName = segments[2];
+        File dir = new File(M3U8DownloaderConfig.getSaveDir(), dirName);
+        M3U8DownloadTask task = M3U8Downloader.getInstance().findRunningTask(dirName);
+
+        if (M3U8_FILE_NAME.equals(fileName)) {
+            if (task != null && task.getCurrentM3U8() != null) {
+                byte[] playlist = buildPlaylist(task).getBytes("UTF-8");
+                sendBytes(out, playlist, "application/vnd.apple.mpegurl", headOnly);
+            } else {
+                sendFile(out, new File(dir, M3U8_FILE_NAME), "application/vnd.apple.mpegurl", range, headOnly);
+            }
+            return;
+        }
+        if (fileName.endsWith(KEY_FILE_SUFFIX)) {
+            File keyFile = new File(dir, fileName);
+            M3U8Key key = task != null && !keyFile.exists() ? findKey(task, fileName) : null;
+            if (key != null) {
+                // 下载中key还没保存到目录，从缓存中取
+                sendBytes(out, KeyCache.getInstance().get(key.getUrl()), "application/octet-stream", headOnly);
+            } else {
+                sendFile(out, keyFile, "application/octet-stream", range, headOnly);
+            }
+            return;
+        }
+        if (fileName.endsWith(MAP_FILE_SUFFIX)) {
+            File mapFile = new File(dir, fileName);
+            M3U8Map map = task != null && !mapFile.exists() ? findMap(task, fileName) : null;
+            if (map != null) {
+                // 下载中初始化段还没保存到目录，从缓存中取
+                sendBytes(out, InitSectionCache.getInstance().get(map), "video/mp4", headOnly);
+            } else {
+                sendFile(out, mapFile, "video/mp4", range, headOnly);
+            }
+            return;
+        }
+        File file = new File(dir, fileName);
+        if (!file.exists() && task != null) {
+            int index = indexOfTsFile(task, fileName);
+            if (index >= 0 && !task.awaitTsFile(index, SEGMENT_WAIT_TIMEOUT)) {
+                sendStatus(out, 504, "Gateway Timeout");
+                return;
+            }
+        }
+        sendFile(out, file, "video/mp2t", range, headOnly);
+    }
+
+    private int indexOfTsFile(M3U8DownloadTask task, String fileName) {
+        M3U8 m3U8 = task.getCurrentM3U8();
+        if (m3U8 == null) return -1;
+        int size = m3U8.getTsList().size();
+        for (int i = 0; i < size; i++) {
+            File file = task.getTsFile(i);
+            if (file != null && file.getName().equals(fileName)) return i;
+        }
+        return -1;
+    }
+
+    private M3U8Key findKey(M3U8DownloadTask task, String fileName) {
+        M3U8 m3U8 = task.getCurrentM3U8();
+        if (m3U8 == null) return null;
+        for (M3U8Key key : m3U8.getKeys()) {
+            if (key.getUrl() != null && key.obtainKeyFileName().equals(fileName)) return key;
+        }
+        return null;
+    }
+
+    private M3U8Map findMap(M3U8DownloadTask task, String fileName) {
+        M3U8 m3U8 = task.getCurrentM3U8();
+        if (m3U8 == null) return null;
+        for (M3U8Map map : m3U8.getMaps()) {
+            if (map.obtainMapFileName().equals(fileName)) return map;
+        }
+        return null;
+    }
+
+    /**
+     * 按任务的切片列表生成m3u8，切片使用本地保存的文件名
+     * 正在录制的直播不加#EXT-X-ENDLIST，播放器会继续刷新
+     */
+    private String buildPlaylist(M3U8DownloadTask task) {
+        M3U8 m3U8 = task.getCurrentM3U8();
+        List<M3U8Ts> tsList = m3U8.getTsList();
+        // 录制直播时列表会在其他线程追加，只取当前的长度
+        int size = tsList.size();
+        float maxSeconds = 0;
+        for (int i = 0; i < size; i++) {
+            maxSeconds = Math.max(maxSeconds, tsList.get(i).getSeconds());
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:").append(m3U8.getMaps().isEmpty() ? 3 : 6).append("\n");
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(tsList.isEmpty() ? 0 : tsList.get(0).getSequence()).append("\n");
+        sb.append("#EXT-X-TARGETDURATION:").append((int) Math.ceil(maxSeconds)).append("\n");
+        M3U8Key key = null;
+        M3U8Map map = null;
+        for (int i = 0; i < size; i++) {
+            File file = task.getTsFile(i);
+            if (file == null) continue;
+            if (tsList.get(i).getKey() != key) {
+                key = tsList.get(i).getKey();
+                sb.append(M3U8Key.obtainLocalTag(key)).append("\n");
+            }
+            if (tsList.get(i).getMap() != map) {
+                map = tsList.get(i).getMap();
+                if (map != null) {
+                    sb.append(map.obtainLocalTag()).append("\n");
+                }
+            }
+            sb.append("#EXTINF:").append(tsList.get(i).getSeconds()).append(",\n");
+            sb.append(file.getName()).append("\n");
+        }
+        if (!task.isRecording()) {
+            sb.append("#EXT-X-ENDLIST\n");
+        }
+        return sb.toString();
+    }
+
+    private void sendStatus(OutputStream out, int code, String message) throws IOException {
+        byte[] body = message.getBytes("UTF-8");
+        writeHeader(out, code + " " + message, "text/plain", body.length, null);
+        out.write(body);
+        out.flush();
+    }
+
+    private void sendBytes(OutputStream out, byte[] bytes, String contentType, boolean headOnly) throws IOException {
+        writeHeader(out, "200 OK", contentType, bytes.length, null);
+        if (!headOnly) {
+            out.write(bytes);
+        }
+        out.flush();
+    }
+
+    /**
+     * 发送文件，支持单个Range
+     */
+    private void sendFile(OutputStream out, File file, String contentType, String range, boolean headOnly) throws IOException {
+        if (!file.isFile()) {
+            sendStatus(out, 404, "Not Found");
+            return;
+        }
+        long length = file.length();
+        long start = 0;
+        long end = length - 1;
+        boolean partial = false;
+        if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+            String spec = range.substring(6).trim();
+            int dash = spec.indexOf('-');
+            if (dash >= 0) {
+                String firstSpec = spec.substring(0, dash).trim();
+                String lastSpec = spec.substring(dash + 1).trim();
+                long first = MUtils.parseLong(firstSpec, -1);
+                long last = MUtils.parseLong(lastSpec, -1);
+                if (firstSpec.length() == 0 && last > 0) {
+                    // bytes=-N 表示最后N个字节
+                    start = Math.max(0, length - last);
+                    partial = true;
+                } else if (first >= 0 && (lastSpec.length() == 0 || last >= first)) {
+                    start = first;
+                    if (lastSpec.length() > 0) end = Math.min(last, length - 1);
+                    partial = true;
+                }
+                // 格式不对的Range忽略，返回整个文件
+                if (partial && start >= length) {
+                    writeHeader(out, "416 Range Not Satisfiable", contentType, 0, "bytes */" + length);
+                    out.flush();
+                    return;
+                }
+            }
+        }
+        long count = end - start + 1;
+        if (partial) {
+            writeHeader(out, "206 Partial Content", contentType, count, "bytes " + start + "-" + end + "/" + length);
+        } else {
+            writeHeader(out, "200 OK", contentType, count, null);
+        }
+        if (headOnly) {
+            out.flush();
+            return;
+        }
+        FileInputStream fis = null;
+        byte[] buf = BufferPool.getInstance().acquire();
+        try {
+            fis = new FileInputStream(file);
+            long skipped = 0;
+            while (skipped < start) {
+                long n = fis.skip(start - skipped);
+                if (n <= 0) throw new IOException("skip failed");
+                skipped += n;
+            }
+            long remaining = count;
+            int len;
+            while (remaining > 0 && (len = fis.read(buf, 0, (int) Math.min(buf.length, remaining))) != -1) {
+                out.write(buf, 0, len);
+                remaining -= len;
+            }
+            out.flush();
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                }
+            }
+            BufferPool.getInstance().release(buf);
+        }
+    }
+
+    private void writeHeader(OutputStream out, String status, String contentType, long contentLength, String contentRange) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(status).append("\r\n");
+        sb.append("Content-Type: ").append(contentType).append("\r\n");
+        sb.append("Content-Length: ").append(contentLength).append("\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        if (contentRange != null) {
+            sb.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        sb.append("Connection: close\r\n\r\n");
+        out.write(sb.toString().getBytes("ISO-8859-1"));
+    }
+}
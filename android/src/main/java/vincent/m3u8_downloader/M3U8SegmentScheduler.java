@@ -0,0 +1,440 @@
+package vincent.m3u8_downloader;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import vincent.m3u8_downloader.utils.M3U8Log;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 全局切片调度器
+ * 所有任务的切片都提交到这里，由同一组工作线程执行。
+ * 全局同时下载的切片数不超过globalThreadCount，同一个host的任务共用
+ * {@link HostConcurrencyController}给出的上限，各任务之间按轮询方式公平分配空闲线程。
+ * 同一个任务内按切片序号从小到大执行，重试的切片也按原来的序号排队；设置了
+ * {@link SegmentWindow}的任务只执行窗口内的切片，播放器正在等待的切片可以通过
+ * {@link #promote(String, int)}插队，不受窗口限制。
+ * 切片可以在执行过程中调用{@link #detach()}改为异步完成，工作线程不再等待，
+ * 并发名额保留到异步传输结束。
+ * ================================================
+ */
+class M3U8SegmentScheduler {
+    /**
+     * 工作线程空闲多久后退出
+     */
+    private static final long WORKER_KEEP_ALIVE = 30 * 1000;
+
+    private static M3U8SegmentScheduler instance;
+
+    private final Object lock = new Object();
+    private final List<Lane> lanes = new ArrayList<>();
+    /**
+     * 下一次轮询开始的位置
+     */
+    private int nextLane = 0;
+    /**
+     * 全局最大同时下载切片数
+     */
+    private int maxInFlight;
+    /**
+     * 当前正在下载的切片数
+     */
+    private int inFlight = 0;
+    private int workerCount = 0;
+    private int idleWorkerCount = 0;
+    private int workerIndex = 0;
+    /**
+     * 提交顺序，序号相同时先提交的先执行
+     */
+    private long submitSeq = 0;
+    /**
+     * 当前线程正在执行的切片
+     */
+    private final ThreadLocal<Job> currentJob = new ThreadLocal<>();
+    /**
+     * 延迟提交（重试）使用的定时器
+     */
+    private Timer delayTimer;
+
+    private M3U8SegmentScheduler() {
+        maxInFlight = M3U8DownloaderConfig.getGlobalThreadCount();
+    }
+
+    public static M3U8SegmentScheduler getInstance() {
+        synchronized (M3U8SegmentScheduler.class) {
+            if (instance == null) {
+                instance = new M3U8SegmentScheduler();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 修改全局最大同时下载切片数，运行中生效
+     * @param maxInFlight
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        synchronized (lock) {
+            this.maxInFlight = Math.max(1, maxInFlight);
+            ensureWorkers();
+            lock.notifyAll();
+        }
+    }
+
+    public int getMaxInFlight() {
+        synchronized (lock) {
+            return maxInFlight;
+        }
+    }
+
+    /**
+     * 设置任务所属host的并发控制器，未设置时使用固定的threadCount
+     * @param key 任务标识
+     * @param controller
+     */
+    public void setController(String key, HostConcurrencyController controller) {
+        synchronized (lock) {
+            Lane lane = obtainLane(key);
+            lane.controller = controller;
+            ensureWorkers();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 设置任务的下载窗口，只执行窗口内的切片
+     * @param key 任务标识
+     * @param window 为空时不限制
+     */
+    public void setWindow(String key, SegmentWindow window) {
+        synchronized (lock) {
+            obtainLane(key).window = window;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 并发控制器调整上限、下载窗口后移后调用，唤醒等待的工作线程
+     */
+    public void onLimitChanged() {
+        synchronized (lock) {
+            ensureWorkers();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 提交切片下载
+     * @param key 任务标识
+     * @param index 切片序号，越小越先执行
+     * @param job
+     */
+    public void submit(String key, int index, Runnable job) {
+        synchronized (lock) {
+            Lane lane = obtainLane(key);
+            lane.queue.offer(new Entry(index, submitSeq++, job));
+            ensureWorkers();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 延迟提交切片，用于失败重试。等待期间任务被取消的话不再提交
+     * @param key 任务标识
+     * @param index 切片序号
+     * @param job
+     * @param delay 延迟时间，单位毫秒
+     */
+    public void submitDelayed(String key, final int index, final Runnable job, long delay) {
+        final Lane lane;
+        synchronized (lock) {
+            lane = obtainLane(key);
+            if (delayTimer == null) {
+                delayTimer = new Timer("M3U8SegmentRetry", true);
+            }
+            delayTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (lock) {
+                        if (!lanes.contains(lane)) return;
+                        lane.queue.offer(new Entry(index, submitSeq++, job));
+                        ensureWorkers();
+                        lock.notifyAll();
+                    }
+                }
+            }, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * 提高切片的优先级，排到同一个任务所有切片的前面
+     * @param key 任务标识
+     * @param index 切片序号
+     * @return 切片是否还在排队
+     */
+    public boolean promote(String key, int index) {
+        synchronized (lock) {
+            Lane lane = findLane(key);
+            if (lane == null) return false;
+            Entry found = null;
+            for (Entry entry : lane.queue) {
+                if (entry.index == index) {
+                    found = entry;
+                    break;
+                }
+            }
+            if (found == null) return false;
+            if (!found.urgent) {
+                lane.queue.remove(found);
+                lane.queue.offer(new Entry(index, submitSeq++, found.runnable, true));
+                lock.notifyAll();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 把当前正在执行的切片改为异步完成：run返回后并发名额不释放，
+     * 直到调用返回的Runnable。只能在切片的run中调用
+     * @return 异步传输结束时调用，多次调用只生效一次
+     */
+    public Runnable detach() {
+        final Job job = currentJob.get();
+        if (job == null) {
+            throw new IllegalStateException("detach must be called from a segment job");
+        }
+        job.detached = true;
+        return new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    finishJob(job);
+                    ensureWorkers();
+                    lock.notifyAll();
+                }
+            }
+        };
+    }
+
+    /**
+     * 释放切片占用的并发名额，需持有lock
+     */
+    private void finishJob(Job job) {
+        if (job.finished) return;
+        job.finished = true;
+        inFlight--;
+        job.lane.onFinish();
+    }
+
+    /**
+     * 取消任务：丢弃排队中的切片，并中断正在下载的线程
+     * @param key 任务标识
+     * @return 被丢弃的切片数
+     */
+    public int cancel(String key) {
+        synchronized (lock) {
+            Lane lane = findLane(key);
+            if (lane == null) return 0;
+            lanes.remove(lane);
+            int dropped = lane.queue.size();
+            lane.queue.clear();
+            for (Thread thread : lane.threads) {
+                thread.interrupt();
+            }
+            M3U8Log.d("scheduler cancel " + key + ", dropped: " + dropped);
+            return dropped;
+        }
+    }
+
+    private Lane findLane(String key) {
+        for (Lane lane : lanes) {
+            if (lane.key.equals(key)) return lane;
+        }
+        return null;
+    }
+
+    private Lane obtainLane(String key) {
+        Lane lane = findLane(key);
+        if (lane == null) {
+            lane = new Lane(key, M3U8DownloaderConfig.getThreadCount());
+            lanes.add(lane);
+        }
+        return lane;
+    }
+
+    /**
+     * 有排队任务但没有空闲线程时补充工作线程，需持有lock
+     */
+    private void ensureWorkers() {
+        int pending = 0;
+        for (Lane lane : lanes) {
+            pending += lane.queue.size();
+        }
+        while (pending > idleWorkerCount && workerCount < maxInFlight) {
+            workerCount++;
+            idleWorkerCount++;
+            pending--;
+            Thread worker = new Thread(new Worker(), "M3U8Segment-" + (workerIndex++));
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * 按轮询顺序取出下一个可执行的切片，需持有lock
+     */
+    private Job pollJob() {
+        if (inFlight >= maxInFlight) return null;
+        int size = lanes.size();
+        for (int i = 0; i < size; i++) {
+            int index = (nextLane + i) % size;
+            Lane lane = lanes.get(index);
+            if (lane.hasCapacity() && lane.hasRunnableEntry()) {
+                nextLane = (index + 1) % size;
+                return new Job(lane, lane.queue.poll().runnable);
+            }
+        }
+        return null;
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Job job;
+                synchronized (lock) {
+                    long deadline = System.currentTimeMillis() + WORKER_KEEP_ALIVE;
+                    while ((job = pollJob()) == null) {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0 || workerCount > maxInFlight) {
+                            workerCount--;
+                            idleWorkerCount--;
+                            return;
+                        }
+                        try {
+                            lock.wait(wait);
+                        } catch (InterruptedException e) {
+                            // 取消任务时可能残留中断标记，忽略
+                        }
+                    }
+                    idleWorkerCount--;
+                    inFlight++;
+                    job.lane.onStart();
+                    job.lane.threads.add(Thread.currentThread());
+                }
+                currentJob.set(job);
+                try {
+                    job.runnable.run();
+                } catch (Throwable e) {
+                    M3U8Log.e("segment job error: " + e.getMessage());
+                } finally {
+                    currentJob.remove();
+                    synchronized (lock) {
+                        if (!job.detached) {
+                            finishJob(job);
+                        }
+                        job.lane.threads.remove(Thread.currentThread());
+                        idleWorkerCount++;
+                        lock.notifyAll();
+                    }
+                    // 清除中断标记，线程还要继续给其他任务使用
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    private static class Lane {
+        final String key;
+        final PriorityQueue<Entry> queue = new PriorityQueue<>();
+        final Set<Thread> threads = new HashSet<>();
+        final int limit;
+        HostConcurrencyController controller;
+        SegmentWindow window;
+        int running = 0;
+
+        Lane(String key, int limit) {
+            this.key = key;
+            this.limit = Math.max(1, limit);
+        }
+
+        boolean hasCapacity() {
+            if (controller != null) {
+                return controller.running < controller.getLimit();
+            }
+            return running < limit;
+        }
+
+        /**
+         * 序号最小的切片是否可以执行
+         */
+        boolean hasRunnableEntry() {
+            Entry entry = queue.peek();
+            return entry != null && (entry.urgent || window == null || window.allows(entry.index));
+        }
+
+        void onStart() {
+            running++;
+            if (controller != null) controller.running++;
+        }
+
+        void onFinish() {
+            running--;
+            if (controller != null) controller.running--;
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        final int index;
+        final long seq;
+        final Runnable runnable;
+        /**
+         * 播放器正在等待，优先执行
+         */
+        final boolean urgent;
+
+        Entry(int index, long seq, Runnable runnable) {
+            this(index, seq, runnable, false);
+        }
+
+        Entry(int index, long seq, Runnable runnable, boolean urgent) {
+            this.index = index;
+            this.seq = seq;
+            this.runnable = runnable;
+            this.urgent = urgent;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            if (urgent != o.urgent) return urgent ? -1 : 1;
+            if (index != o.index) return index < o.index ? -1 : 1;
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+
+    private static class Job {
+        final Lane lane;
+        final Runnable runnable;
+        /**
+         * 改为异步完成
+         */
+        boolean detached = false;
+        /**
+         * 已释放并发名额
+         */
+        boolean finished = false;
+
+        Job(Lane lane, Runnable runnable) {
+            this.lane = lane;
+            this.runnable = runnable;
+        }
+    }
+}
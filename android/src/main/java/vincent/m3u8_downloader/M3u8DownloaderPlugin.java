@@ -19,7 +19,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import io.flutter.Log;
@@ -35,6 +37,9 @@ import io.flutter.plugin.common.MethodChannel.Result;
 import io.flutter.plugin.common.PluginRegistry;
 import io.flutter.plugin.common.PluginRegistry.Registrar;
 import vincent.m3u8_downloader.bean.M3U8Task;
+import vincent.m3u8_downloader.bean.VariantPolicy;
+import vincent.m3u8_downloader.net.HttpConnectionPool;
+import vincent.m3u8_downloader.utils.BufferPool;
 import vincent.m3u8_downloader.utils.MD5Utils;
 import vincent.m3u8_downloader.utils.MUtils;
 
@@ -122,6 +127,77 @@ public class M3u8DownloaderPlugin implements FlutterPlugin, PluginRegistry.NewIn
           int threadCount = call.argument("threadCount");
           config.setThreadCount(threadCount);
         }
+        if (call.hasArgument("maxThreadCount") && call.argument("maxThreadCount") != JSONObject.NULL) {
+          int maxThreadCount = call.argument("maxThreadCount");
+          config.setMaxThreadCount(maxThreadCount);
+        }
+        if (call.hasArgument("maxTaskCount") && call.argument("maxTaskCount") != JSONObject.NULL) {
+          int maxTaskCount = call.argument("maxTaskCount");
+          config.setMaxTaskCount(maxTaskCount);
+        }
+        if (call.hasArgument("globalThreadCount") && call.argument("globalThreadCount") != JSONObject.NULL) {
+          int globalThreadCount = call.argument("globalThreadCount");
+          config.setGlobalThreadCount(globalThreadCount);
+          M3U8SegmentScheduler.getInstance().setMaxInFlight(M3U8DownloaderConfig.getGlobalThreadCount());
+        }
+        if (call.hasArgument("maxConnectionsPerHost") && call.argument("maxConnectionsPerHost") != JSONObject.NULL) {
+          int maxConnectionsPerHost = call.argument("maxConnectionsPerHost");
+          config.setMaxConnectionsPerHost(maxConnectionsPerHost);
+        }
+        if (call.hasArgument("bufferSize") && call.argument("bufferSize") != JSONObject.NULL) {
+          int bufferSize = call.argument("bufferSize");
+          config.setBufferSize(bufferSize);
+          BufferPool.getInstance().setBufferSize(M3U8DownloaderConfig.getBufferSize());
+        }
+        if (call.hasArgument("sequential") && call.argument("sequential") != JSONObject.NULL) {
+          boolean sequential = call.argument("sequential");
+          config.setSequentialDownload(sequential);
+        }
+        if (call.hasArgument("lookAheadSeconds") && call.argument("lookAheadSeconds") != JSONObject.NULL) {
+          int lookAheadSeconds = call.argument("lookAheadSeconds");
+          config.setLookAheadSeconds(lookAheadSeconds);
+        }
+        if (call.hasArgument("useNio") && call.argument("useNio") != JSONObject.NULL) {
+          boolean useNio = call.argument("useNio");
+          config.setNioEnabled(useNio);
+        }
+        if (call.hasArgument("chunkThreshold") && call.argument("chunkThreshold") != JSONObject.NULL) {
+          int chunkThreshold = call.argument("chunkThreshold");
+          config.setChunkThreshold(chunkThreshold);
+        }
+        if (call.hasArgument("maxHedges") && call.argument("maxHedges") != JSONObject.NULL) {
+          int maxHedges = call.argument("maxHedges");
+          config.setMaxHedges(maxHedges);
+        }
+        if (call.hasArgument("segmentCache") && call.argument("segmentCache") != JSONObject.NULL) {
+          boolean segmentCache = call.argument("segmentCache");
+          config.setSegmentCacheEnabled(segmentCache);
+        }
+        if (call.hasArgument("preflight") && call.argument("preflight") != JSONObject.NULL) {
+          boolean preflight = call.argument("preflight");
+          config.setPreflightEnabled(preflight);
+        }
+        if (call.hasArgument("prefetchCount") && call.argument("prefetchCount") != JSONObject.NULL) {
+          int prefetchCount = call.argument("prefetchCount");
+          config.setPrefetchCount(prefetchCount);
+        }
+        if (call.hasArgument("rangeMergeSize") && call.argument("rangeMergeSize") != JSONObject.NULL) {
+          int rangeMergeSize = call.argument("rangeMergeSize");
+          config.setRangeMergeSize(rangeMergeSize);
+        }
+        if (call.hasArgument("retryCount") && call.argument("retryCount") != JSONObject.NULL) {
+          int retryCount = call.argument("retryCount");
+          config.setRetryCount(retryCount);
+        }
+        if (call.hasArgument("retryStatusCodes") && call.argument("retryStatusCodes") != JSONObject.NULL) {
+          JSONArray codes = call.argument("retryStatusCodes");
+          StringBuilder sb = new StringBuilder();
+          for (int i = 0; i < codes.length(); i++) {
+            if (i > 0) sb.append(",");
+            sb.append(codes.getInt(i));
+          }
+          config.setRetryStatusCodes(sb.toString());
+        }
         if (call.hasArgument("debugMode") && call.argument("debugMode") != JSONObject.NULL) {
           boolean debugMode = call.argument("debugMode");
           config.setDebugMode(debugMode);
@@ -130,6 +206,8 @@ public class M3u8DownloaderPlugin implements FlutterPlugin, PluginRegistry.NewIn
           boolean isConvert = call.argument("isConvert");
           config.setIsConvert(isConvert);
         }
+        // 在发出任何请求之前设置，系统连接池只在第一次建立连接时读取
+        HttpConnectionPool.applyKeepAlive();
 
         flutterM3U8BackgroundExecutor.setCallbackDispatcher(context, callbackHandle);
         flutterM3U8BackgroundExecutor.startBackgroundIsolate(context);
@@ -159,7 +237,34 @@ public class M3u8DownloaderPlugin implements FlutterPlugin, PluginRegistry.NewIn
         final long successCallbackHandle = call.hasArgument("successCallback") && call.argument("successCallback") != JSONObject.NULL ? (long)call.argument("successCallback") : -1;
         final long errorCallbackHandle = call.hasArgument("errorCallback") && call.argument("errorCallback") != JSONObject.NULL ? (long)call.argument("errorCallback") : -1;
 
-        M3U8Downloader.getInstance().download(url, name);
+        List<String> mirrors = null;
+        if (call.hasArgument("mirrors") && call.argument("mirrors") != JSONObject.NULL) {
+          JSONArray array = call.argument("mirrors");
+          mirrors = new ArrayList<>();
+          for (int i = 0; i < array.length(); i++) {
+            mirrors.add(array.getString(i));
+          }
+        }
+
+        // 主m3u8的码率选择，优先级：分辨率 > 码率上限 > 最低码率，都没有时选第一个
+        VariantPolicy variantPolicy = null;
+        if (call.hasArgument("resolution") && call.argument("resolution") != JSONObject.NULL) {
+          int resolution = call.argument("resolution");
+          variantPolicy = VariantPolicy.resolution(resolution);
+        } else if (call.hasArgument("maxBandwidth") && call.argument("maxBandwidth") != JSONObject.NULL) {
+          int maxBandwidth = call.argument("maxBandwidth");
+          variantPolicy = VariantPolicy.maxBandwidth(maxBandwidth);
+        } else if (call.hasArgument("lowest") && call.argument("lowest") != JSONObject.NULL) {
+          boolean lowest = call.argument("lowest");
+          if (lowest) variantPolicy = VariantPolicy.lowest();
+        }
+
+        int recordSeconds = -1;
+        if (call.hasArgument("recordSeconds") && call.argument("recordSeconds") != JSONObject.NULL) {
+          recordSeconds = call.argument("recordSeconds");
+        }
+
+        M3U8Downloader.getInstance().download(url, name, mirrors, variantPolicy, recordSeconds);
         updateNotification(0, 0);
         M3U8Downloader.getInstance().setOnM3U8DownloadListener(new OnM3U8DownloadListener() {
           @Override
@@ -174,8 +279,11 @@ public class M3u8DownloaderPlugin implements FlutterPlugin, PluginRegistry.NewIn
               args.put("state", task.getState());
               args.put("progress", task.getProgress());
               args.put("speed", task.getSpeed());
+              args.put("retryCount", task.getRetryCount());
+              args.put("playableDuration", task.getPlayableMillis());
               args.put("formatSpeed", task.getFormatSpeed());
               args.put("totalSize", task.getTotalSize());
+              args.put("eta", task.getEta());
               args.put("currentFormatSize", task.getFormatCurrentSize());
               args.put("totalFormatSize", task.getFormatTotalSize());
               handler.post(new Runnable() {
@@ -297,6 +405,37 @@ public class M3u8DownloaderPlugin implements FlutterPlugin, PluginRegistry.NewIn
           notificationManager.cancel(NOTIFICATION_ID);
         }
         result.success(null);
+      } else if (call.method.equals("setSpeedLimit")) {
+        if (!call.hasArgument("bytesPerSecond")) {
+          result.error("1", "bytesPerSecond必传", "");
+          return;
+        }
+        long bytesPerSecond = ((Number) call.argument("bytesPerSecond")).longValue();
+        if (call.hasArgument("url") && call.argument("url") != JSONObject.NULL) {
+          String url = call.argument("url");
+          M3U8Downloader.getInstance().setSpeedLimit(url, bytesPerSecond);
+        } else {
+          M3U8Downloader.getInstance().setGlobalSpeedLimit(bytesPerSecond);
+        }
+        result.success(null);
+      } else if (call.method.equals("getMetrics")) {
+        result.success(M3U8Downloader.getInstance().getMetrics());
+      } else if (call.method.equals("startServer")) {
+        int port = 0;
+        if (call.hasArgument("port") && call.argument("port") != JSONObject.NULL) {
+          port = call.argument("port");
+        }
+        result.success(M3U8LocalServer.getInstance().start(port));
+      } else if (call.method.equals("stopServer")) {
+        M3U8LocalServer.getInstance().stop();
+        result.success(null);
+      } else if (call.method.equals("getPlaybackUrl")) {
+        if (!call.hasArgument("url")) {
+          result.error("1", "url必传", "");
+          return;
+        }
+        String url = call.argument("url");
+        result.success(M3U8LocalServer.getInstance().getPlaybackUrl(url));
       } else if (call.method.equals("isRunning")) {
         result.success(M3U8Downloader.getInstance().isRunning());
       } else if (call.method.equals("getM3U8Path")) {
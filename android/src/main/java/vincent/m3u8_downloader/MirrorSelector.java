@@ -0,0 +1,176 @@
+package vincent.m3u8_downloader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import vincent.m3u8_downloader.utils.M3U8Log;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 镜像选择
+ * 同一个视频可以从多个镜像（CDN）下载，每个切片请求时选当前最快的健康镜像：
+ * 按各镜像最近的吞吐量（指数平滑）除以正在进行的请求数打分，还没有数据的镜像优先试一次。
+ * 连续失败多次的镜像暂时剔除，过一段时间后放一个请求去探测，成功就恢复，
+ * 失败则剔除时间加倍。
+ * 一个切片在某个镜像上失败后（包括404这类不重试的响应码），先换其他镜像再试，所有镜像都失败才算切片失败。
+ * 镜像以目录为单位替换：切片地址以原m3u8所在目录开头时，把这部分换成镜像的目录。
+ * ================================================
+ */
+class MirrorSelector {
+    /**
+     * 连续失败几次后剔除
+     */
+    private static final int MAX_FAILURES = 3;
+    /**
+     * 第一次剔除的时长
+     */
+    private static final long EJECT_MILLIS = 30 * 1000;
+    private static final long MAX_EJECT_MILLIS = 5 * 60 * 1000;
+    /**
+     * 吞吐量平滑系数，新样本的权重
+     */
+    private static final double ALPHA = 0.3;
+
+    private final List<Mirror> mirrors = new ArrayList<>();
+
+    /**
+     * @param url 任务的m3u8地址
+     * @param mirrorUrls 其他镜像上的m3u8地址或者所在目录
+     */
+    MirrorSelector(String url, List<String> mirrorUrls) {
+        mirrors.add(new Mirror(obtainBase(url)));
+        for (String mirrorUrl : mirrorUrls) {
+            String base = obtainBase(mirrorUrl);
+            if (!contains(base)) {
+                mirrors.add(new Mirror(base));
+            }
+        }
+    }
+
+    private static String obtainBase(String url) {
+        return url.substring(0, url.lastIndexOf("/") + 1);
+    }
+
+    private boolean contains(String base) {
+        for (Mirror mirror : mirrors) {
+            if (mirror.base.equals(base)) return true;
+        }
+        return false;
+    }
+
+    int size() {
+        return mirrors.size();
+    }
+
+    /**
+     * 为一个请求选择镜像，调用方在请求结束后必须调用{@link #onSuccess}或{@link #onFailure}或{@link #onCancel}
+     * @param excluded 这个切片已经失败过的镜像，不再选择；为空或者包含了所有镜像时不排除
+     * @return 镜像序号，0为原地址
+     */
+    synchronized int select(Set<Integer> excluded) {
+        if (excluded != null && excluded.size() >= mirrors.size()) {
+            excluded = null;
+        }
+        long now = System.currentTimeMillis();
+        int best = -1;
+        double bestScore = -1;
+        int soonest = 0;
+        long soonestUntil = Long.MAX_VALUE;
+        for (int i = 0; i < mirrors.size(); i++) {
+            if (excluded != null && excluded.contains(i)) continue;
+            Mirror mirror = mirrors.get(i);
+            if (mirror.ejectedUntil > 0) {
+                if (mirror.ejectedUntil < soonestUntil) {
+                    soonest = i;
+                    soonestUntil = mirror.ejectedUntil;
+                }
+                // 剔除时间已过并且没有正在探测的请求时，放一个请求去探测
+                if (now < mirror.ejectedUntil || mirror.inFlight > 0) continue;
+            }
+            // 还没有数据的镜像先试一次
+            double score = (mirror.throughput < 0 ? Double.MAX_VALUE : mirror.throughput) / (mirror.inFlight + 1);
+            if (score > bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        if (best < 0) {
+            // 可选的全部被剔除，用最早恢复的那个
+            best = soonest;
+        }
+        mirrors.get(best).inFlight++;
+        return best;
+    }
+
+    /**
+     * 把原地址换成镜像上的地址，不在原m3u8目录下的地址不替换
+     */
+    String resolve(int index, String url) {
+        if (index <= 0 || url == null) return url;
+        String base = mirrors.get(0).base;
+        if (!url.startsWith(base)) return url;
+        return mirrors.get(index).base + url.substring(base.length());
+    }
+
+    /**
+     * @param bytes 本次请求收到的字节数
+     * @param millis 本次请求耗时
+     */
+    synchronized void onSuccess(int index, long bytes, long millis) {
+        Mirror mirror = mirrors.get(index);
+        mirror.inFlight--;
+        mirror.failures = 0;
+        if (mirror.ejectedUntil > 0) {
+            M3U8Log.d("mirror recovered: " + mirror.base);
+            mirror.ejectedUntil = 0;
+            mirror.ejectMillis = 0;
+        }
+        if (bytes > 0) {
+            double rate = 1.0 * bytes / Math.max(1, millis);
+            mirror.throughput = mirror.throughput < 0 ? rate : mirror.throughput * (1 - ALPHA) + rate * ALPHA;
+        }
+    }
+
+    synchronized void onFailure(int index) {
+        Mirror mirror = mirrors.get(index);
+        mirror.inFlight--;
+        mirror.failures++;
+        // 探测失败或者连续失败次数达到上限
+        if (mirror.ejectedUntil > 0 || mirror.failures >= MAX_FAILURES) {
+            mirror.ejectMillis = mirror.ejectMillis == 0 ? EJECT_MILLIS : Math.min(mirror.ejectMillis * 2, MAX_EJECT_MILLIS);
+            mirror.ejectedUntil = System.currentTimeMillis() + mirror.ejectMillis;
+            mirror.failures = 0;
+            M3U8Log.d("mirror ejected for " + mirror.ejectMillis + "ms: " + mirror.base);
+        }
+    }
+
+    /**
+     * 请求被取消，不计入成功或失败
+     */
+    synchronized void onCancel(int index) {
+        mirrors.get(index).inFlight--;
+    }
+
+    private static class Mirror {
+        private final String base;
+        /**
+         * 平滑后的吞吐量，字节/毫秒，-1表示还没有数据
+         */
+        private double throughput = -1;
+        private int inFlight = 0;
+        private int failures = 0;
+        /**
+         * 剔除到什么时候，0表示没有被剔除
+         */
+        private long ejectedUntil = 0;
+        private long ejectMillis = 0;
+
+        Mirror(String base) {
+            this.base = base;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package vincent.m3u8_downloader;
+
+import java.io.IOException;
+
+import vincent.m3u8_downloader.bean.M3U8;
+import vincent.m3u8_downloader.bean.M3U8Ts;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 边解析m3u8边回调切片
+ * ================================================
+ */
+public interface OnM3U8ParseListener {
+
+    /**
+     * 解析到一个切片时回调，在解析线程中执行
+     * 回调时切片已经加入m3U8，之前的key、iv、basePath都已经可用
+     * @param index 切片序号
+     * @throws IOException 抛出时停止解析
+     */
+    void onTs(M3U8 m3U8, M3U8Ts ts, int index) throws IOException;
+}
@@ -0,0 +1,359 @@
+package vincent.m3u8_downloader;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import vincent.m3u8_downloader.bean.M3U8;
+import vincent.m3u8_downloader.bean.M3U8Key;
+import vincent.m3u8_downloader.bean.M3U8Map;
+import vincent.m3u8_downloader.bean.M3U8Ts;
+import vincent.m3u8_downloader.bean.M3U8Variant;
+import vincent.m3u8_downloader.bean.VariantPolicy;
+import vincent.m3u8_downloader.utils.InitSectionCache;
+import vincent.m3u8_downloader.utils.KeyCache;
+import vincent.m3u8_downloader.utils.M3U8Log;
+import vincent.m3u8_downloader.utils.MUtils;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 保存在任务目录中的二进制播放列表索引
+ * 点播列表解析完成后，把切片地址、时长、媒体序号、字节范围、key表、初始化段表连同每个切片的大小和完成位图
+ * 写入任务目录下的.index文件。续传时读一次文件就能恢复整个列表和完成状态，
+ * 不用重新请求m3u8，也不用逐个切片检查文件是否存在。
+ * 文件布局：头部和切片表（变长） | 切片大小（每个8字节） | 完成位图（每个切片1位）。
+ * 切片完成时只改内存，定时和停止时把变化的大小和位图按位置写回，没写回的切片下次按文件检查。
+ * 直播列表会不断变化，不保存索引。
+ * ================================================
+ */
+class PlaylistIndex {
+    private static final String FILE_NAME = ".index";
+    private static final int MAGIC = 0x4D33494E;// "M3IN"
+    private static final int VERSION = 3;
+
+    private final File file;
+    /**
+     * 已经读取或保存的列表，还没保存时为null
+     */
+    private M3U8 m3U8;
+    private long[] sizes = new long[64];
+    private byte[] bitmap = new byte[8];
+    /**
+     * 文件中切片大小区域的位置，还没保存时为-1
+     */
+    private long sizesOffset = -1;
+    /**
+     * 文件中的切片数
+     */
+    private int savedCount = 0;
+    /**
+     * 还没写回文件的切片范围
+     */
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo = -1;
+
+    PlaylistIndex(File dir) {
+        this.file = new File(dir, FILE_NAME);
+    }
+
+    /**
+     * 读取任务目录中的索引
+     * @param url 任务的m3u8地址
+     * @param policy 这次下载的码率选择策略，和保存时不同时索引作废
+     * @return 没有索引、索引损坏或者和这次下载对不上时返回null
+     */
+    static PlaylistIndex load(File dir, String url, VariantPolicy policy) {
+        PlaylistIndex index = new PlaylistIndex(dir);
+        if (!index.file.exists()) return null;
+        try {
+            // 整个索引一次读入
+            byte[] bytes = MUtils.readFile(index.file.getPath());
+            ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
+            DataInputStream in = new DataInputStream(bis);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unknown index version");
+            }
+            if (!url.equals(in.readUTF()) || in.readInt() != obtainPolicyType(policy) || in.readLong() != obtainPolicyValue(policy)) {
+                throw new IOException("index not match");
+            }
+            M3U8 m3U8 = new M3U8();
+            m3U8.setUrl(readString(in));
+            m3U8.setBasePath(readString(in));
+            m3U8.setTargetDuration(in.readFloat());
+            m3U8.setEndList(in.readBoolean());
+            if (in.readBoolean()) {
+                M3U8Variant variant = new M3U8Variant();
+                variant.setUrl(readString(in));
+                variant.setBandwidth(in.readLong());
+                variant.setAverageBandwidth(in.readLong());
+                variant.setWidth(in.readInt());
+                variant.setHeight(in.readInt());
+                variant.setCodecs(readString(in));
+                variant.setFrameRate(in.readFloat());
+                m3U8.setVariant(variant);
+            }
+            int keyCount = in.readInt();
+            M3U8Key[] keys = new M3U8Key[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                keys[i] = new M3U8Key(readString(in), readString(in), readString(in));
+            }
+            int mapCount = in.readInt();
+            M3U8Map[] maps = new M3U8Map[mapCount];
+            for (int i = 0; i < mapCount; i++) {
+                String mapUrl = in.readUTF();
+                long length = in.readLong();
+                long offset = in.readLong();
+                int key = in.readInt();
+                maps[i] = new M3U8Map(mapUrl, length, offset, key < 0 ? null : keys[key]);
+            }
+            int count = in.readInt();
+            List<M3U8Ts> tsList = new ArrayList<M3U8Ts>(count);
+            for (int i = 0; i < count; i++) {
+                M3U8Ts ts = new M3U8Ts(in.readUTF(), in.readFloat());
+                ts.setSequence(in.readLong());
+                ts.setByteRange(in.readLong(), in.readLong());
+                int key = in.readInt();
+                if (key >= 0) {
+                    ts.setKey(keys[key]);
+                }
+                int map = in.readInt();
+                if (map >= 0) {
+                    ts.setMap(maps[map]);
+                }
+                tsList.add(ts);
+            }
+            m3U8.setTsList(tsList);
+            index.sizesOffset = bytes.length - bis.available();
+            index.savedCount = count;
+            index.ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                index.sizes[i] = in.readLong();
+            }
+            in.readFully(index.bitmap, 0, (count + 7) / 8);
+            for (int i = 0; i < count; i++) {
+                if (index.isComplete(i)) {
+                    tsList.get(i).setFileSize(index.sizes[i]);
+                }
+            }
+            // 合并或生成本地m3u8时要用到key，提前在后台获取
+            for (M3U8Key key : keys) {
+                if (key.isAes128() && key.getUrl() != null) {
+                    KeyCache.getInstance().prefetch(key.getUrl());
+                }
+            }
+            for (M3U8Map map : maps) {
+                InitSectionCache.getInstance().prefetch(map);
+            }
+            index.m3U8 = m3U8;
+            return index;
+        } catch (Exception e) {
+            M3U8Log.d("drop playlist index: " + e.getMessage());
+            index.delete();
+            return null;
+        }
+    }
+
+    /**
+     * 读取的列表
+     */
+    synchronized M3U8 getM3U8() {
+        return m3U8;
+    }
+
+    /**
+     * 是否已经写入文件
+     */
+    synchronized boolean isSaved() {
+        return sizesOffset >= 0;
+    }
+
+    synchronized boolean isComplete(int index) {
+        return index < bitmap.length * 8 && (bitmap[index >> 3] & (1 << (index & 7))) != 0;
+    }
+
+    synchronized long getSize(int index) {
+        return index < sizes.length ? sizes[index] : 0;
+    }
+
+    /**
+     * 切片下载完成，定时写回文件
+     */
+    synchronized void markComplete(int index, long size) {
+        ensureCapacity(index + 1);
+        sizes[index] = size;
+        bitmap[index >> 3] |= 1 << (index & 7);
+        if (index < dirtyFrom) dirtyFrom = index;
+        if (index > dirtyTo) dirtyTo = index;
+    }
+
+    /**
+     * 列表解析完成后保存，已经完成的切片一起写入
+     * @param url 任务的m3u8地址
+     * @param policy 码率选择策略
+     */
+    synchronized void save(String url, VariantPolicy policy, M3U8 m3U8) throws IOException {
+        List<M3U8Ts> tsList = m3U8.getTsList();
+        int count = tsList.size();
+        ensureCapacity(count);
+        List<M3U8Key> keys = m3U8.getKeys();
+        List<M3U8Map> maps = m3U8.getMaps();
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        long offset;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(url);
+            out.writeInt(obtainPolicyType(policy));
+            out.writeLong(obtainPolicyValue(policy));
+            writeString(out, m3U8.getUrl());
+            writeString(out, m3U8.getBasePath());
+            out.writeFloat(m3U8.getTargetDuration());
+            out.writeBoolean(m3U8.isEndList());
+            M3U8Variant variant = m3U8.getVariant();
+            out.writeBoolean(variant != null);
+            if (variant != null) {
+                writeString(out, variant.getUrl());
+                out.writeLong(variant.getBandwidth());
+                out.writeLong(variant.getAverageBandwidth());
+                out.writeInt(variant.getWidth());
+                out.writeInt(variant.getHeight());
+                writeString(out, variant.getCodecs());
+                out.writeFloat(variant.getFrameRate());
+            }
+            out.writeInt(keys.size());
+            for (M3U8Key key : keys) {
+                writeString(out, key.getMethod());
+                writeString(out, key.getUrl());
+                writeString(out, key.getIv());
+            }
+            out.writeInt(maps.size());
+            for (M3U8Map map : maps) {
+                out.writeUTF(map.getUrl());
+                out.writeLong(map.getByteRangeLength());
+                out.writeLong(map.getByteRangeOffset());
+                out.writeInt(map.getKey() == null ? -1 : keys.indexOf(map.getKey()));
+            }
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                M3U8Ts ts = tsList.get(i);
+                out.writeUTF(ts.getUrl());
+                out.writeFloat(ts.getSeconds());
+                out.writeLong(ts.getSequence());
+                out.writeLong(ts.getByteRangeLength());
+                out.writeLong(ts.getByteRangeOffset());
+                out.writeInt(ts.getKey() == null ? -1 : keys.indexOf(ts.getKey()));
+                out.writeInt(ts.getMap() == null ? -1 : maps.indexOf(ts.getMap()));
+            }
+            offset = out.size();
+            for (int i = 0; i < count; i++) {
+                out.writeLong(sizes[i]);
+            }
+            out.write(bitmap, 0, (count + 7) / 8);
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("rename failed: " + file.getPath());
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+            tmpFile.delete();
+        }
+        this.m3U8 = m3U8;
+        sizesOffset = offset;
+        savedCount = count;
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo = -1;
+    }
+
+    /**
+     * 把变化的切片大小和完成位图写回文件
+     */
+    synchronized void flush() {
+        if (sizesOffset < 0 || dirtyTo < 0) return;
+        int from = dirtyFrom;
+        int to = Math.min(dirtyTo, savedCount - 1);
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo = -1;
+        if (from > to) return;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            byte[] bytes = new byte[(to - from + 1) * 8];
+            for (int i = from; i <= to; i++) {
+                long size = sizes[i];
+                int p = (i - from) * 8;
+                for (int b = 7; b >= 0; b--) {
+                    bytes[p + b] = (byte) size;
+                    size >>>= 8;
+                }
+            }
+            raf.seek(sizesOffset + from * 8L);
+            raf.write(bytes);
+            raf.seek(sizesOffset + savedCount * 8L + (from >> 3));
+            raf.write(bitmap, from >> 3, (to >> 3) - (from >> 3) + 1);
+        } catch (IOException e) {
+            // 写回失败不影响下载，下次续传时这些切片按文件检查
+            M3U8Log.d("flush playlist index failed: " + e.getMessage());
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    void delete() {
+        file.delete();
+    }
+
+    private void ensureCapacity(int count) {
+        if (count > sizes.length) {
+            long[] newSizes = new long[Math.max(count, sizes.length * 2)];
+            System.arraycopy(sizes, 0, newSizes, 0, sizes.length);
+            sizes = newSizes;
+        }
+        int bytes = (count + 7) / 8;
+        if (bytes > bitmap.length) {
+            byte[] newBitmap = new byte[Math.max(bytes, bitmap.length * 2)];
+            System.arraycopy(bitmap, 0, newBitmap, 0, bitmap.length);
+            bitmap = newBitmap;
+        }
+    }
+
+    private static int obtainPolicyType(VariantPolicy policy) {
+        return policy == null ? -1 : policy.getType();
+    }
+
+    private static long obtainPolicyValue(VariantPolicy policy) {
+        return policy == null ? 0 : policy.getValue();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,227 @@
+package vincent.m3u8_downloader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import vincent.m3u8_downloader.utils.IoStats;
+import vincent.m3u8_downloader.utils.MUtils;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 大切片分段并行下载的状态
+ * 切片按字节范围分成几段，各段用Range请求并行下载，按位置直接写入同一个.part文件。
+ * 每段已写入的长度记录在.chunks文件中（段结束或失败时保存），下次从各段的断点继续。
+ * ================================================
+ */
+class SegmentChunks {
+    static final String CHUNKS_SUFFIX = ".chunks";
+    /**
+     * 最多分成几段
+     */
+    private static final int MAX_CHUNKS = 8;
+    /**
+     * 每段最小长度
+     */
+    private static final long MIN_CHUNK_SIZE = 2 * 1024 * 1024;
+
+    private final File partFile;
+    private final File stateFile;
+    private final long total;
+    private final long[] starts;
+    private final long[] ends;
+    private final long[] written;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    /**
+     * 还没结束的段数
+     */
+    private int running = 0;
+    private Exception error;
+
+    private SegmentChunks(File partFile, long total, int count) {
+        this.partFile = partFile;
+        this.stateFile = new File(partFile.getPath() + CHUNKS_SUFFIX);
+        this.total = total;
+        this.starts = new long[count];
+        this.ends = new long[count];
+        this.written = new long[count];
+    }
+
+    /**
+     * 按总长度分段，并预先分配.part文件
+     */
+    static SegmentChunks create(File partFile, long total) throws IOException {
+        int count = (int) Math.min(MAX_CHUNKS, Math.max(2, (total + MIN_CHUNK_SIZE - 1) / MIN_CHUNK_SIZE));
+        SegmentChunks chunks = new SegmentChunks(partFile, total, count);
+        long size = total / count;
+        for (int i = 0; i < count; i++) {
+            chunks.starts[i] = i * size;
+            chunks.ends[i] = i == count - 1 ? total : (i + 1) * size;
+        }
+        // 先保存状态再分配文件，避免留下没有状态的预分配.part被当成完整切片
+        if (!chunks.save()) {
+            throw new IOException("save chunk state failed");
+        }
+        chunks.open();
+        chunks.raf.setLength(total);
+        return chunks;
+    }
+
+    /**
+     * 读取上次保存的分段状态
+     * @return 没有状态文件或状态和.part文件对不上时返回null
+     */
+    static SegmentChunks load(File partFile) {
+        File stateFile = new File(partFile.getPath() + CHUNKS_SUFFIX);
+        if (!stateFile.exists()) return null;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(stateFile));
+            long total = MUtils.parseLong(reader.readLine(), -1);
+            int count = (int) MUtils.parseLong(reader.readLine(), -1);
+            if (total <= 0 || count <= 0 || count > MAX_CHUNKS || partFile.length() != total) return null;
+            SegmentChunks chunks = new SegmentChunks(partFile, total, count);
+            for (int i = 0; i < count; i++) {
+                String[] values = reader.readLine().split(" ");
+                chunks.starts[i] = Long.parseLong(values[0]);
+                chunks.ends[i] = Long.parseLong(values[1]);
+                chunks.written[i] = Long.parseLong(values[2]);
+            }
+            chunks.open();
+            return chunks;
+        } catch (Exception e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 删除分段状态
+     */
+    static void clear(File partFile) {
+        new File(partFile.getPath() + CHUNKS_SUFFIX).delete();
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(partFile, "rw");
+        channel = raf.getChannel();
+    }
+
+    int getCount() {
+        return starts.length;
+    }
+
+    long getTotal() {
+        return total;
+    }
+
+    /**
+     * 段的下一个写入位置
+     */
+    synchronized long getPosition(int chunk) {
+        return starts[chunk] + written[chunk];
+    }
+
+    /**
+     * 段的结束位置（不包含）
+     */
+    long getEnd(int chunk) {
+        return ends[chunk];
+    }
+
+    synchronized boolean isChunkComplete(int chunk) {
+        return starts[chunk] + written[chunk] >= ends[chunk];
+    }
+
+    /**
+     * 开始下载一段
+     */
+    synchronized void onChunkStart() {
+        running++;
+    }
+
+    /**
+     * 按位置写入数据，多个段可以同时写
+     */
+    void write(int chunk, byte[] data, int len) throws IOException {
+        long position = getPosition(chunk);
+        if (position + len > ends[chunk]) {
+            throw new IOException("chunk overflow: " + chunk);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, len);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+            IoStats.recordWrite();
+        }
+        synchronized (this) {
+            written[chunk] += len;
+        }
+    }
+
+    /**
+     * 一段结束
+     * @param e 为空表示成功
+     * @return 所有段都已结束时返回true，由调用方提交文件
+     */
+    synchronized boolean onChunkDone(Exception e) {
+        running--;
+        if (e != null && error == null) {
+            error = e;
+        }
+        save();
+        return running == 0;
+    }
+
+    synchronized Exception getError() {
+        return error;
+    }
+
+    synchronized boolean isComplete() {
+        for (int i = 0; i < starts.length; i++) {
+            if (!isChunkComplete(i)) return false;
+        }
+        return true;
+    }
+
+    synchronized void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+            }
+            raf = null;
+            channel = null;
+        }
+    }
+
+    private boolean save() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(total).append('\n').append(starts.length).append('\n');
+        for (int i = 0; i < starts.length; i++) {
+            sb.append(starts[i]).append(' ').append(ends[i]).append(' ').append(written[i]).append('\n');
+        }
+        try {
+            MUtils.saveFile(sb.toString(), stateFile.getPath());
+            return true;
+        } catch (IOException e) {
+            // 状态没保存下来，.part也不能再用，下次整段重新下载
+            stateFile.delete();
+            partFile.delete();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package vincent.m3u8_downloader;
+
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 对冲请求的触发时机和数量
+ * 一个切片下载时间明显超过同一任务最近完成切片的p90耗时，多半是卡在了慢连接上，这时再发一个
+ * 相同的请求，谁先完成用谁，另一个取消，避免一个慢切片拖住整个任务。
+ * 耗时按任务分别统计，只取整个切片从请求到完成的时间，不同码率、不同服务器的任务互不影响。
+ * 同时进行的对冲请求数不超过maxHedges，防止网络本身变慢时请求数翻倍。
+ * ================================================
+ */
+class SegmentHedger {
+    /**
+     * 已完成的切片数少于这个值时耗时分布还不可信，不发对冲请求
+     */
+    private static final int MIN_SAMPLES = 20;
+    /**
+     * 只保留最近的这么多个切片耗时，网络变化后能较快跟上
+     */
+    private static final int MAX_SAMPLES = 64;
+    /**
+     * 超过p90耗时的几倍才算慢
+     */
+    private static final int DELAY_FACTOR = 2;
+    /**
+     * 最短等待时间
+     */
+    private static final long MIN_DELAY = 1000;
+
+    private static SegmentHedger instance;
+
+    private Timer timer;
+    /**
+     * 正在进行的对冲请求数
+     */
+    private int running = 0;
+
+    private SegmentHedger() {
+    }
+
+    public static SegmentHedger getInstance() {
+        synchronized (SegmentHedger.class) {
+            if (instance == null) {
+                instance = new SegmentHedger();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 切片开始下载后多久发出对冲请求
+     * @param samples 同一任务已完成切片的耗时
+     * @return 小于0表示不发
+     */
+    long getDelay(Samples samples) {
+        if (M3U8DownloaderConfig.getMaxHedges() <= 0) return -1;
+        long p90 = samples.getPercentile(0.9);
+        if (p90 < 0) return -1;
+        return Math.max(MIN_DELAY, p90 * DELAY_FACTOR);
+    }
+
+    /**
+     * 到时间后执行检查，切片提前完成时取消返回的任务即可
+     */
+    synchronized TimerTask schedule(final Runnable check, long delay) {
+        if (timer == null) {
+            timer = new Timer("M3U8Hedge", true);
+        }
+        TimerTask task = new TimerTask() {
+            @Override
+            public void run() {
+                check.run();
+            }
+        };
+        timer.schedule(task, delay);
+        return task;
+    }
+
+    /**
+     * 占用一个对冲名额
+     * @return 名额已满时返回false
+     */
+    synchronized boolean tryAcquire() {
+        if (running >= M3U8DownloaderConfig.getMaxHedges()) return false;
+        running++;
+        return true;
+    }
+
+    synchronized void release() {
+        running--;
+    }
+
+    /**
+     * 一个任务最近完成的切片耗时，单位毫秒
+     */
+    static class Samples {
+        private final long[] values = new long[MAX_SAMPLES];
+        private int count = 0;
+        private int next = 0;
+
+        synchronized void record(long millis) {
+            values[next] = millis;
+            next = (next + 1) % values.length;
+            if (count < values.length) count++;
+        }
+
+        /**
+         * 分位数
+         * @param quantile 0到1之间
+         * @return 样本数不足时返回-1
+         */
+        synchronized long getPercentile(double quantile) {
+            if (count < MIN_SAMPLES) return -1;
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(quantile * count);
+            return sorted[Math.max(rank, 1) - 1];
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package vincent.m3u8_downloader;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 等待任务的切片全部下载完成
+ * 边解析边下载时切片总数事先不知道，CountDownLatch的计数不能增加，
+ * 这里提交一个切片加一，完成一个减一，m3u8解析结束并且计数归零才算完成。
+ * ================================================
+ */
+class SegmentLatch {
+    private int count = 0;
+    /**
+     * m3u8已经解析完，不会再增加切片
+     */
+    private boolean finished = false;
+    /**
+     * 任务停止，直接放行等待的线程
+     */
+    private boolean released = false;
+
+    synchronized void add(int n) {
+        count += n;
+    }
+
+    synchronized void countDown() {
+        if (count > 0) count--;
+        if (count == 0) notifyAll();
+    }
+
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    synchronized void release() {
+        released = true;
+        notifyAll();
+    }
+
+    synchronized void await() throws InterruptedException {
+        while (!released && !(finished && count == 0)) {
+            wait();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package vincent.m3u8_downloader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vincent.m3u8_downloader.bean.M3U8Ts;
+import vincent.m3u8_downloader.net.FetchListener;
+import vincent.m3u8_downloader.net.FetchRequest;
+import vincent.m3u8_downloader.net.FetchResponse;
+import vincent.m3u8_downloader.net.Fetchers;
+import vincent.m3u8_downloader.utils.M3U8Log;
+import vincent.m3u8_downloader.utils.MUtils;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 下载前的预检
+ * 用几个线程并行给所有切片发HEAD请求，从Content-Length得到每个切片的大小，
+ * 算出整个视频的字节数，用于检查剩余空间和按字节计算进度。
+ * 拿不到大小的切片（不支持HEAD、没有Content-Length）按已知切片的平均大小估算。
+ * ================================================
+ */
+class SegmentPreflight {
+    private final List<M3U8Ts> tsList;
+    private final String basePath;
+    /**
+     * 每个切片的大小，-1为未知
+     */
+    private final long[] sizes;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean cancelled = false;
+
+    SegmentPreflight(List<M3U8Ts> tsList, String basePath) {
+        this.tsList = tsList;
+        this.basePath = basePath;
+        this.sizes = new long[tsList.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            // 字节范围切片的大小在m3u8中已经给出
+            sizes[i] = tsList.get(i).hasByteRange() ? tsList.get(i).getByteRangeLength() : -1;
+        }
+    }
+
+    /**
+     * 已经知道大小的切片（比如已经下载完成），不再发请求
+     */
+    void setSize(int index, long size) {
+        sizes[index] = size;
+    }
+
+    /**
+     * 并行请求所有切片的大小，阻塞到全部完成
+     * @param threadCount 同时进行的请求数
+     * @return 估算的总字节数，一个切片的大小都拿不到时返回-1
+     */
+    long run(int threadCount) throws InterruptedIOException {
+        long startTime = System.currentTimeMillis();
+        Thread[] threads = new Thread[Math.max(1, Math.min(threadCount, sizes.length))];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread("M3U8Preflight-" + i) {
+                @Override
+                public void run() {
+                    int index;
+                    while (!cancelled && (index = next.getAndIncrement()) < sizes.length) {
+                        if (sizes[index] < 0) {
+                            sizes[index] = requestSize(tsList.get(index).obtainFullUrl(basePath));
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            throw new InterruptedIOException("thread interrupted");
+        }
+        if (cancelled) {
+            throw new InterruptedIOException("thread interrupted");
+        }
+        long known = 0;
+        int knownCount = 0;
+        for (long size : sizes) {
+            if (size >= 0) {
+                known += size;
+                knownCount++;
+            }
+        }
+        M3U8Log.d("preflight " + knownCount + "/" + sizes.length + " sizes, " + known + " bytes in "
+                + (System.currentTimeMillis() - startTime) + "ms");
+        if (knownCount == 0) return -1;
+        return known + (sizes.length - knownCount) * (known / knownCount);
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return 切片大小，失败时返回-1
+     */
+    private long requestSize(String url) {
+        final long[] size = {-1};
+        final CountDownLatch latch = new CountDownLatch(1);
+        FetchRequest request = new FetchRequest(url).setMethod("HEAD");
+        request.addHeader("Accept-Encoding", "identity");
+        Fetchers.get().fetch(request, new FetchListener() {
+            @Override
+            public boolean onResponse(FetchResponse response) throws IOException {
+                if (response.getCode() == 200) {
+                    size[0] = MUtils.parseLong(response.getHeader("Content-Length"), -1);
+                }
+                return false;
+            }
+
+            @Override
+            public long onData(byte[] data, int off, int len) throws IOException {
+                return 0;
+            }
+
+            @Override
+            public void onComplete() {
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(IOException e) {
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            return -1;
+        }
+        return size[0];
+    }
+}
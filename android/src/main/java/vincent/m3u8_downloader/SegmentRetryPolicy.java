@@ -0,0 +1,80 @@
+package vincent.m3u8_downloader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import vincent.m3u8_downloader.net.HttpStatusException;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 切片下载失败的重试策略
+ * 网络异常和指定的响应码会按指数退避（带随机抖动）重试，重试次数用完才算任务失败。
+ * ================================================
+ */
+class SegmentRetryPolicy {
+    /**
+     * 第一次重试的基础等待时间
+     */
+    private static final long BASE_DELAY = 500;
+    /**
+     * 最长等待时间
+     */
+    private static final long MAX_DELAY = 30 * 1000;
+
+    private final int retryCount;
+    private final Set<Integer> retryStatusCodes;
+    private final Random random = new Random();
+
+    SegmentRetryPolicy(int retryCount, Set<Integer> retryStatusCodes) {
+        this.retryCount = Math.max(0, retryCount);
+        this.retryStatusCodes = retryStatusCodes;
+    }
+
+    public static SegmentRetryPolicy fromConfig() {
+        Set<Integer> codes = new HashSet<>();
+        for (String code : M3U8DownloaderConfig.getRetryStatusCodes().split(",")) {
+            try {
+                codes.add(Integer.parseInt(code.trim()));
+            } catch (NumberFormatException e) {
+                // 忽略无效的响应码
+            }
+        }
+        return new SegmentRetryPolicy(M3U8DownloaderConfig.getRetryCount(), codes);
+    }
+
+    /**
+     * 是否还可以重试
+     * @param attempt 已经失败的次数
+     * @param e 本次失败的异常
+     */
+    public boolean shouldRetry(int attempt, Throwable e) {
+        if (attempt > retryCount) return false;
+        if (e instanceof HttpStatusException) {
+            return retryStatusCodes.contains(((HttpStatusException) e).getCode());
+        }
+        if (e instanceof MalformedURLException) return false;
+        // 被中断是任务停止，不重试；超时属于网络异常
+        if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) return false;
+        return e instanceof IOException;
+    }
+
+    /**
+     * 第attempt次失败后的等待时间：指数增长，取一半固定加一半随机，避免所有切片同时重试
+     */
+    public long getDelay(int attempt, Throwable e) {
+        long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt - 1, 16));
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        if (e instanceof HttpStatusException) {
+            delay = Math.max(delay, Math.min(MAX_DELAY, ((HttpStatusException) e).getRetryAfter()));
+        }
+        return delay;
+    }
+}
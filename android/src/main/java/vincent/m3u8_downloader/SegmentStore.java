@@ -0,0 +1,344 @@
+package vincent.m3u8_downloader;
+
+import android.os.Build;
+import android.system.Os;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import vincent.m3u8_downloader.utils.BufferPool;
+import vincent.m3u8_downloader.utils.IoStats;
+import vincent.m3u8_downloader.utils.M3U8Log;
+import vincent.m3u8_downloader.utils.MD5Utils;
+import vincent.m3u8_downloader.utils.MUtils;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 跨任务共享的切片仓库
+ * 同一个提供方的不同视频经常包含相同的片头、广告切片，下载完成的切片按规范化后的url
+ * 硬链接到saveDir/.segments中，其他任务遇到相同url时直接链接过去，不再下载。
+ * 每个切片旁边的.refs文件记录长度和引用它的任务目录，链接前按长度校验，
+ * 删除任务时减少引用，没有任务引用时删除仓库中的切片。
+ * 每个任务在.segments/tasks下记录自己引用过的切片，删除任务时只处理这些切片。
+ * 同一个切片的读写按key分段加锁，不同切片的入库、链接互不阻塞。
+ * 硬链接需要API 21，低版本不入库，只能使用仓库中已有的切片（复制）。
+ * ================================================
+ */
+class SegmentStore {
+    private static final String STORE_DIR = ".segments";
+    private static final String REFS_SUFFIX = ".refs";
+    private static final String TASKS_DIR = "tasks";
+    private static final int LOCK_COUNT = 64;
+
+    private static SegmentStore instance;
+
+    private final Object[] locks = new Object[LOCK_COUNT];
+
+    private SegmentStore() {
+        for (int i = 0; i < LOCK_COUNT; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public static SegmentStore getInstance() {
+        synchronized (SegmentStore.class) {
+            if (instance == null) {
+                instance = new SegmentStore();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 仓库中已有相同切片时链接到target
+     * @param taskDir 任务目录名，用于引用计数
+     * @return 链接成功返回true
+     */
+    boolean link(String url, File target, String taskDir) {
+        if (!M3U8DownloaderConfig.isSegmentCacheEnabled()) return false;
+        String key = obtainKey(url);
+        boolean added;
+        synchronized (obtainLock(key)) {
+            int result = linkLocked(key, target, taskDir);
+            if (result < 0) return false;
+            added = result > 0;
+        }
+        if (added) addTaskKey(taskDir, key);
+        return true;
+    }
+
+    /**
+     * @return -1 链接失败，0 链接成功且已经引用过，1 链接成功并新增了引用
+     */
+    private int linkLocked(String key, File target, String taskDir) {
+        File stored = obtainFile(key);
+        File refsFile = obtainRefsFile(key);
+        if (!stored.exists() || !refsFile.exists()) return -1;
+        List<String> refs = new ArrayList<>();
+        long size = readRefs(refsFile, refs);
+        if (size < 0 || stored.length() != size) {
+            // 仓库中的切片已经损坏
+            M3U8Log.d("drop invalid stored segment: " + key);
+            stored.delete();
+            refsFile.delete();
+            return -1;
+        }
+        try {
+            if (!createLink(stored, target)) {
+                copy(stored, target);
+            }
+        } catch (IOException e) {
+            target.delete();
+            return -1;
+        }
+        if (refs.contains(taskDir)) return 0;
+        refs.add(taskDir);
+        writeRefs(refsFile, size, refs);
+        return 1;
+    }
+
+    /**
+     * 下载完成的切片放入仓库
+     */
+    void put(String url, File file, String taskDir) {
+        if (!M3U8DownloaderConfig.isSegmentCacheEnabled()) return;
+        String key = obtainKey(url);
+        boolean added;
+        synchronized (obtainLock(key)) {
+            added = putLocked(key, file, taskDir);
+        }
+        if (added) addTaskKey(taskDir, key);
+    }
+
+    /**
+     * @return 新增了taskDir的引用时返回true
+     */
+    private boolean putLocked(String key, File file, String taskDir) {
+        File stored = obtainFile(key);
+        File refsFile = obtainRefsFile(key);
+        List<String> refs = new ArrayList<>();
+        long size = -1;
+        if (stored.exists() && refsFile.exists()) {
+            size = readRefs(refsFile, refs);
+        }
+        if (size != file.length()) {
+            // 没有入库或者已经失效，用这次下载的切片替换
+            refs.clear();
+            stored.getParentFile().mkdirs();
+            stored.delete();
+            if (!createLink(file, stored)) {
+                refsFile.delete();
+                return false;
+            }
+            size = file.length();
+        } else if (refs.contains(taskDir)) {
+            // 已经引用过，不用重写引用文件
+            return false;
+        }
+        refs.add(taskDir);
+        writeRefs(refsFile, size, refs);
+        return true;
+    }
+
+    /**
+     * 任务目录被删除后调用，去掉它的引用，没有引用的切片从仓库删除
+     */
+    void release(String taskDir) {
+        File taskFile = obtainTaskFile(taskDir);
+        List<String> keys = new ArrayList<>();
+        synchronized (obtainLock(taskDir)) {
+            if (!taskFile.exists()) return;
+            readLines(taskFile, keys);
+            taskFile.delete();
+        }
+        for (String key : keys) {
+            synchronized (obtainLock(key)) {
+                File refsFile = obtainRefsFile(key);
+                if (!refsFile.exists()) continue;
+                List<String> refs = new ArrayList<>();
+                long size = readRefs(refsFile, refs);
+                if (size >= 0 && !refs.remove(taskDir)) continue;
+                if (size < 0 || refs.isEmpty()) {
+                    obtainFile(key).delete();
+                    refsFile.delete();
+                } else {
+                    writeRefs(refsFile, size, refs);
+                }
+            }
+        }
+    }
+
+    /**
+     * 在任务的索引文件中追加一个切片key
+     */
+    private void addTaskKey(String taskDir, String key) {
+        File taskFile = obtainTaskFile(taskDir);
+        synchronized (obtainLock(taskDir)) {
+            OutputStream out = null;
+            try {
+                taskFile.getParentFile().mkdirs();
+                out = new FileOutputStream(taskFile, true);
+                out.write((key + "\n").getBytes());
+            } catch (IOException e) {
+                M3U8Log.d("write segment index failed: " + e.getMessage());
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+    }
+
+    private Object obtainLock(String key) {
+        return locks[(key.hashCode() & 0x7fffffff) % LOCK_COUNT];
+    }
+
+    /**
+     * 规范化url：协议和host转小写，去掉默认端口和#之后的部分
+     */
+    static String normalizeUrl(String url) {
+        try {
+            URL u = new URL(url);
+            String protocol = u.getProtocol().toLowerCase();
+            int port = u.getPort();
+            if (port == u.getDefaultPort()) port = -1;
+            StringBuilder sb = new StringBuilder();
+            sb.append(protocol).append("://").append(u.getHost().toLowerCase());
+            if (port != -1) sb.append(':').append(port);
+            sb.append(u.getFile());
+            return sb.toString();
+        } catch (IOException e) {
+            return url;
+        }
+    }
+
+    private static String obtainKey(String url) {
+        return MD5Utils.encode(normalizeUrl(url));
+    }
+
+    private static File obtainFile(String key) {
+        return new File(M3U8DownloaderConfig.getSaveDir() + File.separator + STORE_DIR, key + ".ts");
+    }
+
+    private static File obtainRefsFile(String key) {
+        return new File(M3U8DownloaderConfig.getSaveDir() + File.separator + STORE_DIR, key + REFS_SUFFIX);
+    }
+
+    private static File obtainTaskFile(String taskDir) {
+        return new File(M3U8DownloaderConfig.getSaveDir() + File.separator + STORE_DIR + File.separator + TASKS_DIR, taskDir);
+    }
+
+    /**
+     * 读取引用文件
+     * @return 切片长度，文件损坏时返回-1
+     */
+    private static long readRefs(File refsFile, List<String> refs) {
+        List<String> lines = new ArrayList<>();
+        if (!readLines(refsFile, lines) || lines.isEmpty()) return -1;
+        refs.addAll(lines.subList(1, lines.size()));
+        return MUtils.parseLong(lines.get(0), -1);
+    }
+
+    /**
+     * 按行读取，跳过空行
+     * @return 读取失败返回false
+     */
+    private static boolean readLines(File file, List<String> lines) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) lines.add(line);
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static void writeRefs(File refsFile, long size, List<String> refs) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(size).append('\n');
+        for (String ref : refs) {
+            sb.append(ref).append('\n');
+        }
+        try {
+            MUtils.saveFile(sb.toString(), refsFile.getPath());
+        } catch (IOException e) {
+            refsFile.delete();
+        }
+    }
+
+    private static boolean createLink(File source, File target) {
+        if (Build.VERSION.SDK_INT < 21) return false;
+        try {
+            Os.link(source.getPath(), target.getPath());
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * 先复制到临时文件再重命名，中断时不会留下不完整的切片
+     */
+    private static void copy(File source, File target) throws IOException {
+        File tmpFile = new File(target.getPath() + ".tmp");
+        InputStream in = null;
+        OutputStream out = null;
+        byte[] buf = BufferPool.getInstance().acquire();
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(tmpFile);
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                IoStats.recordRead();
+                out.write(buf, 0, len);
+                IoStats.recordWrite();
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(target)) {
+                throw new IOException("rename failed: " + target);
+            }
+        } finally {
+            BufferPool.getInstance().release(buf);
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+            tmpFile.delete();
+        }
+    }
+}
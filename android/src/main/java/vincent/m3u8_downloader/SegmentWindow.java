@@ -0,0 +1,99 @@
+package vincent.m3u8_downloader;
+
+import java.util.Arrays;
+import java.util.List;
+
+import vincent.m3u8_downloader.bean.M3U8Ts;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 按播放顺序推进的下载窗口
+ * 记录从头开始连续下载完成的切片（可播放的前缀），顺序下载模式下只允许下载
+ * 距离前缀末尾lookAhead时长以内的切片，前面的切片完成后窗口才继续往后移，
+ * 保证可播放的部分持续增长，而不是所有切片随机完成。
+ * 边解析边下载时切片通过{@link #add}陆续加入。
+ * ================================================
+ */
+class SegmentWindow {
+    /**
+     * 每个切片在播放时间轴上的开始时间，单位毫秒
+     */
+    private long[] startMillis;
+    private boolean[] done;
+    /**
+     * 已加入的切片数
+     */
+    private int size = 0;
+    private long totalMillis = 0;
+    /**
+     * 预读时长，小于等于0表示不限制
+     */
+    private final long lookAheadMillis;
+    /**
+     * 第一个还没完成的切片
+     */
+    private int head = 0;
+
+    SegmentWindow(List<M3U8Ts> tsList, long lookAheadMillis) {
+        int capacity = Math.max(16, tsList.size());
+        startMillis = new long[capacity];
+        done = new boolean[capacity];
+        for (M3U8Ts ts : tsList) {
+            add(ts);
+        }
+        this.lookAheadMillis = lookAheadMillis;
+    }
+
+    /**
+     * 在末尾加入一个切片
+     */
+    synchronized void add(M3U8Ts ts) {
+        if (size == startMillis.length) {
+            startMillis = Arrays.copyOf(startMillis, size * 2);
+            done = Arrays.copyOf(done, size * 2);
+        }
+        startMillis[size++] = totalMillis;
+        totalMillis += (long) (ts.getSeconds() * 1000);
+    }
+
+    /**
+     * 切片是否在窗口内，第一个未完成的切片总是允许下载
+     * @param index 切片序号
+     */
+    synchronized boolean allows(int index) {
+        if (lookAheadMillis <= 0 || index <= head || index >= size) return true;
+        return startMillis[index] - startMillis[head] < lookAheadMillis;
+    }
+
+    /**
+     * 标记切片完成
+     * @param index 切片序号
+     * @return 窗口是否往后移动了
+     */
+    synchronized boolean markDone(int index) {
+        if (index < 0 || index >= size) return false;
+        done[index] = true;
+        int old = head;
+        while (head < size && done[head]) {
+            head++;
+        }
+        return head != old;
+    }
+
+    /**
+     * 从头开始连续下载完成的切片数
+     */
+    synchronized int getPlayableCount() {
+        return head;
+    }
+
+    /**
+     * 从头开始连续下载完成的时长，单位毫秒
+     */
+    synchronized long getPlayableMillis() {
+        return head < size ? startMillis[head] : totalMillis;
+    }
+}
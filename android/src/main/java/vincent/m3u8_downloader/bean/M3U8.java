@@ -14,14 +14,25 @@ import vincent.m3u8_downloader.utils.MUtils;
  * ================================================
  */
 public class M3U8 {
+    private String url;//媒体m3u8的地址，主m3u8时为选中码率的地址
     private String basePath;//去除后缀文件名的url
     private String m3u8FilePath;//m3u8索引文件路径
     private String dirFilePath;//切片文件目录
     private long fileSize;//切片文件总大小
     private long totalTime;//总时间，单位毫秒
     private List<M3U8Ts> tsList = new ArrayList<M3U8Ts>();//视频切片
-    private String key; // m3u8的key
-    private String iv; // m3u8的iv偏移量
+    private List<M3U8Variant> variants = new ArrayList<M3U8Variant>();//主m3u8中的全部码率，不是主m3u8时为空
+    private M3U8Variant variant;//选中的码率，不是主m3u8时为null
+    private float targetDuration;//#EXT-X-TARGETDURATION，单位秒，没有时为0
+    private boolean endList;//是否有#EXT-X-ENDLIST，没有的是还在更新的直播列表
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
 
     public String getBasePath() {
         return basePath;
@@ -85,20 +96,81 @@ public class M3U8 {
         return totalTime;
     }
 
-    public String getKey() {
-        return key;
+    public float getTargetDuration() {
+        return targetDuration;
+    }
+
+    public void setTargetDuration(float targetDuration) {
+        this.targetDuration = targetDuration;
+    }
+
+    public boolean isEndList() {
+        return endList;
+    }
+
+    public void setEndList(boolean endList) {
+        this.endList = endList;
+    }
+
+    /**
+     * 是否有切片需要解密
+     */
+    public boolean isEncrypted() {
+        for (M3U8Ts m3U8Ts : tsList) {
+            if (m3U8Ts.isEncrypted()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 切片用到的所有key，按出现顺序，不重复
+     */
+    public List<M3U8Key> getKeys() {
+        List<M3U8Key> keys = new ArrayList<M3U8Key>();
+        M3U8Key last = null;
+        // 录制直播时列表会在其他线程追加，按下标遍历
+        int size = tsList.size();
+        for (int i = 0; i < size; i++) {
+            M3U8Key key = tsList.get(i).getKey();
+            if (key != null && key != last && !keys.contains(key)) {
+                keys.add(key);
+            }
+            last = key;
+        }
+        return keys;
+    }
+
+    /**
+     * 切片用到的所有初始化段，按出现顺序，不重复
+     */
+    public List<M3U8Map> getMaps() {
+        List<M3U8Map> maps = new ArrayList<M3U8Map>();
+        M3U8Map last = null;
+        int size = tsList.size();
+        for (int i = 0; i < size; i++) {
+            M3U8Map map = tsList.get(i).getMap();
+            if (map != null && map != last && !maps.contains(map)) {
+                maps.add(map);
+            }
+            last = map;
+        }
+        return maps;
+    }
+
+    public List<M3U8Variant> getVariants() {
+        return variants;
     }
 
-    public void setKey(String key) {
-        this.key = key;
+    public void setVariants(List<M3U8Variant> variants) {
+        this.variants = variants;
     }
 
-    public String getIv() {
-        return iv;
+    public M3U8Variant getVariant() {
+        return variant;
     }
 
-    public void setIv(String iv) {
-        this.iv = iv;
+    public void setVariant(M3U8Variant variant) {
+        this.variant = variant;
     }
 
     @Override
@@ -110,6 +182,7 @@ public class M3U8 {
         sb.append("\nfileSize: " + getFileSize());
         sb.append("\nfileFormatSize: " + MUtils.formatFileSize(fileSize));
         sb.append("\ntotalTime: " + totalTime);
+        if (variant != null) sb.append("\nvariant: " + variant);
 
         for (M3U8Ts ts : tsList) {
             sb.append("\nts: " + ts);
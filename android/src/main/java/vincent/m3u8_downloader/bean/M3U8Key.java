@@ -0,0 +1,73 @@
+package vincent.m3u8_downloader.bean;
+
+import vincent.m3u8_downloader.utils.MD5Utils;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 切片的加密信息（#EXT-X-KEY）
+ * 同一个#EXT-X-KEY之后的切片引用同一个对象，直到下一个#EXT-X-KEY，key本身保存在KeyCache中
+ * ================================================
+ */
+public class M3U8Key {
+    public static final String METHOD_AES_128 = "AES-128";
+
+    private final String method;//加密方式
+    private final String url;//key的完整地址
+    private final String iv;//显式指定的iv，如0x1234...，没有时为null，按切片序号生成
+
+    public M3U8Key(String method, String url, String iv) {
+        this.method = method;
+        this.url = url;
+        this.iv = iv;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getIv() {
+        return iv;
+    }
+
+    /**
+     * 是否为可以解密的AES-128整段加密
+     */
+    public boolean isAes128() {
+        return METHOD_AES_128.equals(method) && url != null;
+    }
+
+    /**
+     * 保存在任务目录中的key文件名
+     */
+    public String obtainKeyFileName() {
+        return MD5Utils.encode(url).concat(".key");
+    }
+
+    /**
+     * 本地m3u8中的#EXT-X-KEY，key指向任务目录中的文件
+     * @param key 为null时表示后面的切片不加密
+     */
+    public static String obtainLocalTag(M3U8Key key) {
+        if (key == null) return "#EXT-X-KEY:METHOD=NONE";
+        StringBuilder sb = new StringBuilder("#EXT-X-KEY:METHOD=").append(key.method);
+        if (key.url != null) {
+            sb.append(",URI=\"").append(key.obtainKeyFileName()).append("\"");
+        }
+        if (key.iv != null) {
+            sb.append(",IV=").append(key.iv);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + url + (iv != null ? " iv=" + iv : "");
+    }
+}
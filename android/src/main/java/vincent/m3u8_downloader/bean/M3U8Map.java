@@ -0,0 +1,79 @@
+package vincent.m3u8_downloader.bean;
+
+import vincent.m3u8_downloader.utils.MD5Utils;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: fMP4切片的初始化段（#EXT-X-MAP）
+ * 同一个#EXT-X-MAP之后的切片引用同一个对象，直到下一个#EXT-X-MAP，初始化段本身保存在InitSectionCache中
+ * ================================================
+ */
+public class M3U8Map {
+    private final String url;//初始化段的完整地址
+    private final long byteRangeLength;//BYTERANGE的长度，整个文件时为-1
+    private final long byteRangeOffset;//BYTERANGE的起始位置
+    private final M3U8Key key;//#EXT-X-MAP之前生效的加密信息，不加密时为null
+
+    public M3U8Map(String url, long byteRangeLength, long byteRangeOffset, M3U8Key key) {
+        this.url = url;
+        this.byteRangeLength = byteRangeLength;
+        this.byteRangeOffset = byteRangeOffset;
+        this.key = key;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public long getByteRangeLength() {
+        return byteRangeLength;
+    }
+
+    public long getByteRangeOffset() {
+        return byteRangeOffset;
+    }
+
+    public M3U8Key getKey() {
+        return key;
+    }
+
+    public boolean hasByteRange() {
+        return byteRangeLength >= 0;
+    }
+
+    /**
+     * 是否需要AES-128解密
+     */
+    public boolean isEncrypted() {
+        return key != null && key.isAes128();
+    }
+
+    /**
+     * 缓存中的标识，同一个文件的不同范围分开缓存
+     */
+    public String obtainCacheKey() {
+        return hasByteRange() ? url + "#" + byteRangeLength + "@" + byteRangeOffset : url;
+    }
+
+    /**
+     * 保存在任务目录中的初始化段文件名
+     */
+    public String obtainMapFileName() {
+        return MD5Utils.encode(obtainCacheKey()).concat(".mp4");
+    }
+
+    /**
+     * 本地m3u8中的#EXT-X-MAP，指向任务目录中的文件
+     */
+    public String obtainLocalTag() {
+        return "#EXT-X-MAP:URI=\"" + obtainMapFileName() + "\"";
+    }
+
+    @Override
+    public String toString() {
+        return url + (hasByteRange() ? "[" + byteRangeLength + "@" + byteRangeOffset + "]" : "");
+    }
+}
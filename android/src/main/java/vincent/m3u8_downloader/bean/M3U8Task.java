@@ -16,6 +16,19 @@ public class M3U8Task {
     private int state = M3U8TaskState.DEFAULT;
     private long speed;
     private float progress;
+    private int retryCount;
+    /**
+     * 从头开始连续下载完成、可以播放的时长，单位毫秒
+     */
+    private long playableMillis;
+    /**
+     * 预检估算的总字节数，没有预检时为-1
+     */
+    private long totalBytes = -1;
+    /**
+     * 预计剩余时间，单位秒，未知时为-1
+     */
+    private long eta = -1;
     private M3U8 m3U8;
 
     private M3U8Task(){}
@@ -39,17 +52,17 @@ public class M3U8Task {
     }
 
     public long getTotalSize() {
-        if (m3U8 == null) return 0;
+        if (m3U8 == null) return totalBytes > 0 ? totalBytes : 0;
         return m3U8.getFileSize();
     }
 
     public String getFormatTotalSize() {
-        if (m3U8 == null)return "";
+        if (m3U8 == null)return totalBytes > 0 ? MUtils.formatFileSize(totalBytes) : "";
         return m3U8.getFormatFileSize();
     }
 
     public String getFormatCurrentSize() {
-        if (m3U8 == null)return "";
+        if (m3U8 == null)return totalBytes > 0 ? MUtils.formatFileSize((long)(progress * totalBytes)) : "";
         return MUtils.formatFileSize((long)(progress * m3U8.getFileSize()));
     }
 
@@ -85,6 +98,41 @@ public class M3U8Task {
         this.speed = speed;
     }
 
+    /**
+     * 本次下载累计的切片重试次数
+     */
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    public void setRetryCount(int retryCount) {
+        this.retryCount = retryCount;
+    }
+
+    public long getPlayableMillis() {
+        return playableMillis;
+    }
+
+    public void setPlayableMillis(long playableMillis) {
+        this.playableMillis = playableMillis;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    public long getEta() {
+        return eta;
+    }
+
+    public void setEta(long eta) {
+        this.eta = eta;
+    }
+
     public M3U8 getM3U8() {
         return m3U8;
     }
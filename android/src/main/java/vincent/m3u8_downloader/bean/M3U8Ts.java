@@ -11,6 +11,11 @@ public class M3U8Ts implements Comparable<M3U8Ts> {
     private String url;
     private long fileSize;
     private float seconds;
+    private long sequence;//媒体序号，从#EXT-X-MEDIA-SEQUENCE开始递增
+    private M3U8Key key;//加密信息，不加密时为null
+    private M3U8Map map;//fMP4的初始化段，不是fMP4时为null
+    private long byteRangeLength = -1;//#EXT-X-BYTERANGE的长度，切片是整个文件时为-1
+    private long byteRangeOffset;//#EXT-X-BYTERANGE在文件中的起始位置
 
     public M3U8Ts(String url, float seconds) {
         this.url = url;
@@ -33,8 +38,68 @@ public class M3U8Ts implements Comparable<M3U8Ts> {
         this.seconds = seconds;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public M3U8Key getKey() {
+        return key;
+    }
+
+    public void setKey(M3U8Key key) {
+        this.key = key;
+    }
+
+    public M3U8Map getMap() {
+        return map;
+    }
+
+    public void setMap(M3U8Map map) {
+        this.map = map;
+    }
+
+    /**
+     * 是否需要AES-128解密
+     */
+    public boolean isEncrypted() {
+        return key != null && key.isAes128();
+    }
+
+    public long getByteRangeLength() {
+        return byteRangeLength;
+    }
+
+    public long getByteRangeOffset() {
+        return byteRangeOffset;
+    }
+
+    /**
+     * 设置切片在文件中的字节范围
+     * @param length 长度，小于0表示整个文件
+     * @param offset 起始位置
+     */
+    public void setByteRange(long length, long offset) {
+        this.byteRangeLength = length;
+        this.byteRangeOffset = offset;
+    }
+
+    /**
+     * 是否只是文件中的一段（#EXT-X-BYTERANGE）
+     */
+    public boolean hasByteRange() {
+        return byteRangeLength >= 0;
+    }
+
     public String obtainEncodeTsFileName(){
         if (url == null)return "error.ts";
+        if (hasByteRange()) {
+            // 同一个文件中的不同范围分别保存
+            return MD5Utils.encode(url + "#" + byteRangeLength + "@" + byteRangeOffset).concat(".ts");
+        }
         return MD5Utils.encode(url).concat(".ts");
     }
 
@@ -52,6 +117,9 @@ public class M3U8Ts implements Comparable<M3U8Ts> {
     }
     @Override
     public String toString() {
+        if (hasByteRange()) {
+            return url + "[" + byteRangeLength + "@" + byteRangeOffset + "] (" + seconds + "sec)";
+        }
         return url + " (" + seconds + "sec)";
     }
 
@@ -0,0 +1,83 @@
+package vincent.m3u8_downloader.bean;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 主m3u8中的一个码率（#EXT-X-STREAM-INF）
+ * ================================================
+ */
+public class M3U8Variant {
+    private String url;//子m3u8的完整地址
+    private long bandwidth;//峰值码率，单位bit/s
+    private long averageBandwidth;//平均码率，单位bit/s，没有时为0
+    private int width;//分辨率宽，没有时为0
+    private int height;//分辨率高，没有时为0
+    private String codecs;//编码格式
+    private float frameRate;//帧率，没有时为0
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public long getBandwidth() {
+        return bandwidth;
+    }
+
+    public void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    public long getAverageBandwidth() {
+        return averageBandwidth;
+    }
+
+    public void setAverageBandwidth(long averageBandwidth) {
+        this.averageBandwidth = averageBandwidth;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public void setWidth(int width) {
+        this.width = width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setHeight(int height) {
+        this.height = height;
+    }
+
+    public String getCodecs() {
+        return codecs;
+    }
+
+    public void setCodecs(String codecs) {
+        this.codecs = codecs;
+    }
+
+    public float getFrameRate() {
+        return frameRate;
+    }
+
+    public void setFrameRate(float frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    @Override
+    public String toString() {
+        return "bandwidth: " + bandwidth
+                + (height > 0 ? ", resolution: " + width + "x" + height : "")
+                + (codecs != null ? ", codecs: " + codecs : "")
+                + ", url: " + url;
+    }
+}
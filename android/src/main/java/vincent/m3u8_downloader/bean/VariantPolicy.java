@@ -0,0 +1,117 @@
+package vincent.m3u8_downloader.bean;
+
+import java.util.List;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 主m3u8的码率选择策略
+ * 默认选第一个码率，与以前的行为一致
+ * ================================================
+ */
+public class VariantPolicy {
+    public static final int FIRST = 0;//主m3u8中的第一个
+    public static final int HIGHEST = 1;//码率最高
+    public static final int LOWEST = 2;//码率最低
+    public static final int MAX_BANDWIDTH = 3;//不超过指定码率的最高码率
+    public static final int RESOLUTION = 4;//分辨率高度最接近指定值
+
+    private final int type;
+    private final long value;
+
+    private VariantPolicy(int type, long value) {
+        this.type = type;
+        this.value = value;
+    }
+
+    public static VariantPolicy first() {
+        return new VariantPolicy(FIRST, 0);
+    }
+
+    public static VariantPolicy highest() {
+        return new VariantPolicy(HIGHEST, 0);
+    }
+
+    public static VariantPolicy lowest() {
+        return new VariantPolicy(LOWEST, 0);
+    }
+
+    /**
+     * @param bandwidth 码率上限，单位bit/s，全部超出时选最低的
+     */
+    public static VariantPolicy maxBandwidth(long bandwidth) {
+        return new VariantPolicy(MAX_BANDWIDTH, bandwidth);
+    }
+
+    /**
+     * @param height 目标分辨率高度，如720，同样接近时选码率低的
+     */
+    public static VariantPolicy resolution(int height) {
+        return new VariantPolicy(RESOLUTION, height);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    /**
+     * 按策略选择码率
+     * @return 列表为空时返回null
+     */
+    public M3U8Variant select(List<M3U8Variant> variants) {
+        if (variants == null || variants.isEmpty()) return null;
+        M3U8Variant selected = variants.get(0);
+        if (type == FIRST) return selected;
+        for (int i = 1; i < variants.size(); i++) {
+            M3U8Variant variant = variants.get(i);
+            if (isBetter(variant, selected)) {
+                selected = variant;
+            }
+        }
+        return selected;
+    }
+
+    private boolean isBetter(M3U8Variant a, M3U8Variant b) {
+        switch (type) {
+            case HIGHEST:
+                return a.getBandwidth() > b.getBandwidth();
+            case LOWEST:
+                return a.getBandwidth() < b.getBandwidth();
+            case MAX_BANDWIDTH:
+                boolean aFits = a.getBandwidth() <= value;
+                boolean bFits = b.getBandwidth() <= value;
+                if (aFits != bFits) return aFits;
+                // 都不超出时选高的，都超出时选低的
+                return aFits ? a.getBandwidth() > b.getBandwidth() : a.getBandwidth() < b.getBandwidth();
+            case RESOLUTION:
+                // 没有分辨率的排在最后
+                if ((a.getHeight() > 0) != (b.getHeight() > 0)) return a.getHeight() > 0;
+                long da = Math.abs(a.getHeight() - value);
+                long db = Math.abs(b.getHeight() - value);
+                if (da != db) return da < db;
+                return a.getBandwidth() < b.getBandwidth();
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof VariantPolicy) {
+            VariantPolicy policy = (VariantPolicy) obj;
+            return type == policy.type && value == policy.value;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return type * 31 + (int) (value ^ (value >>> 32));
+    }
+}
@@ -0,0 +1,170 @@
+package vincent.m3u8_downloader.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import vincent.m3u8_downloader.utils.BufferPool;
+import vincent.m3u8_downloader.utils.IoStats;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 下载统计
+ * 汇总所有任务的下载字节数、完成/失败/重试/对冲的切片数，以及每个切片的
+ * 建连耗时、首字节耗时、传输耗时分布。下载线程只做无锁累加，
+ * 读取时生成快照，同时附带缓冲区池和读写次数的统计。
+ * ================================================
+ */
+public class DownloadMetrics {
+    private static DownloadMetrics instance;
+
+    private final StripedCounter bytes = new StripedCounter();
+    private final StripedCounter segmentsCompleted = new StripedCounter();
+    private final StripedCounter segmentsFailed = new StripedCounter();
+    private final StripedCounter retries = new StripedCounter();
+    private final StripedCounter hedges = new StripedCounter();
+    private final StripedCounter hedgesWon = new StripedCounter();
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final LatencyHistogram firstByteTime = new LatencyHistogram();
+    private final LatencyHistogram transferTime = new LatencyHistogram();
+
+    private DownloadMetrics() {
+    }
+
+    public static DownloadMetrics getInstance() {
+        synchronized (DownloadMetrics.class) {
+            if (instance == null) {
+                instance = new DownloadMetrics();
+            }
+        }
+        return instance;
+    }
+
+    public void addBytes(long len) {
+        bytes.add(len);
+    }
+
+    public void onSegmentCompleted() {
+        segmentsCompleted.increment();
+    }
+
+    /**
+     * 切片下载失败一次，之后可能还会重试
+     */
+    public void onSegmentFailed() {
+        segmentsFailed.increment();
+    }
+
+    public void onRetry() {
+        retries.increment();
+    }
+
+    /**
+     * 慢切片发出了一个对冲请求
+     */
+    public void onHedge() {
+        hedges.increment();
+    }
+
+    /**
+     * 对冲请求比原请求先完成
+     */
+    public void onHedgeWon() {
+        hedgesWon.increment();
+    }
+
+    /**
+     * 记录一个切片请求的耗时
+     * @param connectMillis 建立连接，复用连接时接近0
+     * @param firstByteMillis 连接建立后到收到响应头
+     * @param transferMillis 收到响应头后到响应体读完
+     */
+    public void recordSegment(long connectMillis, long firstByteMillis, long transferMillis) {
+        connectTime.record(connectMillis);
+        firstByteTime.record(firstByteMillis);
+        transferTime.record(transferMillis);
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getSegmentsCompleted() {
+        return segmentsCompleted.sum();
+    }
+
+    public long getSegmentsFailed() {
+        return segmentsFailed.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    public long getHedgesWon() {
+        return hedgesWon.sum();
+    }
+
+    public LatencyHistogram getConnectTime() {
+        return connectTime;
+    }
+
+    public LatencyHistogram getFirstByteTime() {
+        return firstByteTime;
+    }
+
+    public LatencyHistogram getTransferTime() {
+        return transferTime;
+    }
+
+    /**
+     * 清空计数和耗时分布，缓冲区池等组件自身的统计不受影响
+     */
+    public void reset() {
+        bytes.reset();
+        segmentsCompleted.reset();
+        segmentsFailed.reset();
+        retries.reset();
+        hedges.reset();
+        hedgesWon.reset();
+        connectTime.reset();
+        firstByteTime.reset();
+        transferTime.reset();
+    }
+
+    /**
+     * 生成快照，便于通过channel传给flutter
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("bytes", getBytes());
+        map.put("segmentsCompleted", getSegmentsCompleted());
+        map.put("segmentsFailed", getSegmentsFailed());
+        map.put("retries", getRetries());
+        map.put("hedges", getHedges());
+        map.put("hedgesWon", getHedgesWon());
+        map.put("connectTime", connectTime.toMap());
+        map.put("firstByteTime", firstByteTime.toMap());
+        map.put("transferTime", transferTime.toMap());
+
+        BufferPool bufferPool = BufferPool.getInstance();
+        Map<String, Object> buffers = new HashMap<>();
+        buffers.put("bufferSize", bufferPool.getBufferSize());
+        buffers.put("allocated", bufferPool.getAllocatedCount());
+        buffers.put("allocatedBytes", bufferPool.getAllocatedBytes());
+        buffers.put("reused", bufferPool.getReusedCount());
+        map.put("buffers", buffers);
+
+        Map<String, Object> io = new HashMap<>();
+        io.put("reads", IoStats.getReadCount());
+        io.put("writes", IoStats.getWriteCount());
+        map.put("io", io);
+        return map;
+    }
+}
@@ -0,0 +1,102 @@
+package vincent.m3u8_downloader.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 耗时直方图，单位毫秒
+ * 按2的幂分桶：第0个桶为0ms，第i个桶为[2^(i-1), 2^i)ms，最后一个桶收纳更大的值。
+ * 记录只做无锁的原子累加，分位数取所在桶的上界，误差不超过2倍。
+ * ================================================
+ */
+public class LatencyHistogram {
+    /**
+     * 桶个数，最后一个有界的桶约为2^20ms，即17分钟
+     */
+    private static final int BUCKETS = 22;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter sum = new StripedCounter();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long millis) {
+        if (millis < 0) millis = 0;
+        buckets.incrementAndGet(bucketOf(millis));
+        count.increment();
+        sum.add(millis);
+        long cur;
+        while (millis > (cur = max.get())) {
+            if (max.compareAndSet(cur, millis)) break;
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * 分位数
+     * @param quantile 0到1之间
+     * @return 所在桶的上界，没有数据时返回0
+     */
+    public long getPercentile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(quantile * total);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * 转成Map，便于通过channel传给flutter
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        long n = count.sum();
+        map.put("count", n);
+        map.put("mean", n == 0 ? 0 : sum.sum() / n);
+        map.put("p50", getPercentile(0.5));
+        map.put("p90", getPercentile(0.9));
+        map.put("p99", getPercentile(0.99));
+        map.put("max", max.get());
+        return map;
+    }
+
+    private static int bucketOf(long millis) {
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket == BUCKETS - 1) return Long.MAX_VALUE;
+        return (1L << bucket) - 1;
+    }
+}
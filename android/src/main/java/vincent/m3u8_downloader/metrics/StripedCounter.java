@@ -0,0 +1,57 @@
+package vincent.m3u8_downloader.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 分段计数器
+ * 多个下载线程同时累加时，按线程分散到不同的槽位，避免争用同一个AtomicLong；
+ * 槽位之间隔开一个缓存行，避免伪共享。读取时把所有槽位相加。
+ * ================================================
+ */
+public class StripedCounter {
+    /**
+     * 槽位个数，2的幂
+     */
+    private static final int STRIPES = 8;
+    /**
+     * 相邻槽位间隔的long个数，64字节一个缓存行
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void add(long delta) {
+        cells.addAndGet(index(), delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * 当前合计值，并发累加时不保证是同一时刻的快照
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+
+    private static int index() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((h >>> 16) & (STRIPES - 1)) * PADDING;
+    }
+}
@@ -0,0 +1,139 @@
+package vincent.m3u8_downloader.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import vincent.m3u8_downloader.utils.BufferPool;
+import vincent.m3u8_downloader.utils.IoStats;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 默认的网络传输，基于HttpURLConnection和{@link HttpConnectionPool}
+ * 请求在调用线程同步完成，每个传输占用一个线程。
+ * 传输中通过{@link FetchRequest#cancel()}取消，会直接断开连接，阻塞中的读取立即出错返回。
+ * ================================================
+ */
+public class DefaultSegmentFetcher implements SegmentFetcher {
+    private static final FetchCall COMPLETED_CALL = new FetchCall() {
+        @Override
+        public void cancel() {
+        }
+    };
+
+    private static DefaultSegmentFetcher instance;
+
+    private DefaultSegmentFetcher() {
+    }
+
+    public static DefaultSegmentFetcher getInstance() {
+        synchronized (DefaultSegmentFetcher.class) {
+            if (instance == null) {
+                instance = new DefaultSegmentFetcher();
+            }
+        }
+        return instance;
+    }
+
+    @Override
+    public InputStream openStream(String url) throws IOException {
+        return HttpConnectionPool.getInstance().openStream(url);
+    }
+
+    @Override
+    public FetchCall fetch(FetchRequest request, FetchListener listener) {
+        PooledConnection connection = null;
+        boolean consumed = false;
+        InputStream inputStream = null;
+        byte[] buf = null;
+        IOException error = null;
+        try {
+            connection = HttpConnectionPool.getInstance().open(request.getUrl());
+            final HttpURLConnection conn = connection.getConnection();
+            boolean attached = request.attach(new FetchCall() {
+                @Override
+                public void cancel() {
+                    conn.disconnect();
+                }
+            });
+            if (!attached) {
+                throw new InterruptedIOException("request cancelled");
+            }
+            conn.setRequestMethod(request.getMethod());
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+            long startTime = System.nanoTime();
+            conn.connect();
+            long connectedTime = System.nanoTime();
+            int code = connection.getResponseCode();
+            long firstByteTime = System.nanoTime();
+            FetchResponse response = new FetchResponse(code, obtainHeaders(conn),
+                    (connectedTime - startTime) / 1000000, (firstByteTime - connectedTime) / 1000000);
+            if (listener.onResponse(response)) {
+                inputStream = conn.getInputStream();
+                buf = BufferPool.getInstance().acquire();
+                int len;
+                while ((len = inputStream.read(buf)) != -1) {
+                    IoStats.recordRead();
+                    long pause = listener.onData(buf, 0, len);
+                    if (pause > 0) {
+                        try {
+                            Thread.sleep(pause);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException("thread interrupted");
+                        }
+                    }
+                }
+                consumed = true;
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (Throwable e) {
+            // listener中的运行时异常同样结束请求，否则调用方等不到回调
+            error = new IOException(e);
+        } finally {
+            // 先解除关联，之后的取消不会断开已经还回池中的连接
+            request.attach(null);
+            if (error != null && request.isCancelled()) {
+                error = new InterruptedIOException("request cancelled");
+            }
+            close(inputStream);
+            HttpConnectionPool.getInstance().release(connection, error == null && consumed);
+            BufferPool.getInstance().release(buf);
+        }
+        if (error != null) {
+            listener.onError(error);
+        } else {
+            listener.onComplete();
+        }
+        return COMPLETED_CALL;
+    }
+
+    private static Map<String, String> obtainHeaders(HttpURLConnection conn) {
+        Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : conn.getHeaderFields().entrySet()) {
+            // key为null的是状态行
+            if (entry.getKey() == null || entry.getValue() == null || entry.getValue().isEmpty()) continue;
+            List<String> values = entry.getValue();
+            headers.put(entry.getKey().toLowerCase(), values.get(values.size() - 1));
+        }
+        return headers;
+    }
+
+    private static void close(InputStream inputStream) {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package vincent.m3u8_downloader.net;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 已发起的请求
+ * ================================================
+ */
+public interface FetchCall {
+
+    /**
+     * 取消请求，还没结束的请求会回调{@link FetchListener#onError(java.io.IOException)}
+     */
+    void cancel();
+}
@@ -0,0 +1,44 @@
+package vincent.m3u8_downloader.net;
+
+import java.io.IOException;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 请求的回调，同一个请求的回调不会并发执行
+ * 回调中抛出的异常会结束请求，并转到{@link #onError(IOException)}。
+ * ================================================
+ */
+public interface FetchListener {
+
+    /**
+     * 收到响应头
+     *
+     * @param response
+     * @return 是否需要读取响应体，返回false时直接结束请求并回调{@link #onComplete()}
+     * @throws IOException
+     */
+    boolean onResponse(FetchResponse response) throws IOException;
+
+    /**
+     * 收到响应体数据，data只在回调期间有效
+     *
+     * @return 需要暂停读取的毫秒数，用于限速，不需要暂停返回0
+     * @throws IOException
+     */
+    long onData(byte[] data, int off, int len) throws IOException;
+
+    /**
+     * 响应体读取完毕
+     */
+    void onComplete();
+
+    /**
+     * 请求失败或被取消
+     *
+     * @param e
+     */
+    void onError(IOException e);
+}
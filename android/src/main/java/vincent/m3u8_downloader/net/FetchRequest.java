@@ -0,0 +1,83 @@
+package vincent.m3u8_downloader.net;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 请求参数
+ * ================================================
+ */
+public class FetchRequest {
+    private final String url;
+    private String method = "GET";
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private boolean cancelled = false;
+    /**
+     * 正在进行的传输，取消请求时一并取消
+     */
+    private FetchCall call;
+
+    public FetchRequest(String url) {
+        this.url = url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public FetchRequest setMethod(String method) {
+        this.method = method;
+        return this;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public FetchRequest addHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * 取消请求，在其他线程调用。同步传输时拿不到{@link FetchCall}，通过这里断开正在使用的连接
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        if (call != null) {
+            call.cancel();
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 关联正在进行的传输，传输结束后传null解除关联
+     * @return 请求已经取消时返回false，不再关联
+     */
+    synchronized boolean attach(FetchCall call) {
+        if (cancelled && call != null) return false;
+        this.call = call;
+        return true;
+    }
+
+    /**
+     * 复制请求头，用于重定向
+     */
+    FetchRequest copy(String url) {
+        FetchRequest request = new FetchRequest(url);
+        request.method = method;
+        request.headers.putAll(headers);
+        return request;
+    }
+}
@@ -0,0 +1,62 @@
+package vincent.m3u8_downloader.net;
+
+import java.util.Map;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 响应头和请求耗时
+ * ================================================
+ */
+public class FetchResponse {
+    private final int code;
+    /**
+     * 响应头，key为小写
+     */
+    private final Map<String, String> headers;
+    private final long connectMillis;
+    private final long firstByteMillis;
+    private final long receivedAt;
+
+    FetchResponse(int code, Map<String, String> headers, long connectMillis, long firstByteMillis) {
+        this.code = code;
+        this.headers = headers;
+        this.connectMillis = connectMillis;
+        this.firstByteMillis = firstByteMillis;
+        this.receivedAt = System.nanoTime();
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * 获取响应头，不区分大小写
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * 建立连接的耗时，复用连接时接近0
+     */
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    /**
+     * 连接建立后到收到响应头的耗时
+     */
+    public long getFirstByteMillis() {
+        return firstByteMillis;
+    }
+
+    /**
+     * 收到响应头到现在的耗时
+     */
+    public long getElapsedMillis() {
+        return (System.nanoTime() - receivedAt) / 1000000;
+    }
+}
@@ -0,0 +1,29 @@
+package vincent.m3u8_downloader.net;
+
+import vincent.m3u8_downloader.M3U8DownloaderConfig;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 获取当前使用的{@link SegmentFetcher}
+ * 没有设置自定义实现时，按配置选择默认实现或NIO实现。
+ * ================================================
+ */
+public class Fetchers {
+    private static volatile SegmentFetcher customFetcher;
+
+    public static SegmentFetcher get() {
+        SegmentFetcher fetcher = customFetcher;
+        if (fetcher != null) return fetcher;
+        return M3U8DownloaderConfig.isNioEnabled() ? NioSegmentFetcher.getInstance() : DefaultSegmentFetcher.getInstance();
+    }
+
+    /**
+     * 设置自定义实现，为空时恢复按配置选择
+     */
+    public static void set(SegmentFetcher fetcher) {
+        customFetcher = fetcher;
+    }
+}
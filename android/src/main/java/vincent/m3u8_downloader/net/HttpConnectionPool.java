@@ -0,0 +1,244 @@
+package vincent.m3u8_downloader.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import vincent.m3u8_downloader.M3U8DownloaderConfig;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 按host复用的HTTP连接池
+ * 真正的socket由系统HttpURLConnection的keep-alive池持有，这里负责：
+ * 1. 初始化时按配置设置keep-alive参数（空闲时长、每个host保留的空闲连接数），见{@link #applyKeepAlive()}；
+ * 2. 限制同一个host同时占用的连接数，超出时等待，上限每次借出时重新读取配置；
+ * 3. 释放时把响应体读完再关闭，保证socket能回到池中，读不完的直接断开。
+ * 系统池不暴露socket，看不到连接是新建还是复用，所以不统计复用率。
+ * ================================================
+ */
+public class HttpConnectionPool {
+    /**
+     * 空闲连接保留时长
+     */
+    public static final long KEEP_ALIVE_DURATION = 60 * 1000;
+    /**
+     * 释放时最多读掉的剩余响应体，超过就断开连接
+     */
+    private static final int MAX_DRAIN_SIZE = 64 * 1024;
+    /**
+     * 等待连接时重新检查上限的间隔，配置修改后不用等到有连接释放
+     */
+    private static final long WAIT_INTERVAL = 1000;
+
+    private static HttpConnectionPool instance;
+
+    private final Object lock = new Object();
+    private final Map<String, HostPool> hostPools = new HashMap<>();
+
+    private HttpConnectionPool() {
+    }
+
+    /**
+     * 设置系统keep-alive池的参数。系统池在第一次建立连接时读取并且之后不再读取，
+     * 所以要在插件初始化时、发出任何请求之前调用，之后修改每个host的连接数只影响借出的上限
+     */
+    public static void applyKeepAlive() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(M3U8DownloaderConfig.getMaxConnectionsPerHost()));
+        System.setProperty("http.keepAliveDuration", String.valueOf(KEEP_ALIVE_DURATION));
+    }
+
+    public static HttpConnectionPool getInstance() {
+        synchronized (HttpConnectionPool.class) {
+            if (instance == null) {
+                instance = new HttpConnectionPool();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 打开连接，同一个host的连接数达到上限时阻塞等待，最多等待读取超时的时长
+     *
+     * @param url
+     * @return 使用完后必须调用{@link #release(PooledConnection, boolean)}
+     * @throws IOException
+     */
+    public PooledConnection open(String url) throws IOException {
+        URL u = new URL(url);
+        String hostKey = obtainHostKey(u);
+        synchronized (lock) {
+            HostPool pool = hostPools.get(hostKey);
+            if (pool == null) {
+                pool = new HostPool();
+                hostPools.put(hostKey, pool);
+            }
+            // 等待期间登记在池上，其他线程释放后不会把这个host的池移除
+            pool.waiters++;
+            try {
+                long deadline = System.currentTimeMillis() + M3U8DownloaderConfig.getReadTimeout();
+                while (pool.leased >= M3U8DownloaderConfig.getMaxConnectionsPerHost()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("wait for connection timeout: " + hostKey);
+                    }
+                    try {
+                        lock.wait(Math.min(remaining, WAIT_INTERVAL));
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("thread interrupted");
+                    }
+                }
+                pool.leased++;
+            } finally {
+                pool.waiters--;
+                removeIfUnused(hostKey, pool);
+            }
+        }
+        HttpURLConnection conn;
+        try {
+            conn = (HttpURLConnection) u.openConnection();
+        } catch (IOException e) {
+            releaseLease(hostKey);
+            throw e;
+        }
+        conn.setConnectTimeout(M3U8DownloaderConfig.getConnTimeout());
+        conn.setReadTimeout(M3U8DownloaderConfig.getReadTimeout());
+        conn.setRequestProperty("Connection", "keep-alive");
+        return new PooledConnection(conn, hostKey);
+    }
+
+    /**
+     * 打开响应流，关闭流时自动释放连接
+     *
+     * @param url
+     * @return
+     * @throws IOException 响应码不是2xx时抛出
+     */
+    public InputStream openStream(String url) throws IOException {
+        final PooledConnection connection = open(url);
+        try {
+            int code = connection.getResponseCode();
+            if (code / 100 != 2) {
+                throw new IOException(String.valueOf(code));
+            }
+            return new FilterInputStream(connection.getConnection().getInputStream()) {
+                private boolean eof = false;
+
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b == -1) eof = true;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n == -1) eof = true;
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        release(connection, eof);
+                    }
+                }
+            };
+        } catch (IOException e) {
+            release(connection, false);
+            throw e;
+        }
+    }
+
+    /**
+     * 释放连接
+     *
+     * @param connection
+     * @param consumed 调用方是否已经把响应体读完并关闭了流
+     */
+    public void release(PooledConnection connection, boolean consumed) {
+        if (connection == null || connection.released) return;
+        connection.released = true;
+        boolean reusable = consumed || (connection.hasResponse() && drain(connection));
+        if (!reusable) {
+            connection.getConnection().disconnect();
+        }
+        releaseLease(connection.hostKey);
+    }
+
+    private void releaseLease(String hostKey) {
+        synchronized (lock) {
+            HostPool pool = hostPools.get(hostKey);
+            if (pool == null) return;
+            pool.leased--;
+            removeIfUnused(hostKey, pool);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 没有借出也没有等待的连接时移除host的池，需持有lock
+     */
+    private void removeIfUnused(String hostKey, HostPool pool) {
+        if (pool.leased == 0 && pool.waiters == 0 && hostPools.get(hostKey) == pool) {
+            hostPools.remove(hostKey);
+        }
+    }
+
+    /**
+     * 读完剩余响应体，返回连接能否复用
+     */
+    private boolean drain(PooledConnection connection) {
+        HttpURLConnection conn = connection.getConnection();
+        InputStream in = null;
+        try {
+            in = connection.getResponseCode() >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            if (in == null) return true;
+            byte[] buf = new byte[4096];
+            int total = 0;
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                total += len;
+                if (total > MAX_DRAIN_SIZE) return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static String obtainHostKey(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    private static class HostPool {
+        /**
+         * 正在使用的连接数
+         */
+        int leased = 0;
+        /**
+         * 等待借出的线程数
+         */
+        int waiters = 0;
+    }
+}
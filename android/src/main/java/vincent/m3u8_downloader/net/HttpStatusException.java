@@ -0,0 +1,37 @@
+package vincent.m3u8_downloader.net;
+
+import java.io.IOException;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 响应码不符合预期，message为响应码
+ * ================================================
+ */
+public class HttpStatusException extends IOException {
+    private final int code;
+    /**
+     * 服务器要求的重试等待时间（Retry-After），单位毫秒，没有为-1
+     */
+    private final long retryAfter;
+
+    public HttpStatusException(int code) {
+        this(code, -1);
+    }
+
+    public HttpStatusException(int code, long retryAfter) {
+        super(String.valueOf(code));
+        this.code = code;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,1002 @@
+package vincent.m3u8_downloader.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import vincent.m3u8_downloader.M3U8DownloaderConfig;
+import vincent.m3u8_downloader.utils.BufferPool;
+import vincent.m3u8_downloader.utils.IoStats;
+import vincent.m3u8_downloader.utils.M3U8Log;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 基于selector的非阻塞网络传输
+ * 所有http请求由同一个selector线程驱动：建立连接、发送请求、解析响应头、
+ * 按Content-Length或chunked读取响应体，读到的数据直接回调给listener，
+ * 不需要每个传输占用一个阻塞的线程。
+ * 1. 读完响应体的连接按host保留，空闲超过{@link HttpConnectionPool#KEEP_ALIVE_DURATION}后关闭；
+ *    复用的连接已经被服务器关闭时，换新连接重发一次；
+ * 2. 同一个host同时传输的请求数不超过{@link M3U8DownloaderConfig#getMaxConnectionsPerHost()}，超出的排队等待；
+ * 3. listener要求暂停读取（限速）时，暂时取消该连接的读事件，到时间再恢复；
+ * 4. https、m3u8和key的请求交给fallback处理；重定向在回调线程中重新发起，跳转到https时由fallback在回调线程中同步完成。
+ * 目前只支持http，大多数CDN使用的https仍然是每个传输占用一个线程。同时进行的传输数仍受调度器的
+ * 全局并发数和每个host的连接数限制，所以这是一个默认关闭的实验性选项，还不能用少量线程驱动上百个传输。
+ * DNS解析在调用fetch的线程完成，不阻塞selector线程。
+ * listener的回调（写文件、重命名、预分配等磁盘操作）按请求顺序交给回调线程执行，
+ * 同一个请求还没回调的数据超过几个缓冲区时暂停读取，慢的磁盘操作不会拖住其他连接。
+ * ================================================
+ */
+public class NioSegmentFetcher implements SegmentFetcher {
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_REDIRECTS = 5;
+    /**
+     * select的最长等待时间，用于检查超时、取消和恢复暂停的连接
+     */
+    private static final long SELECT_TIMEOUT = 500;
+    /**
+     * 执行listener回调的线程数
+     */
+    private static final int CALLBACK_THREAD_COUNT = 4;
+    /**
+     * 同一个请求最多积压的缓冲区数，超过后暂停读取
+     */
+    private static final int MAX_PENDING_BUFFERS = 4;
+
+    private static final int STATE_CONNECTING = 0;
+    private static final int STATE_WRITING = 1;
+    private static final int STATE_HEADERS = 2;
+    private static final int STATE_BODY_LENGTH = 3;
+    private static final int STATE_BODY_CLOSE = 4;
+    private static final int STATE_CHUNK_SIZE = 5;
+    private static final int STATE_CHUNK_DATA = 6;
+    private static final int STATE_CHUNK_END = 7;
+    private static final int STATE_TRAILER = 8;
+
+    private static final int EVENT_RESPONSE = 0;
+    private static final int EVENT_DATA = 1;
+    private static final int EVENT_END = 2;
+
+    private static NioSegmentFetcher instance;
+
+    private final SegmentFetcher fallback;
+    private final ConcurrentLinkedQueue<Call> pending = new ConcurrentLinkedQueue<>();
+    /**
+     * 以下字段只在selector线程中访问
+     */
+    private final Set<Call> activeCalls = new HashSet<>();
+    /**
+     * 每个host正在传输的请求数
+     */
+    private final Map<String, Integer> hostActiveCounts = new HashMap<>();
+    /**
+     * 每个host因连接数达到上限而排队的请求
+     */
+    private final Map<String, ArrayDeque<Call>> waitingCalls = new HashMap<>();
+    private final Map<String, ArrayDeque<IdleChannel>> idleChannels = new HashMap<>();
+    private volatile Selector selector;
+    private final ExecutorService callbackExecutor = Executors.newFixedThreadPool(CALLBACK_THREAD_COUNT, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "M3U8NioCallback-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public NioSegmentFetcher(SegmentFetcher fallback) {
+        this.fallback = fallback;
+    }
+
+    public static NioSegmentFetcher getInstance() {
+        synchronized (NioSegmentFetcher.class) {
+            if (instance == null) {
+                instance = new NioSegmentFetcher(DefaultSegmentFetcher.getInstance());
+            }
+        }
+        return instance;
+    }
+
+    @Override
+    public InputStream openStream(String url) throws IOException {
+        return fallback.openStream(url);
+    }
+
+    @Override
+    public FetchCall fetch(FetchRequest request, FetchListener listener) {
+        return fetch(request, listener, 0);
+    }
+
+    private FetchCall fetch(FetchRequest request, FetchListener listener, int redirects) {
+        URL url;
+        try {
+            url = new URL(request.getUrl());
+        } catch (MalformedURLException e) {
+            listener.onError(e);
+            return new Call(request, null, listener, redirects);
+        }
+        if (!"http".equals(url.getProtocol())) {
+            return fallback.fetch(request, listener);
+        }
+        Call call = new Call(request, url, listener, redirects);
+        try {
+            int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+            call.address = new InetSocketAddress(InetAddress.getByName(url.getHost()), port);
+            ensureSelector();
+        } catch (IOException e) {
+            call.done = true;
+            listener.onError(e);
+            return call;
+        }
+        pending.offer(call);
+        selector.wakeup();
+        return call;
+    }
+
+    private synchronized void ensureSelector() throws IOException {
+        if (selector != null) return;
+        selector = Selector.open();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "M3U8Nio");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void loop() {
+        while (true) {
+            try {
+                selector.select(SELECT_TIMEOUT);
+            } catch (IOException e) {
+                M3U8Log.e("nio select error: " + e.getMessage());
+            }
+            // 先处理就绪的连接再开始新请求，已经被服务器关闭的空闲连接不会被新请求拿去复用
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                Object attachment = key.attachment();
+                if (attachment instanceof Call) {
+                    handle((Call) attachment, key);
+                } else {
+                    // 空闲连接可读，说明服务器已经关闭了连接
+                    removeIdle((IdleChannel) attachment);
+                }
+            }
+            long now = System.currentTimeMillis();
+            Call call;
+            while ((call = pending.poll()) != null) {
+                start(call, now);
+            }
+            startWaiting(now);
+            checkCalls(System.currentTimeMillis());
+            evictIdle(System.currentTimeMillis());
+        }
+    }
+
+    private void start(Call call, long now) {
+        if (call.cancelled) {
+            call.done = true;
+            post(call, new Event(EVENT_END, new InterruptedIOException("thread interrupted")));
+            return;
+        }
+        String hostKey = call.hostKey();
+        if (getActiveCount(hostKey) >= M3U8DownloaderConfig.getMaxConnectionsPerHost()) {
+            ArrayDeque<Call> deque = waitingCalls.get(hostKey);
+            if (deque == null) {
+                deque = new ArrayDeque<>();
+                waitingCalls.put(hostKey, deque);
+            }
+            deque.offerLast(call);
+            return;
+        }
+        activeCalls.add(call);
+        hostActiveCounts.put(hostKey, getActiveCount(hostKey) + 1);
+        call.startTime = now;
+        call.lastActivity = now;
+        call.startNanos = System.nanoTime();
+        IdleChannel idle = pollIdle(call.hostKey(), now);
+        try {
+            if (idle != null) {
+                call.channel = idle.channel;
+                call.reused = true;
+                call.key = idle.channel.keyFor(selector);
+                call.key.attach(call);
+                call.connectedNanos = call.startNanos;
+                beginWrite(call);
+            } else {
+                connect(call);
+            }
+        } catch (IOException e) {
+            fail(call, e);
+        }
+    }
+
+    /**
+     * 有请求结束后，按顺序开始排队的请求，已经取消的直接回调失败
+     */
+    private void startWaiting(long now) {
+        Iterator<Map.Entry<String, ArrayDeque<Call>>> iterator = waitingCalls.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, ArrayDeque<Call>> entry = iterator.next();
+            ArrayDeque<Call> deque = entry.getValue();
+            int max = M3U8DownloaderConfig.getMaxConnectionsPerHost();
+            Iterator<Call> calls = deque.iterator();
+            while (calls.hasNext()) {
+                Call call = calls.next();
+                if (call.cancelled || getActiveCount(entry.getKey()) < max) {
+                    calls.remove();
+                    start(call, now);
+                }
+            }
+            if (deque.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private int getActiveCount(String hostKey) {
+        Integer count = hostActiveCounts.get(hostKey);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * 请求结束，不再占用host的连接数
+     */
+    private void deactivate(Call call) {
+        if (!activeCalls.remove(call)) return;
+        String hostKey = call.hostKey();
+        int count = getActiveCount(hostKey) - 1;
+        if (count > 0) {
+            hostActiveCounts.put(hostKey, count);
+        } else {
+            hostActiveCounts.remove(hostKey);
+        }
+    }
+
+    private void connect(Call call) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        call.channel = channel;
+        call.reused = false;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        if (channel.connect(call.address)) {
+            call.key = channel.register(selector, 0, call);
+            call.connectedNanos = System.nanoTime();
+            beginWrite(call);
+        } else {
+            call.state = STATE_CONNECTING;
+            call.key = channel.register(selector, SelectionKey.OP_CONNECT, call);
+        }
+    }
+
+    private void beginWrite(Call call) {
+        call.state = STATE_WRITING;
+        call.out = ByteBuffer.wrap(call.buildRequest());
+        call.key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void handle(Call call, SelectionKey key) {
+        if (call.done) return;
+        try {
+            if (key.isValid() && key.isConnectable()) {
+                if (call.channel.finishConnect()) {
+                    call.connectedNanos = System.nanoTime();
+                    call.lastActivity = System.currentTimeMillis();
+                    beginWrite(call);
+                }
+            }
+            if (!call.done && call.out != null && key.isValid() && key.isWritable()) {
+                call.channel.write(call.out);
+                call.lastActivity = System.currentTimeMillis();
+                if (!call.out.hasRemaining()) {
+                    call.out = null;
+                    call.state = STATE_HEADERS;
+                    call.in = ByteBuffer.wrap(BufferPool.getInstance().acquire());
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            if (!call.done && call.in != null && key.isValid() && key.isReadable()) {
+                read(call);
+            }
+        } catch (IOException e) {
+            if (!retryOnFreshConnection(call)) {
+                fail(call, e);
+            }
+        } catch (RuntimeException e) {
+            // 解析中的异常不能让selector线程退出
+            fail(call, new IOException(e));
+        }
+    }
+
+    private void read(Call call) throws IOException {
+        call.in.clear();
+        int n = call.channel.read(call.in);
+        IoStats.recordRead();
+        if (n == -1) {
+            if (call.state == STATE_BODY_CLOSE) {
+                complete(call, false);
+            } else if (!retryOnFreshConnection(call)) {
+                fail(call, new EOFException("unexpected end of stream"));
+            }
+            return;
+        }
+        if (n == 0) return;
+        call.lastActivity = System.currentTimeMillis();
+        call.receivedAny = true;
+        process(call, call.in.array(), 0, n);
+    }
+
+    /**
+     * 复用的连接还没收到任何响应就失败了，多半是服务器已经关闭了空闲连接，换新连接重发
+     */
+    private boolean retryOnFreshConnection(Call call) {
+        if (call.done || !call.reused || call.receivedAny) return false;
+        closeChannel(call);
+        call.resetParser();
+        try {
+            connect(call);
+        } catch (IOException e) {
+            fail(call, e);
+        }
+        return true;
+    }
+
+    /**
+     * 解析读到的数据
+     */
+    private void process(Call call, byte[] data, int off, int len) throws IOException {
+        while (len > 0 && !call.done) {
+            switch (call.state) {
+                case STATE_HEADERS: {
+                    int used = call.appendHeader(data, off, len);
+                    off += used;
+                    len -= used;
+                    if (call.headerComplete) {
+                        onHeaders(call);
+                    }
+                    break;
+                }
+                case STATE_BODY_LENGTH: {
+                    int n = (int) Math.min(len, call.remaining);
+                    deliver(call, data, off, n);
+                    off += n;
+                    len -= n;
+                    call.remaining -= n;
+                    if (call.remaining == 0 && !call.done) {
+                        complete(call, call.keepAlive && len == 0);
+                    }
+                    break;
+                }
+                case STATE_BODY_CLOSE: {
+                    deliver(call, data, off, len);
+                    len = 0;
+                    break;
+                }
+                case STATE_CHUNK_SIZE:
+                case STATE_CHUNK_END:
+                case STATE_TRAILER: {
+                    int used = call.appendLine(data, off, len);
+                    off += used;
+                    len -= used;
+                    if (call.lineComplete) {
+                        onChunkLine(call);
+                    }
+                    break;
+                }
+                case STATE_CHUNK_DATA: {
+                    int n = (int) Math.min(len, call.remaining);
+                    deliver(call, data, off, n);
+                    off += n;
+                    len -= n;
+                    call.remaining -= n;
+                    if (call.remaining == 0) {
+                        call.state = STATE_CHUNK_END;
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("unexpected data");
+            }
+        }
+    }
+
+    private void onHeaders(Call call) throws IOException {
+        String[] lines = new String(call.headerBuf, 0, call.headerLen, "ISO-8859-1").split("\r\n");
+        String[] status = lines[0].split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+            throw new IOException("bad status line: " + lines[0]);
+        }
+        int code;
+        try {
+            code = Integer.parseInt(status[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("bad status line: " + lines[0]);
+        }
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) continue;
+            headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+        }
+        call.resetHeader();
+        if (code / 100 == 1) {
+            // 100 Continue之类的临时响应，继续读下一个响应头
+            return;
+        }
+        String connection = headers.get("connection");
+        call.keepAlive = "HTTP/1.1".equals(status[0]) ? !"close".equalsIgnoreCase(connection)
+                : "keep-alive".equalsIgnoreCase(connection);
+
+        String location = headers.get("location");
+        if (location != null && call.redirects < MAX_REDIRECTS
+                && (code == 301 || code == 302 || code == 303 || code == 307 || code == 308)) {
+            redirect(call, code, location);
+            return;
+        }
+
+        FetchResponse response = new FetchResponse(code, headers,
+                (call.connectedNanos - call.startNanos) / 1000000, (System.nanoTime() - call.connectedNanos) / 1000000);
+        boolean hasBody = !"HEAD".equals(call.request.getMethod()) && code != 204 && code != 304;
+        String transferEncoding = headers.get("transfer-encoding");
+        long contentLength = -1;
+        if (headers.get("content-length") != null) {
+            try {
+                contentLength = Long.parseLong(headers.get("content-length"));
+            } catch (NumberFormatException e) {
+                throw new IOException("bad content-length: " + headers.get("content-length"));
+            }
+        }
+        // listener在回调线程中决定是否需要响应体，不需要时通过aborted结束请求
+        post(call, new Event(response));
+        if (!hasBody || contentLength == 0) {
+            complete(call, call.keepAlive);
+        } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            call.state = STATE_CHUNK_SIZE;
+        } else if (contentLength > 0) {
+            call.state = STATE_BODY_LENGTH;
+            call.remaining = contentLength;
+        } else {
+            call.state = STATE_BODY_CLOSE;
+            call.keepAlive = false;
+        }
+    }
+
+    private void onChunkLine(Call call) throws IOException {
+        String line = call.takeLine();
+        switch (call.state) {
+            case STATE_CHUNK_SIZE: {
+                int ext = line.indexOf(';');
+                if (ext >= 0) line = line.substring(0, ext);
+                long size;
+                try {
+                    size = Long.parseLong(line.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("bad chunk size: " + line);
+                }
+                if (size == 0) {
+                    call.state = STATE_TRAILER;
+                } else {
+                    call.state = STATE_CHUNK_DATA;
+                    call.remaining = size;
+                }
+                break;
+            }
+            case STATE_CHUNK_END:
+                call.state = STATE_CHUNK_SIZE;
+                break;
+            case STATE_TRAILER:
+                if (line.length() == 0) {
+                    complete(call, call.keepAlive);
+                }
+                break;
+        }
+    }
+
+    private void deliver(Call call, byte[] data, int off, int len) {
+        if (len <= 0) return;
+        // data是读取用的缓冲区，复制一份交给回调线程
+        byte[] copy = BufferPool.getInstance().acquire();
+        System.arraycopy(data, off, copy, 0, len);
+        call.pendingBytes.addAndGet(len);
+        post(call, new Event(copy, len));
+        updateReading(call, System.currentTimeMillis());
+    }
+
+    /**
+     * 限速要求暂停或回调积压过多时停止读取，条件解除后恢复
+     * @return 是否处于暂停中
+     */
+    private boolean updateReading(Call call, long now) {
+        if (call.done || call.in == null || call.key == null || !call.key.isValid()) return false;
+        boolean pause = call.pauseUntil > now
+                || call.pendingBytes.get() > (long) MAX_PENDING_BUFFERS * BufferPool.getInstance().getBufferSize();
+        if (pause != call.paused) {
+            call.paused = pause;
+            call.key.interestOps(pause ? 0 : SelectionKey.OP_READ);
+        }
+        if (pause) {
+            // 暂停期间不计算读取超时
+            call.lastActivity = now;
+        }
+        return pause;
+    }
+
+    /**
+     * 把回调加入请求的队列，由回调线程按顺序执行
+     */
+    private void post(final Call call, Event event) {
+        call.events.offer(event);
+        if (call.draining.compareAndSet(false, true)) {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(call);
+                }
+            });
+        }
+    }
+
+    /**
+     * 在回调线程中执行请求积压的回调，同一个请求同时只有一个线程在执行
+     */
+    private void drain(Call call) {
+        while (true) {
+            Event event;
+            while ((event = call.events.poll()) != null) {
+                dispatch(call, event);
+            }
+            call.draining.set(false);
+            if (call.events.isEmpty() || !call.draining.compareAndSet(false, true)) break;
+        }
+        if (call.paused) {
+            // 积压已经处理完，让selector线程恢复读取
+            wakeup();
+        }
+    }
+
+    private void dispatch(Call call, Event event) {
+        switch (event.type) {
+            case EVENT_RESPONSE:
+                if (call.stopped) return;
+                try {
+                    if (!call.listener.onResponse(event.response)) {
+                        call.stopped = true;
+                        call.aborted = true;
+                        wakeup();
+                    }
+                } catch (Throwable e) {
+                    abort(call, e);
+                }
+                break;
+            case EVENT_DATA:
+                try {
+                    if (call.stopped) return;
+                    long pause = call.listener.onData(event.data, 0, event.length);
+                    if (pause > 0) {
+                        // 限速：暂停读取，到时间后在checkCalls中恢复
+                        call.pauseUntil = System.currentTimeMillis() + pause;
+                        wakeup();
+                    }
+                } catch (Throwable e) {
+                    abort(call, e);
+                } finally {
+                    BufferPool.getInstance().release(event.data);
+                    call.pendingBytes.addAndGet(-event.length);
+                }
+                break;
+            case EVENT_END:
+                try {
+                    if (call.abortError != null) {
+                        call.listener.onError(call.abortError);
+                    } else if (call.stopped || event.error == null) {
+                        // listener不需要响应体时，之后的读取失败也算正常结束
+                        call.listener.onComplete();
+                    } else {
+                        call.listener.onError(event.error);
+                    }
+                } catch (RuntimeException e) {
+                    M3U8Log.e("nio callback error: " + e);
+                }
+                break;
+        }
+    }
+
+    /**
+     * 回调中抛出异常，结束请求，结束时回调这个异常
+     */
+    private void abort(Call call, Throwable e) {
+        call.abortError = e instanceof IOException ? (IOException) e : new IOException(e);
+        call.stopped = true;
+        call.aborted = true;
+        wakeup();
+    }
+
+    private void wakeup() {
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    private void redirect(final Call call, int code, String location) throws IOException {
+        final String target = new URL(call.url, location).toString();
+        final FetchRequest request = call.request.copy(target);
+        if (code == 303) {
+            request.setMethod("GET");
+        }
+        call.done = true;
+        deactivate(call);
+        closeChannel(call);
+        call.releaseBuffer();
+        // 重新解析域名可能阻塞，不在selector线程中做，交给回调线程
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FetchCall next = fetch(request, call.listener, call.redirects + 1);
+                call.delegate = next;
+                if (call.cancelled) {
+                    next.cancel();
+                }
+            }
+        });
+    }
+
+    /**
+     * 检查取消、超时，暂停或恢复读取
+     */
+    private void checkCalls(long now) {
+        for (Call call : new ArrayList<>(activeCalls)) {
+            if (call.done) continue;
+            if (call.cancelled) {
+                fail(call, new InterruptedIOException("thread interrupted"));
+            } else if (call.aborted) {
+                fail(call, new IOException("aborted by listener"));
+            } else if (updateReading(call, now)) {
+                // 暂停中
+            } else if (call.state == STATE_CONNECTING) {
+                if (now - call.startTime > call.connTimeout) {
+                    fail(call, new SocketTimeoutException("connect timed out"));
+                }
+            } else if (now - call.lastActivity > call.readTimeout) {
+                fail(call, new SocketTimeoutException("Read timed out"));
+            }
+        }
+    }
+
+    private void complete(Call call, boolean reusable) {
+        call.done = true;
+        deactivate(call);
+        if (reusable && call.key.isValid()) {
+            IdleChannel idle = new IdleChannel(call.hostKey(), call.channel, System.currentTimeMillis());
+            call.key.attach(idle);
+            // 空闲时也监听读事件，服务器关闭连接时能及时发现
+            call.key.interestOps(SelectionKey.OP_READ);
+            ArrayDeque<IdleChannel> deque = idleChannels.get(idle.hostKey);
+            if (deque == null) {
+                deque = new ArrayDeque<>();
+                idleChannels.put(idle.hostKey, deque);
+            }
+            deque.offerLast(idle);
+        } else {
+            closeChannel(call);
+        }
+        call.releaseBuffer();
+        post(call, new Event(EVENT_END, null));
+    }
+
+    private void fail(Call call, IOException e) {
+        if (call.done) return;
+        call.done = true;
+        deactivate(call);
+        closeChannel(call);
+        call.releaseBuffer();
+        post(call, new Event(EVENT_END, e));
+    }
+
+    private void closeChannel(Call call) {
+        if (call.key != null) {
+            call.key.cancel();
+            call.key = null;
+        }
+        if (call.channel != null) {
+            try {
+                call.channel.close();
+            } catch (IOException e) {
+            }
+            call.channel = null;
+        }
+    }
+
+    private IdleChannel pollIdle(String hostKey, long now) {
+        ArrayDeque<IdleChannel> deque = idleChannels.get(hostKey);
+        if (deque == null) return null;
+        IdleChannel idle;
+        while ((idle = deque.pollLast()) != null) {
+            SelectionKey key = idle.channel.keyFor(selector);
+            if (key != null && key.isValid() && idle.channel.isOpen()
+                    && now - idle.since <= HttpConnectionPool.KEEP_ALIVE_DURATION) {
+                return idle;
+            }
+            idle.close();
+        }
+        return null;
+    }
+
+    private void removeIdle(IdleChannel idle) {
+        ArrayDeque<IdleChannel> deque = idleChannels.get(idle.hostKey);
+        if (deque != null) {
+            deque.remove(idle);
+        }
+        idle.close();
+    }
+
+    private void evictIdle(long now) {
+        Iterator<Map.Entry<String, ArrayDeque<IdleChannel>>> iterator = idleChannels.entrySet().iterator();
+        while (iterator.hasNext()) {
+            ArrayDeque<IdleChannel> deque = iterator.next().getValue();
+            while (!deque.isEmpty() && now - deque.peekFirst().since > HttpConnectionPool.KEEP_ALIVE_DURATION) {
+                deque.pollFirst().close();
+            }
+            if (deque.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class IdleChannel {
+        final String hostKey;
+        final SocketChannel channel;
+        final long since;
+
+        IdleChannel(String hostKey, SocketChannel channel, long since) {
+            this.hostKey = hostKey;
+            this.channel = channel;
+            this.since = since;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static class Event {
+        final int type;
+        final FetchResponse response;
+        final byte[] data;
+        final int length;
+        final IOException error;
+
+        Event(FetchResponse response) {
+            this(EVENT_RESPONSE, response, null, 0, null);
+        }
+
+        Event(byte[] data, int length) {
+            this(EVENT_DATA, null, data, length, null);
+        }
+
+        Event(int type, IOException error) {
+            this(type, null, null, 0, error);
+        }
+
+        private Event(int type, FetchResponse response, byte[] data, int length, IOException error) {
+            this.type = type;
+            this.response = response;
+            this.data = data;
+            this.length = length;
+            this.error = error;
+        }
+    }
+
+    private class Call implements FetchCall {
+        final FetchRequest request;
+        final URL url;
+        final FetchListener listener;
+        final int redirects;
+        final int connTimeout;
+        final int readTimeout;
+        InetSocketAddress address;
+        volatile boolean cancelled = false;
+        volatile FetchCall delegate;
+        /**
+         * 回调队列，selector线程加入，回调线程执行
+         */
+        final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean draining = new AtomicBoolean(false);
+        /**
+         * 已读取还没回调的字节数
+         */
+        final AtomicLong pendingBytes = new AtomicLong();
+        /**
+         * listener限速要求暂停读取到这个时间
+         */
+        volatile long pauseUntil = 0;
+        /**
+         * listener不需要响应体或回调出错，由selector线程结束请求
+         */
+        volatile boolean aborted = false;
+        volatile boolean paused = false;
+        /**
+         * 以下字段只在回调线程中访问
+         */
+        boolean stopped = false;
+        IOException abortError;
+        /**
+         * 以下字段只在selector线程中访问
+         */
+        boolean done = false;
+        SocketChannel channel;
+        SelectionKey key;
+        boolean reused = false;
+        boolean receivedAny = false;
+        boolean keepAlive = true;
+        int state = STATE_CONNECTING;
+        ByteBuffer out;
+        ByteBuffer in;
+        long startTime;
+        long startNanos;
+        long connectedNanos;
+        long lastActivity;
+        long remaining;
+        byte[] headerBuf = new byte[1024];
+        int headerLen = 0;
+        boolean headerComplete = false;
+        StringBuilder line = new StringBuilder();
+        boolean lineComplete = false;
+
+        Call(FetchRequest request, URL url, FetchListener listener, int redirects) {
+            this.request = request;
+            this.url = url;
+            this.listener = listener;
+            this.redirects = redirects;
+            this.connTimeout = M3U8DownloaderConfig.getConnTimeout();
+            this.readTimeout = M3U8DownloaderConfig.getReadTimeout();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            FetchCall next = delegate;
+            if (next != null) {
+                next.cancel();
+            }
+            Selector s = selector;
+            if (s != null) {
+                s.wakeup();
+            }
+        }
+
+        String hostKey() {
+            return address.getAddress().getHostAddress() + ":" + address.getPort() + "/" + url.getHost();
+        }
+
+        byte[] buildRequest() {
+            StringBuilder sb = new StringBuilder();
+            String file = url.getFile();
+            sb.append(request.getMethod()).append(' ').append(file.length() == 0 ? "/" : file).append(" HTTP/1.1\r\n");
+            sb.append("Host: ").append(url.getHost());
+            if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+                sb.append(':').append(url.getPort());
+            }
+            sb.append("\r\n");
+            boolean hasConnection = false;
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                if ("connection".equalsIgnoreCase(header.getKey())) hasConnection = true;
+                sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (!hasConnection) {
+                sb.append("Connection: keep-alive\r\n");
+            }
+            sb.append("\r\n");
+            try {
+                return sb.toString().getBytes("ISO-8859-1");
+            } catch (UnsupportedEncodingException e) {
+                return sb.toString().getBytes();
+            }
+        }
+
+        /**
+         * 追加响应头数据，返回用掉的字节数，读到空行时headerComplete为true
+         */
+        int appendHeader(byte[] data, int off, int len) throws IOException {
+            for (int i = 0; i < len; i++) {
+                if (headerLen == headerBuf.length) {
+                    if (headerLen >= MAX_HEADER_SIZE) throw new IOException("response header too large");
+                    byte[] bigger = new byte[headerBuf.length * 2];
+                    System.arraycopy(headerBuf, 0, bigger, 0, headerLen);
+                    headerBuf = bigger;
+                }
+                headerBuf[headerLen++] = data[off + i];
+                if (headerLen >= 4 && headerBuf[headerLen - 1] == '\n' && headerBuf[headerLen - 2] == '\r'
+                        && headerBuf[headerLen - 3] == '\n' && headerBuf[headerLen - 4] == '\r') {
+                    headerLen -= 4;
+                    headerComplete = true;
+                    return i + 1;
+                }
+            }
+            return len;
+        }
+
+        void resetHeader() {
+            headerLen = 0;
+            headerComplete = false;
+        }
+
+        /**
+         * 追加一行数据（chunk大小、chunk结尾、trailer），返回用掉的字节数
+         */
+        int appendLine(byte[] data, int off, int len) throws IOException {
+            for (int i = 0; i < len; i++) {
+                byte b = data[off + i];
+                if (b == '\n') {
+                    lineComplete = true;
+                    return i + 1;
+                }
+                if (b != '\r') {
+                    if (line.length() >= MAX_HEADER_SIZE) throw new IOException("chunk line too large");
+                    line.append((char) b);
+                }
+            }
+            return len;
+        }
+
+        String takeLine() {
+            String value = line.toString();
+            line.setLength(0);
+            lineComplete = false;
+            return value;
+        }
+
+        void resetParser() {
+            resetHeader();
+            line.setLength(0);
+            lineComplete = false;
+            keepAlive = true;
+            releaseBuffer();
+            out = null;
+        }
+
+        void releaseBuffer() {
+            if (in != null) {
+                BufferPool.getInstance().release(in.array());
+                in = null;
+            }
+        }
+    }
+}
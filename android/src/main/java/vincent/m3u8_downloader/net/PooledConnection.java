@@ -0,0 +1,46 @@
+package vincent.m3u8_downloader.net;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 从{@link HttpConnectionPool}借出的连接
+ * ================================================
+ */
+public class PooledConnection {
+    private final HttpURLConnection connection;
+    final String hostKey;
+    private int responseCode = -1;
+    boolean released = false;
+
+    PooledConnection(HttpURLConnection connection, String hostKey) {
+        this.connection = connection;
+        this.hostKey = hostKey;
+    }
+
+    public HttpURLConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * 发起请求并获取响应码，应使用这个方法代替{@link HttpURLConnection#getResponseCode()}，
+     * 连接池据此判断释放时是否需要读完响应体
+     */
+    public int getResponseCode() throws IOException {
+        if (responseCode == -1) {
+            responseCode = connection.getResponseCode();
+        }
+        return responseCode;
+    }
+
+    /**
+     * 是否已经收到响应
+     */
+    boolean hasResponse() {
+        return responseCode != -1;
+    }
+}
@@ -0,0 +1,38 @@
+package vincent.m3u8_downloader.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 网络传输接口，m3u8、key、切片的请求都经过这里
+ * 默认实现为{@link DefaultSegmentFetcher}，基于HttpURLConnection和{@link HttpConnectionPool}；
+ * {@link NioSegmentFetcher}用一个selector线程驱动所有http切片的传输。
+ * 通过{@link Fetchers#set(SegmentFetcher)}可以替换成自定义的实现。
+ * ================================================
+ */
+public interface SegmentFetcher {
+
+    /**
+     * 打开响应流，用于m3u8、key这类小文件，调用线程阻塞直到收到响应头
+     *
+     * @param url
+     * @return 使用完后必须关闭
+     * @throws IOException 响应码不是2xx时抛出
+     */
+    InputStream openStream(String url) throws IOException;
+
+    /**
+     * 发起请求，结果通过listener回调
+     * 可能在调用线程同步完成，也可能在其他线程异步完成，
+     * 无论哪种方式，{@link FetchListener#onComplete()}和{@link FetchListener#onError(IOException)}只会回调其中一个，且只回调一次。
+     *
+     * @param request
+     * @param listener
+     * @return 用于取消请求
+     */
+    FetchCall fetch(FetchRequest request, FetchListener listener);
+}
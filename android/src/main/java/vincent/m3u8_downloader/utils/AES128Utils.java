@@ -126,24 +126,53 @@ public class AES128Utils {
         return cipher.doFinal(bytes);
     }
 
-    public static byte[] decryptTs(byte[] bytes, String key, String iv) throws  Exception {
-        if (TextUtils.isEmpty(key)) {
+    public static byte[] decryptTs(byte[] bytes, byte[] key, byte[] iv) throws  Exception {
+        if (key == null) {
             return bytes;
         }
+        return createTsDecryptCipher(key, iv).doFinal(bytes);
+    }
+
+    /**
+     * 创建ts切片的解密器，用于边读边解密
+     * @param key 16字节的AES key
+     * @param iv 16字节的iv，见{@link #obtainIv}
+     * @return
+     * @throws Exception
+     */
+    public static Cipher createTsDecryptCipher(byte[] key, byte[] iv) throws Exception {
         Cipher cipher = Cipher.getInstance("AES/CBC/PKCS7Padding");
-        byte[] ivByte;
+        SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+        AlgorithmParameterSpec paramSpec = new IvParameterSpec(iv);
+        cipher.init(Cipher.DECRYPT_MODE, keySpec, paramSpec);
+        return cipher;
+    }
+
+    /**
+     * 切片的iv：#EXT-X-KEY指定了IV时使用指定的，否则按HLS规范用切片的媒体序号（大端16字节）
+     * @param iv #EXT-X-KEY中的IV，如0x1234...，可以为空
+     * @param sequence 切片的媒体序号
+     */
+    public static byte[] obtainIv(String iv, long sequence) throws Exception {
+        byte[] ivByte = null;
         if (!TextUtils.isEmpty(iv)) {
-            if (iv.startsWith("0x"))
-                ivByte = parseHexStr2Byte(iv.substring(2));
-            else ivByte = iv.getBytes();
-            if (ivByte.length != 16)
-                ivByte = new byte[16];
-        } else {
+            if (iv.startsWith("0x") || iv.startsWith("0X")) {
+                byte[] value = parseHexStr2Byte(iv.substring(2));
+                if (value != null && value.length <= 16) {
+                    // 不足16字节时高位补0
+                    ivByte = new byte[16];
+                    System.arraycopy(value, 0, ivByte, 16 - value.length, value.length);
+                }
+            } else {
+                ivByte = iv.getBytes();
+            }
+        }
+        if (ivByte == null || ivByte.length != 16) {
             ivByte = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                ivByte[15 - i] = (byte) (sequence >>> (i * 8));
+            }
         }
-        SecretKeySpec keySpec = new SecretKeySpec(key.getBytes("ISO-8859-1"), "AES");
-        AlgorithmParameterSpec paramSpec = new IvParameterSpec(ivByte);
-        cipher.init(Cipher.DECRYPT_MODE, keySpec, paramSpec);
-        return cipher.doFinal(bytes);
+        return ivByte;
     }
 }
@@ -0,0 +1,79 @@
+package vincent.m3u8_downloader.utils;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 令牌桶限速器
+ * 令牌按速率持续补充，桶容量为半秒的流量，允许短时突发。
+ * 读取数据后扣除令牌，只有令牌欠账时才等待，等待时长按欠账一次算出，
+ * 不会每次read都sleep。传输通过{@link #reserve(int)}得到等待时长，自己暂停读取。
+ * 速率为0表示不限速。
+ * ================================================
+ */
+public class BandwidthLimiter {
+    /**
+     * 桶容量对应的时长
+     */
+    private static final long BURST_MILLIS = 500;
+    /**
+     * 欠账不足这个时长时先不等待，攒到一起再等，减少sleep次数
+     */
+    private static final long MIN_SLEEP_MILLIS = 10;
+
+    private long bytesPerSecond;
+    private long tokens;
+    private long lastRefill;
+
+    public BandwidthLimiter() {
+        this(0);
+    }
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * 修改速率，运行中生效
+     * @param bytesPerSecond 每秒字节数，小于等于0不限速
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.tokens = capacity();
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    private long capacity() {
+        return bytesPerSecond * BURST_MILLIS / 1000;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed <= 0) return;
+        long add = elapsed * bytesPerSecond / 1000000000L;
+        if (add > 0) {
+            tokens = Math.min(capacity(), tokens + add);
+            // 按实际补充的令牌推进时间，避免舍入误差丢失令牌
+            lastRefill += add * 1000000000L / bytesPerSecond;
+        }
+    }
+
+    /**
+     * 消耗令牌，不阻塞，由调用方自己暂停读取
+     * @param bytes 本次读取的字节数
+     * @return 需要暂停的毫秒数，不需要暂停返回0
+     */
+    public synchronized long reserve(int bytes) {
+        if (bytesPerSecond <= 0) return 0;
+        refill(System.nanoTime());
+        tokens -= bytes;
+        if (tokens >= 0) return 0;
+        long waitMillis = -tokens * 1000 / bytesPerSecond;
+        return waitMillis < MIN_SLEEP_MILLIS ? 0 : waitMillis;
+    }
+}
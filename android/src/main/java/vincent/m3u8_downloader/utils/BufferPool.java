@@ -0,0 +1,109 @@
+package vincent.m3u8_downloader.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import vincent.m3u8_downloader.M3U8DownloaderConfig;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 读写缓冲区池
+ * 下载、合并、解密共用固定大小的缓冲区，用完归还，避免每个切片都分配新的数组。
+ * ================================================
+ */
+public class BufferPool {
+    /**
+     * 最多缓存的缓冲区个数，超出的直接丢弃
+     */
+    private static final int MAX_POOLED = 32;
+
+    private static BufferPool instance;
+
+    private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger();
+    private final AtomicLong allocatedCount = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+    private volatile int bufferSize;
+
+    private BufferPool() {
+        bufferSize = M3U8DownloaderConfig.getBufferSize();
+    }
+
+    public static BufferPool getInstance() {
+        synchronized (BufferPool.class) {
+            if (instance == null) {
+                instance = new BufferPool();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 借出缓冲区，用完必须调用{@link #release(byte[])}
+     */
+    public byte[] acquire() {
+        byte[] buf = buffers.poll();
+        if (buf != null) {
+            pooledCount.decrementAndGet();
+            if (buf.length == bufferSize) {
+                reusedCount.incrementAndGet();
+                return buf;
+            }
+        }
+        int size = bufferSize;
+        allocatedCount.incrementAndGet();
+        allocatedBytes.addAndGet(size);
+        return new byte[size];
+    }
+
+    /**
+     * 归还缓冲区
+     */
+    public void release(byte[] buf) {
+        if (buf == null || buf.length != bufferSize) return;
+        if (pooledCount.incrementAndGet() > MAX_POOLED) {
+            pooledCount.decrementAndGet();
+            return;
+        }
+        buffers.offer(buf);
+    }
+
+    /**
+     * 修改缓冲区大小，之后借出的缓冲区生效
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        buffers.clear();
+        pooledCount.set(0);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * 新分配的缓冲区个数
+     */
+    public long getAllocatedCount() {
+        return allocatedCount.get();
+    }
+
+    /**
+     * 新分配的缓冲区字节数
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * 复用的缓冲区个数
+     */
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+}
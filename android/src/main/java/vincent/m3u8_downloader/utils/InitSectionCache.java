@@ -0,0 +1,261 @@
+package vincent.m3u8_downloader.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vincent.m3u8_downloader.bean.M3U8Map;
+import vincent.m3u8_downloader.net.FetchListener;
+import vincent.m3u8_downloader.net.FetchRequest;
+import vincent.m3u8_downloader.net.FetchResponse;
+import vincent.m3u8_downloader.net.Fetchers;
+import vincent.m3u8_downloader.net.HttpStatusException;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 所有任务共享的fMP4初始化段缓存
+ * 解析到#EXT-X-MAP时提交后台获取，引用同一个初始化段的切片只请求一次；
+ * 合并mp4、生成本地m3u8和边下边播都从这里取。初始化段只有几KB，按最近使用淘汰。
+ * ================================================
+ */
+public class InitSectionCache {
+    /**
+     * 最多缓存的初始化段数
+     */
+    private static final int MAX_SECTIONS = 16;
+    /**
+     * 同时获取的线程数
+     */
+    private static final int FETCH_THREAD_COUNT = 2;
+    /**
+     * 初始化段的最大长度，超过的多半是地址错了
+     */
+    private static final int MAX_SECTION_SIZE = 4 * 1024 * 1024;
+
+    private static InitSectionCache instance;
+
+    private final Map<String, SectionEntry> entries = new LinkedHashMap<String, SectionEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SectionEntry> eldest) {
+            return size() > MAX_SECTIONS;
+        }
+    };
+    private final ExecutorService executor = Executors.newFixedThreadPool(FETCH_THREAD_COUNT, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "M3U8Map-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private InitSectionCache() {
+    }
+
+    public static InitSectionCache getInstance() {
+        synchronized (InitSectionCache.class) {
+            if (instance == null) {
+                instance = new InitSectionCache();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 在后台获取初始化段，已经缓存或正在获取时不重复请求
+     */
+    public void prefetch(M3U8Map map) {
+        final SectionEntry entry;
+        synchronized (entries) {
+            if (entries.containsKey(map.obtainCacheKey())) return;
+            entry = new SectionEntry(map);
+            entries.put(map.obtainCacheKey(), entry);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(entry);
+            }
+        });
+    }
+
+    /**
+     * 获取初始化段的原始字节（加密的没有解密），正在后台获取时等它完成，没有时在当前线程获取
+     */
+    public byte[] get(M3U8Map map) throws IOException {
+        SectionEntry entry;
+        boolean owner = false;
+        synchronized (entries) {
+            entry = entries.get(map.obtainCacheKey());
+            if (entry == null) {
+                entry = new SectionEntry(map);
+                entries.put(map.obtainCacheKey(), entry);
+                owner = true;
+            }
+        }
+        if (owner) {
+            load(entry);
+        }
+        try {
+            entry.latch.await();
+        } catch (InterruptedException e) {
+            throw new IOException("thread interrupted");
+        }
+        if (entry.error != null) {
+            throw entry.error;
+        }
+        return entry.data;
+    }
+
+    private void load(SectionEntry entry) {
+        try {
+            entry.data = entry.map.hasByteRange() ? fetchRange(entry.map) : fetch(entry.map.getUrl());
+            M3U8Log.d("init section loaded: " + entry.map);
+        } catch (IOException e) {
+            entry.error = e;
+            // 失败的不缓存，下次重新获取
+            synchronized (entries) {
+                if (entries.get(entry.map.obtainCacheKey()) == entry) {
+                    entries.remove(entry.map.obtainCacheKey());
+                }
+            }
+        } finally {
+            entry.latch.countDown();
+        }
+    }
+
+    private static byte[] fetch(String url) throws IOException {
+        InputStream in = Fetchers.get().openStream(url);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8 * 1024];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+                if (out.size() > MAX_SECTION_SIZE) {
+                    throw new IOException("init section too large: " + url);
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 只请求初始化段所在的范围，服务器不支持Range时从完整响应中截取
+     */
+    private static byte[] fetchRange(M3U8Map map) throws IOException {
+        final long offset = map.getByteRangeOffset();
+        final long length = map.getByteRangeLength();
+        if (length > MAX_SECTION_SIZE) {
+            throw new IOException("init section too large: " + map);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) length);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final IOException[] error = new IOException[1];
+        FetchRequest request = new FetchRequest(map.getUrl());
+        request.addHeader("Accept-Encoding", "identity");
+        request.addHeader("Range", "bytes=" + offset + "-" + (offset + length - 1));
+        Fetchers.get().fetch(request, new FetchListener() {
+            /**
+             * 响应体中还要跳过的字节数
+             */
+            private long skip;
+            /**
+             * 服务器返回了整个文件
+             */
+            private boolean whole;
+
+            @Override
+            public boolean onResponse(FetchResponse response) throws IOException {
+                int code = response.getCode();
+                if (code == 206) {
+                    if (MUtils.parseContentRangeStart(response.getHeader("Content-Range")) != offset) {
+                        throw new IOException("Content-Range mismatch: " + response.getHeader("Content-Range"));
+                    }
+                    skip = 0;
+                } else if (code == 200) {
+                    skip = offset;
+                    whole = true;
+                } else {
+                    throw new HttpStatusException(code);
+                }
+                return true;
+            }
+
+            @Override
+            public long onData(byte[] data, int off, int len) throws IOException {
+                if (skip > 0) {
+                    int n = (int) Math.min(skip, len);
+                    skip -= n;
+                    off += n;
+                    len -= n;
+                }
+                len = (int) Math.min(len, length - out.size());
+                if (len > 0) {
+                    out.write(data, off, len);
+                }
+                if (whole && out.size() >= length) {
+                    // 范围已经收齐，不再读取后面的部分
+                    throw new RangeCompleteException();
+                }
+                return 0;
+            }
+
+            @Override
+            public void onComplete() {
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(IOException e) {
+                if (!(e instanceof RangeCompleteException)) {
+                    error[0] = e;
+                }
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IOException("thread interrupted");
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        if (out.size() != length) {
+            throw new IOException("incomplete init section " + out.size() + "/" + length + ": " + map);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 收齐范围后提前结束读取
+     */
+    private static class RangeCompleteException extends IOException {
+    }
+
+    private static class SectionEntry {
+        private final M3U8Map map;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile byte[] data;
+        private volatile IOException error;
+
+        SectionEntry(M3U8Map map) {
+            this.map = map;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package vincent.m3u8_downloader.utils;
+
+import vincent.m3u8_downloader.metrics.StripedCounter;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 读写调用次数统计，每次read/write对应一次系统调用
+ * 下载线程都会累加，使用分段计数器避免争用
+ * ================================================
+ */
+public class IoStats {
+    private static final StripedCounter readCount = new StripedCounter();
+    private static final StripedCounter writeCount = new StripedCounter();
+
+    public static void recordRead() {
+        readCount.increment();
+    }
+
+    public static void recordWrite() {
+        writeCount.increment();
+    }
+
+    public static long getReadCount() {
+        return readCount.sum();
+    }
+
+    public static long getWriteCount() {
+        return writeCount.sum();
+    }
+}
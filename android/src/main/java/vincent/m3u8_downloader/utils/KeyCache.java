@@ -0,0 +1,165 @@
+package vincent.m3u8_downloader.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vincent.m3u8_downloader.net.Fetchers;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 所有任务共享的AES key缓存
+ * 解析到#EXT-X-KEY时只提交后台获取，多个key并行下载，解析不用等key返回；
+ * 同一个key地址只请求一次，按最近使用淘汰，轮换key的长视频不会无限占用内存。
+ * key按原始字节保存，不经过字符集转换。
+ * ================================================
+ */
+public class KeyCache {
+    /**
+     * 最多缓存的key数
+     */
+    private static final int MAX_KEYS = 64;
+    /**
+     * 同时获取key的线程数
+     */
+    private static final int FETCH_THREAD_COUNT = 4;
+    /**
+     * AES-128的key长度
+     */
+    private static final int KEY_LENGTH = 16;
+
+    private static KeyCache instance;
+
+    private final Map<String, KeyEntry> entries = new LinkedHashMap<String, KeyEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, KeyEntry> eldest) {
+            return size() > MAX_KEYS;
+        }
+    };
+    private final ExecutorService executor = Executors.newFixedThreadPool(FETCH_THREAD_COUNT, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "M3U8Key-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private KeyCache() {
+    }
+
+    public static KeyCache getInstance() {
+        synchronized (KeyCache.class) {
+            if (instance == null) {
+                instance = new KeyCache();
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 在后台获取key，已经缓存或正在获取时不重复请求
+     */
+    public void prefetch(String url) {
+        final KeyEntry entry;
+        synchronized (entries) {
+            if (entries.containsKey(url)) return;
+            entry = new KeyEntry(url);
+            entries.put(url, entry);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(entry);
+            }
+        });
+    }
+
+    /**
+     * 获取key，正在后台获取时等它完成，没有时在当前线程获取
+     */
+    public byte[] get(String url) throws IOException {
+        KeyEntry entry;
+        boolean owner = false;
+        synchronized (entries) {
+            entry = entries.get(url);
+            if (entry == null) {
+                entry = new KeyEntry(url);
+                entries.put(url, entry);
+                owner = true;
+            }
+        }
+        if (owner) {
+            load(entry);
+        }
+        try {
+            entry.latch.await();
+        } catch (InterruptedException e) {
+            throw new IOException("thread interrupted");
+        }
+        if (entry.error != null) {
+            throw entry.error;
+        }
+        return entry.key;
+    }
+
+    private void load(KeyEntry entry) {
+        try {
+            entry.key = fetch(entry.url);
+            M3U8Log.d("key loaded: " + entry.url);
+        } catch (IOException e) {
+            entry.error = e;
+            // 失败的不缓存，下次重新获取
+            synchronized (entries) {
+                if (entries.get(entry.url) == entry) {
+                    entries.remove(entry.url);
+                }
+            }
+        } finally {
+            entry.latch.countDown();
+        }
+    }
+
+    private static byte[] fetch(String url) throws IOException {
+        InputStream in = Fetchers.get().openStream(url);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(KEY_LENGTH);
+            byte[] buf = new byte[KEY_LENGTH * 4];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+                if (out.size() > KEY_LENGTH) break;
+            }
+            byte[] key = out.toByteArray();
+            if (key.length != KEY_LENGTH) {
+                throw new IOException("invalid key length " + key.length + ": " + url);
+            }
+            return key;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class KeyEntry {
+        private final String url;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile byte[] key;
+        private volatile IOException error;
+
+        KeyEntry(String url) {
+            this.url = url;
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package vincent.m3u8_downloader.utils;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
@@ -9,12 +8,22 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.io.Reader;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import vincent.m3u8_downloader.M3U8DownloaderConfig;
+import vincent.m3u8_downloader.OnM3U8ParseListener;
 import vincent.m3u8_downloader.bean.M3U8;
+import vincent.m3u8_downloader.bean.M3U8Key;
+import vincent.m3u8_downloader.bean.M3U8Map;
 import vincent.m3u8_downloader.bean.M3U8Ts;
+import vincent.m3u8_downloader.bean.M3U8Variant;
+import vincent.m3u8_downloader.bean.VariantPolicy;
+import vincent.m3u8_downloader.net.Fetchers;
 
 /**
  * ================================================
@@ -28,63 +37,211 @@ import vincent.m3u8_downloader.bean.M3U8Ts;
 public class MUtils {
 
     /**
-     * 将Url转换为M3U8对象
+     * 将Url转换为M3U8对象，主m3u8选第一个码率
      *
      * @param url
      * @return
      * @throws IOException
      */
     public static M3U8 parseIndex(String url) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new URL(url).openStream()));
+        return parseIndex(url, null);
+    }
+
+    /**
+     * 将Url转换为M3U8对象
+     *
+     * @param url
+     * @param policy 主m3u8的码率选择策略，为null时选第一个
+     * @return
+     * @throws IOException
+     */
+    public static M3U8 parseIndex(String url, VariantPolicy policy) throws IOException {
+        return parseIndex(url, policy, null);
+    }
+
+    /**
+     * 将Url转换为M3U8对象，边读取边解析，每读到一个切片就回调，不用等整个m3u8传输完
+     *
+     * @param url
+     * @param policy 主m3u8的码率选择策略，为null时选第一个
+     * @param listener 切片回调，可以为null
+     * @return
+     * @throws IOException
+     */
+    public static M3U8 parseIndex(String url, VariantPolicy policy, OnM3U8ParseListener listener) throws IOException {
+        return parseIndex(url, new InputStreamReader(Fetchers.get().openStream(url)), policy, listener);
+    }
+
+    /**
+     * 从已经打开的reader解析，解析完成后关闭reader
+     *
+     * @param url m3u8地址，用于拼接相对地址
+     */
+    static M3U8 parseIndex(String url, Reader reader, VariantPolicy policy, OnM3U8ParseListener listener) throws IOException {
+        PlaylistTokenizer tokenizer = new PlaylistTokenizer(reader);
 
         String basePath = url.substring(0, url.lastIndexOf("/") + 1);
 
         M3U8 ret = new M3U8();
+        ret.setUrl(url);
         ret.setBasePath(basePath);
 
-        String line;
+        List<M3U8Variant> variants = new ArrayList<>();
+        M3U8Variant variant = null;
+        M3U8Key key = null;
+        M3U8Map map = null;
+        long sequence = 0;
         float seconds = 0;
-        while ((line = reader.readLine()) != null) {
-            if (line.startsWith("#")) {
-                if (line.startsWith("#EXTINF:")) {
-                    line = line.substring(8);
-                    if (line.endsWith(",")) {
-                        line = line.substring(0, line.length() - 1);
-                    }
-                    seconds = Float.parseFloat(line);
-                } else if (line.startsWith("#EXT-X-KEY:")) {
-                    line = line.split("#EXT-X-KEY:")[1];
-                    String[] arr = line.split(",");
-                    for (int i = 0; i < arr.length; i++) {
-                        if (arr[i].contains("=")) {
-                            String k = arr[i].split("=")[0];
-                            String v = arr[i].split("=")[1];
-                            if (k.equals("URI")) {
-                                // 去获取key
-                                v = v.replaceAll("\"", "");
-                                v = v.replaceAll("'", "");
-                                String keyUrl = v.startsWith("http") ? v : (basePath + v);
-                                BufferedReader keyReader = new BufferedReader(new InputStreamReader(new URL(keyUrl).openStream(),"ISO-8859-1"));
-                                ret.setKey(keyReader.readLine());
-                            } else if (k.equals("IV")) {
-                                ret.setIv(v);
-                            }
+        // 属性标签共用一个map
+        Map<String, String> attributes = new HashMap<>();
+        // #EXT-X-BYTERANGE作用于下一个切片，没有起始位置时接着同一个文件的上一段
+        long rangeLength = -1;
+        long rangeOffset = -1;
+        String lastRangeUri = null;
+        long lastRangeEnd = 0;
+        try {
+            while (tokenizer.nextLine()) {
+                if (tokenizer.isTag()) {
+                    if (tokenizer.startsWith("#EXTINF:")) {
+                        seconds = tokenizer.floatFrom(8, 0);
+                    } else if (tokenizer.startsWith("#EXT-X-BYTERANGE:")) {
+                        int at = tokenizer.indexOf('@', 17);
+                        rangeLength = tokenizer.longFrom(17, -1);
+                        rangeOffset = at < 0 ? -1 : tokenizer.longFrom(at + 1, -1);
+                    } else if (tokenizer.startsWith("#EXT-X-STREAM-INF:")) {
+                        // 下一行是这个码率的地址
+                        attributes.clear();
+                        tokenizer.attributesFrom(18, attributes);
+                        variant = parseVariant(attributes);
+                    } else if (tokenizer.startsWith("#EXT-X-TARGETDURATION:")) {
+                        ret.setTargetDuration(tokenizer.floatFrom(22, 0));
+                    } else if (tokenizer.startsWith("#EXT-X-ENDLIST")) {
+                        ret.setEndList(true);
+                    } else if (tokenizer.startsWith("#EXT-X-MAP:")) {
+                        // 之后的切片都用这个初始化段，直到下一个#EXT-X-MAP
+                        attributes.clear();
+                        tokenizer.attributesFrom(11, attributes);
+                        map = parseMap(url, attributes, key);
+                        InitSectionCache.getInstance().prefetch(map);
+                    } else if (tokenizer.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+                        sequence = tokenizer.longFrom(22, 0);
+                    } else if (tokenizer.startsWith("#EXT-X-KEY:")) {
+                        // 之后的切片都用这个key，直到下一个#EXT-X-KEY
+                        attributes.clear();
+                        tokenizer.attributesFrom(11, attributes);
+                        key = parseKey(url, attributes);
+                        if (key != null && key.getUrl() != null) {
+                            // key在后台并行获取，不阻塞解析
+                            KeyCache.getInstance().prefetch(key.getUrl());
                         }
                     }
+                    continue;
                 }
-                continue;
-            }
-            if (line.endsWith("m3u8")) {
-                return parseIndex(basePath + line);
+                String line = tokenizer.stringFrom(0);
+                if (variant != null) {
+                    variant.setUrl(new URL(new URL(url), line).toString());
+                    variants.add(variant);
+                    variant = null;
+                    continue;
+                }
+                if (line.endsWith("m3u8")) {
+                    reader.close();
+                    return parseIndex(basePath + line, policy, listener);
+                }
+                M3U8Ts ts = new M3U8Ts(line, seconds);
+                ts.setSequence(sequence++);
+                ts.setKey(key);
+                ts.setMap(map);
+                if (rangeLength >= 0) {
+                    if (rangeOffset < 0) {
+                        rangeOffset = line.equals(lastRangeUri) ? lastRangeEnd : 0;
+                    }
+                    ts.setByteRange(rangeLength, rangeOffset);
+                    lastRangeUri = line;
+                    lastRangeEnd = rangeOffset + rangeLength;
+                    rangeLength = -1;
+                    rangeOffset = -1;
+                } else {
+                    lastRangeUri = null;
+                }
+                ret.addTs(ts);
+                if (listener != null) {
+                    listener.onTs(ret, ts, ret.getTsList().size() - 1);
+                }
+                seconds = 0;
             }
-            ret.addTs(new M3U8Ts(line, seconds));
-            seconds = 0;
+        } finally {
+            reader.close();
         }
-        reader.close();
 
+        if (!variants.isEmpty()) {
+            // 主m3u8，按策略选一个码率
+            M3U8Variant selected = (policy == null ? VariantPolicy.first() : policy).select(variants);
+            M3U8Log.d("select variant: " + selected);
+            ret = parseIndex(selected.getUrl(), policy, listener);
+            if (ret.getVariant() == null) {
+                ret.setVariants(variants);
+                ret.setVariant(selected);
+            }
+        }
         return ret;
     }
 
+    /**
+     * 解析#EXT-X-KEY的属性
+     * @return METHOD=NONE时返回null
+     */
+    private static M3U8Key parseKey(String url, Map<String, String> map) throws IOException {
+        String method = map.get("METHOD");
+        if (method == null || "NONE".equals(method)) return null;
+        String uri = map.get("URI");
+        return new M3U8Key(method, uri == null ? null : new URL(new URL(url), uri).toString(), map.get("IV"));
+    }
+
+    /**
+     * 解析#EXT-X-MAP的属性，BYTERANGE没有起始位置时从0开始
+     * @param key 之前生效的加密信息
+     */
+    private static M3U8Map parseMap(String url, Map<String, String> map, M3U8Key key) throws IOException {
+        String uri = map.get("URI");
+        if (uri == null) throw new IOException("EXT-X-MAP without URI");
+        long length = -1;
+        long offset = 0;
+        String range = map.get("BYTERANGE");
+        if (range != null) {
+            int at = range.indexOf('@');
+            length = parseLong(at < 0 ? range : range.substring(0, at), -1);
+            offset = at < 0 ? 0 : parseLong(range.substring(at + 1), 0);
+        }
+        return new M3U8Map(new URL(new URL(url), uri).toString(), length, offset, key);
+    }
+
+    /**
+     * 解析#EXT-X-STREAM-INF的属性
+     */
+    private static M3U8Variant parseVariant(Map<String, String> map) {
+        M3U8Variant variant = new M3U8Variant();
+        variant.setBandwidth(parseLong(map.get("BANDWIDTH"), 0));
+        variant.setAverageBandwidth(parseLong(map.get("AVERAGE-BANDWIDTH"), 0));
+        variant.setCodecs(map.get("CODECS"));
+        String resolution = map.get("RESOLUTION");
+        if (resolution != null) {
+            int index = resolution.toLowerCase().indexOf('x');
+            if (index > 0) {
+                variant.setWidth((int) parseLong(resolution.substring(0, index), 0));
+                variant.setHeight((int) parseLong(resolution.substring(index + 1), 0));
+            }
+        }
+        String frameRate = map.get("FRAME-RATE");
+        if (frameRate != null) {
+            try {
+                variant.setFrameRate(Float.parseFloat(frameRate));
+            } catch (NumberFormatException e) {
+            }
+        }
+        return variant;
+    }
+
 
     /**
      * 清空文件夹
@@ -127,28 +284,34 @@ public class MUtils {
     }
 
     /**
-     * 生成本地m3u8索引文件，ts切片和m3u8文件放在相同目录下即可
+     * 生成本地m3u8索引文件，ts切片、key文件和m3u8文件放在相同目录下即可
+     * 切片的key变化时写入新的#EXT-X-KEY，key文件名见{@link M3U8Key#obtainKeyFileName()}，
+     * 媒体序号保持原样，没有指定IV的切片按序号得到的iv不变
      * @param m3u8Dir
      * @param m3U8
      */
     public static File createLocalM3U8(File m3u8Dir, String fileName, M3U8 m3U8) throws IOException{
-        return createLocalM3U8(m3u8Dir, fileName, m3U8, null);
-    }
-
-    /**
-     * 生成AES-128加密本地m3u8索引文件，ts切片和m3u8文件放在相同目录下即可
-     * @param m3u8Dir
-     * @param m3U8
-     */
-    public static File createLocalM3U8(File m3u8Dir, String fileName, M3U8 m3U8, String keyPath) throws IOException{
         File m3u8File = new File(m3u8Dir, fileName);
         BufferedWriter bfw = new BufferedWriter(new FileWriter(m3u8File, false));
+        List<M3U8Ts> tsList = m3U8.getTsList();
         bfw.write("#EXTM3U\n");
-        bfw.write("#EXT-X-VERSION:3\n");
-        bfw.write("#EXT-X-MEDIA-SEQUENCE:0\n");
+        // #EXT-X-MAP需要版本6
+        bfw.write("#EXT-X-VERSION:" + (m3U8.getMaps().isEmpty() ? 3 : 6) + "\n");
+        bfw.write("#EXT-X-MEDIA-SEQUENCE:" + (tsList.isEmpty() ? 0 : tsList.get(0).getSequence()) + "\n");
         bfw.write("#EXT-X-TARGETDURATION:13\n");
-        if (keyPath != null) bfw.write("#EXT-X-KEY:METHOD=AES-128,URI=\""+keyPath+"\"\n");
-        for (M3U8Ts m3U8Ts : m3U8.getTsList()) {
+        M3U8Key key = null;
+        M3U8Map map = null;
+        for (M3U8Ts m3U8Ts : tsList) {
+            if (m3U8Ts.getKey() != key) {
+                key = m3U8Ts.getKey();
+                bfw.write(M3U8Key.obtainLocalTag(key) + "\n");
+            }
+            if (m3U8Ts.getMap() != map) {
+                map = m3U8Ts.getMap();
+                if (map != null) {
+                    bfw.write(map.obtainLocalTag() + "\n");
+                }
+            }
             bfw.write("#EXTINF:" + m3U8Ts.getSeconds()+",\n");
             bfw.write(m3U8Ts.obtainEncodeTsFileName());
             bfw.newLine();
@@ -185,6 +348,36 @@ public class MUtils {
         out.close();
     }
 
+    public static long parseLong(String value, long defValue){
+        if (value == null) return defValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defValue;
+        }
+    }
+
+    /**
+     * 解析Content-Range的起始位置，如 bytes 100-199/1000 返回100
+     */
+    public static long parseContentRangeStart(String contentRange){
+        if (contentRange == null) return -1;
+        int space = contentRange.indexOf(' ');
+        int dash = contentRange.indexOf('-');
+        if (space < 0 || dash < space) return -1;
+        return parseLong(contentRange.substring(space + 1, dash), -1);
+    }
+
+    /**
+     * 解析Content-Range的总长度，如 bytes *&#47;1000 返回1000
+     */
+    public static long parseContentRangeTotal(String contentRange){
+        if (contentRange == null) return -1;
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) return -1;
+        return parseLong(contentRange.substring(slash + 1), -1);
+    }
+
     public static String getSaveFileDir(String url){
         return M3U8DownloaderConfig.getSaveDir() + File.separator + MD5Utils.encode(url);
     }
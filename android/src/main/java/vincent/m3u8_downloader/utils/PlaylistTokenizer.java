@@ -0,0 +1,231 @@
+package vincent.m3u8_downloader.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: m3u8逐行解析
+ * 从Reader按块读入，每一行复制到复用的字符数组中，标签的判断和数字的解析直接在字符数组上进行，
+ * 只有切片地址和属性值才生成字符串。几万行的m3u8解析时不会为每一行产生多个临时字符串。
+ * 属性列表一次扫描完成，引号中的逗号和等号不作分隔。
+ * ================================================
+ */
+public class PlaylistTokenizer {
+    private final Reader reader;
+    private final char[] buf = new char[8 * 1024];
+    private int pos = 0;
+    private int limit = 0;
+    /**
+     * 当前行，去掉了首尾的空白
+     */
+    private char[] line = new char[256];
+    private int length = 0;
+
+    public PlaylistTokenizer(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * 读取下一个非空行
+     * @return 没有更多行时返回false
+     */
+    public boolean nextLine() throws IOException {
+        while (true) {
+            length = 0;
+            boolean eof = true;
+            while (true) {
+                if (pos == limit) {
+                    limit = reader.read(buf, 0, buf.length);
+                    pos = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        break;
+                    }
+                }
+                eof = false;
+                char c = buf[pos++];
+                if (c == '\n') break;
+                if (length == line.length) {
+                    char[] newLine = new char[line.length * 2];
+                    System.arraycopy(line, 0, newLine, 0, length);
+                    line = newLine;
+                }
+                line[length++] = c;
+            }
+            if (eof && length == 0) return false;
+            trim();
+            if (length > 0) return true;
+        }
+    }
+
+    private void trim() {
+        int start = 0;
+        while (start < length && line[start] <= ' ') start++;
+        int end = length;
+        while (end > start && line[end - 1] <= ' ') end--;
+        if (start > 0) {
+            System.arraycopy(line, start, line, 0, end - start);
+        }
+        length = end - start;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * 是否为标签或注释行
+     */
+    public boolean isTag() {
+        return length > 0 && line[0] == '#';
+    }
+
+    public boolean startsWith(String prefix) {
+        int n = prefix.length();
+        if (n > length) return false;
+        for (int i = 0; i < n; i++) {
+            if (line[i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    public boolean endsWith(String suffix) {
+        int n = suffix.length();
+        if (n > length) return false;
+        int offset = length - n;
+        for (int i = 0; i < n; i++) {
+            if (line[offset + i] != suffix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 字符在当前行中的位置
+     * @return 没有时返回-1
+     */
+    public int indexOf(char c, int from) {
+        for (int i = from; i < length; i++) {
+            if (line[i] == c) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 当前行从from开始的部分
+     */
+    public String stringFrom(int from) {
+        return new String(line, from, length - from);
+    }
+
+    /**
+     * 当前行从from开始的整数，遇到第一个非数字字符结束
+     * @return 没有数字时返回defValue
+     */
+    public long longFrom(int from, long defValue) {
+        return parseLong(line, from, length, defValue);
+    }
+
+    /**
+     * 当前行从from开始的小数，如#EXTINF的时长，遇到逗号结束
+     * @return 格式不对时返回defValue
+     */
+    public float floatFrom(int from, float defValue) {
+        int end = from;
+        while (end < length && line[end] != ',') end++;
+        while (from < end && line[from] <= ' ') from++;
+        while (end > from && line[end - 1] <= ' ') end--;
+        if (from == end) return defValue;
+        long value = 0;
+        long scale = 1;
+        int digits = 0;
+        boolean dot = false;
+        for (int i = from; i < end; i++) {
+            char c = line[i];
+            if (c >= '0' && c <= '9') {
+                // 有效数字太多时交给Float.parseFloat
+                if (++digits > 18) return parseFloat(from, end, defValue);
+                value = value * 10 + (c - '0');
+                if (dot) scale *= 10;
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                // 负数、指数等少见的写法
+                return parseFloat(from, end, defValue);
+            }
+        }
+        if (digits == 0) return defValue;
+        return (float) ((double) value / scale);
+    }
+
+    private float parseFloat(int from, int end, float defValue) {
+        try {
+            return Float.parseFloat(new String(line, from, end - from));
+        } catch (NumberFormatException e) {
+            return defValue;
+        }
+    }
+
+    /**
+     * 从from开始解析属性列表，如 BANDWIDTH=1280000,CODECS="avc1.4d401f,mp4a.40.2"
+     * @param out 解析结果，值去掉了引号
+     */
+    public void attributesFrom(int from, Map<String, String> out) {
+        parseAttributes(line, from, length, out);
+    }
+
+    /**
+     * 一次扫描解析属性列表，引号中的逗号和等号不作分隔
+     */
+    public static void parseAttributes(char[] chars, int from, int to, Map<String, String> out) {
+        int i = from;
+        while (i < to) {
+            // 属性名
+            while (i < to && (chars[i] <= ' ' || chars[i] == ',')) i++;
+            int keyStart = i;
+            while (i < to && chars[i] != '=' && chars[i] != ',') i++;
+            int keyEnd = i;
+            while (keyEnd > keyStart && chars[keyEnd - 1] <= ' ') keyEnd--;
+            if (i >= to || chars[i] != '=') {
+                // 没有值的属性，忽略
+                continue;
+            }
+            i++;
+            while (i < to && chars[i] <= ' ') i++;
+            String value;
+            if (i < to && chars[i] == '"') {
+                int valueStart = ++i;
+                while (i < to && chars[i] != '"') i++;
+                value = new String(chars, valueStart, i - valueStart);
+                // 跳过结束的引号和后面到逗号之间的内容
+                while (i < to && chars[i] != ',') i++;
+            } else {
+                int valueStart = i;
+                while (i < to && chars[i] != ',') i++;
+                int valueEnd = i;
+                while (valueEnd > valueStart && chars[valueEnd - 1] <= ' ') valueEnd--;
+                value = new String(chars, valueStart, valueEnd - valueStart);
+            }
+            if (keyEnd > keyStart) {
+                out.put(new String(chars, keyStart, keyEnd - keyStart), value);
+            }
+        }
+    }
+
+    private static long parseLong(char[] chars, int from, int to, long defValue) {
+        while (from < to && chars[from] <= ' ') from++;
+        long value = 0;
+        int digits = 0;
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            if (c < '0' || c > '9') break;
+            value = value * 10 + (c - '0');
+            digits++;
+        }
+        return digits == 0 || digits > 18 ? defValue : value;
+    }
+}
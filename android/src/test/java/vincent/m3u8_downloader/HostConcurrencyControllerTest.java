@@ -0,0 +1,106 @@
+package vincent.m3u8_downloader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import vincent.m3u8_downloader.utils.TestPreferences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: {@link HostConcurrencyController}的加法增加、乘法减少和冷却
+ * 控制器按host缓存，每个用例使用不同的host。统计周期是2秒，增加的用例需要等一个周期。
+ * ================================================
+ */
+public class HostConcurrencyControllerTest {
+    private static final long WINDOW = 2000;
+
+    @Before
+    public void setUp() {
+        TestPreferences.install();
+        new M3U8DownloaderConfig().setThreadCount(4).setMaxThreadCount(8);
+    }
+
+    private static String newHost() {
+        return "host-" + System.nanoTime();
+    }
+
+    @Test
+    public void startsFromThreadCount() {
+        HostConcurrencyController controller = HostConcurrencyController.obtain(newHost());
+        assertEquals(4, controller.getLimit());
+    }
+
+    @Test
+    public void sameHostSharesController() {
+        String host = newHost();
+        assertSame(HostConcurrencyController.obtain(host), HostConcurrencyController.obtain(host));
+    }
+
+    @Test
+    public void congestionHalvesOnceDuringCoolDown() {
+        HostConcurrencyController controller = HostConcurrencyController.obtain(newHost());
+        controller.onCongestion();
+        assertEquals(2, controller.getLimit());
+        // 冷却期内的拥塞信号不再减半
+        controller.onCongestion();
+        assertEquals(2, controller.getLimit());
+    }
+
+    @Test
+    public void congestionNeverGoesBelowOne() {
+        new M3U8DownloaderConfig().setThreadCount(1);
+        HostConcurrencyController controller = HostConcurrencyController.obtain(newHost());
+        controller.onCongestion();
+        assertEquals(1, controller.getLimit());
+    }
+
+    @Test
+    public void restartsFromBestLimitWhenIdle() {
+        String host = newHost();
+        HostConcurrencyController controller = HostConcurrencyController.obtain(host);
+        controller.onCongestion();
+        assertEquals(2, controller.getLimit());
+        // 同一个host的下一个任务从历史最佳并发数开始
+        HostConcurrencyController.obtain(host);
+        assertEquals(4, controller.getLimit());
+    }
+
+    @Test
+    public void restartKeepsHalvedLimitWhileRunning() {
+        String host = newHost();
+        HostConcurrencyController controller = HostConcurrencyController.obtain(host);
+        controller.onCongestion();
+        controller.running = 1;
+        HostConcurrencyController.obtain(host);
+        assertEquals(2, controller.getLimit());
+    }
+
+    @Test
+    public void growsByOneWhenSaturated() throws Exception {
+        HostConcurrencyController controller = HostConcurrencyController.obtain(newHost());
+        controller.running = 4;
+        controller.onBytes(1024 * 1024);
+        // 不到一个统计周期不调整
+        controller.tick();
+        assertEquals(4, controller.getLimit());
+        Thread.sleep(WINDOW + 100);
+        controller.tick();
+        assertEquals(5, controller.getLimit());
+    }
+
+    @Test
+    public void doesNotGrowWhenNotSaturated() throws Exception {
+        HostConcurrencyController controller = HostConcurrencyController.obtain(newHost());
+        controller.running = 2;
+        controller.onBytes(1024 * 1024);
+        Thread.sleep(WINDOW + 100);
+        controller.tick();
+        assertEquals(4, controller.getLimit());
+    }
+}
@@ -0,0 +1,233 @@
+package vincent.m3u8_downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vincent.m3u8_downloader.utils.TestPreferences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: {@link M3U8SegmentScheduler}的执行顺序、并发上限、取消和异步完成
+ * 调度器是单例，每个用例使用不同的任务标识。
+ * ================================================
+ */
+public class M3U8SegmentSchedulerTest {
+    private static final long TIMEOUT = 5;
+
+    private M3U8SegmentScheduler scheduler;
+    private final List<String> keys = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        TestPreferences.install();
+        scheduler = M3U8SegmentScheduler.getInstance();
+    }
+
+    @After
+    public void tearDown() {
+        for (String key : keys) {
+            scheduler.cancel(key);
+        }
+        scheduler.setMaxInFlight(M3U8DownloaderConfig.getGlobalThreadCount());
+    }
+
+    private String newKey(String name) {
+        String key = name + "-" + System.nanoTime();
+        keys.add(key);
+        return key;
+    }
+
+    @Test
+    public void runsSegmentsOfOneTaskInIndexOrder() throws Exception {
+        scheduler.setMaxInFlight(1);
+        String key = newKey("order");
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // 先占住唯一的名额，后面的切片都进入队列
+        scheduler.submit(key, 0, new BlockingJob(blocked, release));
+        assertTrue(blocked.await(TIMEOUT, TimeUnit.SECONDS));
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        CountDownLatch done = new CountDownLatch(4);
+        for (int index : new int[]{4, 2, 3, 1}) {
+            scheduler.submit(key, index, new RecordJob(order, index, done));
+        }
+        release.countDown();
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1, 2, 3, 4), order);
+    }
+
+    @Test
+    public void promotedSegmentRunsFirst() throws Exception {
+        scheduler.setMaxInFlight(1);
+        String key = newKey("promote");
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(key, 0, new BlockingJob(blocked, release));
+        assertTrue(blocked.await(TIMEOUT, TimeUnit.SECONDS));
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        CountDownLatch done = new CountDownLatch(3);
+        for (int index = 1; index <= 3; index++) {
+            scheduler.submit(key, index, new RecordJob(order, index, done));
+        }
+        assertTrue(scheduler.promote(key, 3));
+        assertFalse(scheduler.promote(key, 9));
+        release.countDown();
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(3, 1, 2), order);
+    }
+
+    @Test
+    public void neverExceedsGlobalLimit() throws Exception {
+        scheduler.setMaxInFlight(2);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(12);
+        // 三个任务各4个切片，全局上限2
+        for (int t = 0; t < 3; t++) {
+            String key = newKey("limit" + t);
+            for (int i = 0; i < 4; i++) {
+                scheduler.submit(key, i, new Runnable() {
+                    @Override
+                    public void run() {
+                        int n = running.incrementAndGet();
+                        synchronized (maxRunning) {
+                            if (n > maxRunning.get()) maxRunning.set(n);
+                        }
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException ignored) {
+                        }
+                        running.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue("max running " + maxRunning.get(), maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void cancelDropsQueuedSegments() throws Exception {
+        scheduler.setMaxInFlight(1);
+        String key = newKey("cancel");
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(key, 0, new BlockingJob(blocked, release));
+        assertTrue(blocked.await(TIMEOUT, TimeUnit.SECONDS));
+
+        final AtomicInteger ran = new AtomicInteger();
+        for (int i = 1; i <= 3; i++) {
+            scheduler.submit(key, i, new Runnable() {
+                @Override
+                public void run() {
+                    ran.incrementAndGet();
+                }
+            });
+        }
+        assertEquals(3, scheduler.cancel(key));
+        release.countDown();
+
+        // 名额释放后其他任务还能执行，取消的切片不再执行
+        CountDownLatch other = new CountDownLatch(1);
+        scheduler.submit(newKey("other"), 0, new RecordJob(new ArrayList<Integer>(), 0, other));
+        assertTrue(other.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(0, ran.get());
+    }
+
+    @Test
+    public void detachedSegmentKeepsSlotUntilFinished() throws Exception {
+        scheduler.setMaxInFlight(1);
+        String key = newKey("detach");
+        final Runnable[] finish = new Runnable[1];
+        final CountDownLatch detached = new CountDownLatch(1);
+        scheduler.submit(key, 0, new Runnable() {
+            @Override
+            public void run() {
+                finish[0] = M3U8SegmentScheduler.getInstance().detach();
+                detached.countDown();
+            }
+        });
+        assertTrue(detached.await(TIMEOUT, TimeUnit.SECONDS));
+
+        CountDownLatch next = new CountDownLatch(1);
+        scheduler.submit(key, 1, new RecordJob(new ArrayList<Integer>(), 1, next));
+        // run已经返回，但异步传输还没结束，名额不释放
+        assertFalse(next.await(200, TimeUnit.MILLISECONDS));
+        finish[0].run();
+        // 多次调用只释放一次
+        finish[0].run();
+        assertTrue(next.await(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void delayedSubmitRunsAfterDelay() throws Exception {
+        String key = newKey("delay");
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        scheduler.submitDelayed(key, 0, new RecordJob(new ArrayList<Integer>(), 0, done), 200);
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+    }
+
+    /**
+     * 通知开始后一直占着名额，直到release
+     */
+    private static class BlockingJob implements Runnable {
+        private final CountDownLatch started;
+        private final CountDownLatch release;
+
+        BlockingJob(CountDownLatch started, CountDownLatch release) {
+            this.started = started;
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                release.await(TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 记录执行顺序
+     */
+    private static class RecordJob implements Runnable {
+        private final List<Integer> order;
+        private final int index;
+        private final CountDownLatch done;
+
+        RecordJob(List<Integer> order, int index, CountDownLatch done) {
+            this.order = order;
+            this.index = index;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            order.add(index);
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package vincent.m3u8_downloader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import vincent.m3u8_downloader.utils.TestPreferences;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: {@link MirrorSelector}的地址替换、按吞吐量选择、排除和剔除
+ * ================================================
+ */
+public class MirrorSelectorTest {
+    private static final String URL = "http://a.example.com/video/index.m3u8";
+
+    private MirrorSelector selector;
+
+    @Before
+    public void setUp() {
+        TestPreferences.install();
+        selector = new MirrorSelector(URL, Arrays.asList(
+                "http://b.example.com/cdn/video/index.m3u8",
+                "http://c.example.com/video/",
+                // 和原地址同一个目录，不重复添加
+                "http://a.example.com/video/other.m3u8"));
+    }
+
+    @Test
+    public void resolvesUrlsUnderPlaylistDirectory() {
+        assertEquals(3, selector.size());
+        assertEquals("http://a.example.com/video/s1.ts", selector.resolve(0, "http://a.example.com/video/s1.ts"));
+        assertEquals("http://b.example.com/cdn/video/hd/s1.ts", selector.resolve(1, "http://a.example.com/video/hd/s1.ts"));
+        assertEquals("http://c.example.com/video/s1.ts", selector.resolve(2, "http://a.example.com/video/s1.ts"));
+        // 不在原m3u8目录下的地址不替换
+        assertEquals("http://keys.example.com/key", selector.resolve(1, "http://keys.example.com/key"));
+    }
+
+    @Test
+    public void triesEachMirrorBeforePickingFastest() {
+        Set<Integer> tried = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            tried.add(selector.select(null));
+        }
+        // 没有数据的镜像各试一次
+        assertEquals(new HashSet<>(Arrays.asList(0, 1, 2)), tried);
+        selector.onSuccess(0, 100 * 1000, 1000);
+        selector.onSuccess(1, 100 * 1000, 100);
+        selector.onSuccess(2, 100 * 1000, 500);
+        int best = selector.select(null);
+        assertEquals(1, best);
+        selector.onCancel(best);
+    }
+
+    @Test
+    public void inFlightRequestsSpreadLoad() {
+        warmUp(new long[]{100, 150, 5000});
+        // 0最快，但是有请求在进行时按吞吐量除以请求数打分，第二个请求分给1
+        assertEquals(0, selector.select(null));
+        assertEquals(1, selector.select(null));
+        assertEquals(0, selector.select(null));
+    }
+
+    @Test
+    public void excludesFailedMirrorsOfSegment() {
+        warmUp(new long[]{100, 200, 300});
+        assertEquals(1, selectAndCancel(Collections.singleton(0)));
+        assertEquals(2, selectAndCancel(new HashSet<>(Arrays.asList(0, 1))));
+        // 所有镜像都失败过时不再排除
+        assertEquals(0, selectAndCancel(new HashSet<>(Arrays.asList(0, 1, 2))));
+    }
+
+    @Test
+    public void ejectsAfterConsecutiveFailures() {
+        warmUp(new long[]{100, 200, 300});
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, selector.select(null));
+            selector.onFailure(0);
+        }
+        // 连续失败3次后剔除，请求改到其他镜像
+        assertEquals(1, selectAndCancel(null));
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        warmUp(new long[]{100, 200, 300});
+        for (int i = 0; i < 2; i++) {
+            selector.select(null);
+            selector.onFailure(0);
+        }
+        selector.select(null);
+        selector.onSuccess(0, 100 * 1000, 100);
+        selector.select(null);
+        selector.onFailure(0);
+        assertEquals(0, selectAndCancel(null));
+    }
+
+    @Test
+    public void allEjectedUsesSoonestToRecover() {
+        for (int mirror = 0; mirror < 3; mirror++) {
+            Set<Integer> others = new HashSet<>(Arrays.asList(0, 1, 2));
+            others.remove(mirror);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(mirror, selector.select(others));
+                selector.onFailure(mirror);
+            }
+        }
+        // 全部被剔除时用最早恢复的那个
+        assertEquals(0, selectAndCancel(null));
+    }
+
+    /**
+     * 按给定的耗时各成功一次，耗时越短吞吐量越高
+     */
+    private void warmUp(long[] millis) {
+        for (int i = 0; i < millis.length; i++) {
+            Set<Integer> others = new HashSet<>(Arrays.asList(0, 1, 2));
+            others.remove(i);
+            assertEquals(i, selector.select(others));
+            selector.onSuccess(i, 100 * 1000, millis[i]);
+        }
+    }
+
+    private int selectAndCancel(Set<Integer> excluded) {
+        int mirror = selector.select(excluded);
+        selector.onCancel(mirror);
+        return mirror;
+    }
+}
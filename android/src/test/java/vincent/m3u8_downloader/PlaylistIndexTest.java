@@ -0,0 +1,230 @@
+package vincent.m3u8_downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import vincent.m3u8_downloader.bean.M3U8;
+import vincent.m3u8_downloader.bean.M3U8Key;
+import vincent.m3u8_downloader.bean.M3U8Map;
+import vincent.m3u8_downloader.bean.M3U8Ts;
+import vincent.m3u8_downloader.bean.M3U8Variant;
+import vincent.m3u8_downloader.bean.VariantPolicy;
+import vincent.m3u8_downloader.net.FetchCall;
+import vincent.m3u8_downloader.net.FetchListener;
+import vincent.m3u8_downloader.net.FetchRequest;
+import vincent.m3u8_downloader.net.Fetchers;
+import vincent.m3u8_downloader.net.SegmentFetcher;
+import vincent.m3u8_downloader.utils.MUtils;
+import vincent.m3u8_downloader.utils.TestPreferences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: {@link PlaylistIndex}保存、写回和读取的往返一致性
+ * 读取时会在后台预取key和初始化段，用一个总是失败的fetcher代替网络。
+ * ================================================
+ */
+public class PlaylistIndexTest {
+    private static final String URL = "http://127.0.0.1/video/index.m3u8";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        TestPreferences.install();
+        Fetchers.set(new OfflineFetcher());
+        dir = folder.newFolder("task");
+    }
+
+    @After
+    public void tearDown() {
+        Fetchers.set(null);
+    }
+
+    private static M3U8 newPlaylist() {
+        M3U8 m3U8 = new M3U8();
+        m3U8.setUrl("http://127.0.0.1/video/720p/index.m3u8");
+        m3U8.setBasePath("http://127.0.0.1/video/720p/");
+        m3U8.setTargetDuration(6);
+        m3U8.setEndList(true);
+        M3U8Variant variant = new M3U8Variant();
+        variant.setUrl(m3U8.getUrl());
+        variant.setBandwidth(2500000);
+        variant.setAverageBandwidth(2000000);
+        variant.setWidth(1280);
+        variant.setHeight(720);
+        variant.setCodecs("avc1.4d401f,mp4a.40.2");
+        variant.setFrameRate(29.97f);
+        m3U8.setVariant(variant);
+
+        M3U8Key key1 = new M3U8Key(M3U8Key.METHOD_AES_128, "http://127.0.0.1/key1", "0x00000000000000000000000000000001");
+        M3U8Key key2 = new M3U8Key(M3U8Key.METHOD_AES_128, "http://127.0.0.1/key2", null);
+        M3U8Map map = new M3U8Map("http://127.0.0.1/video/720p/init.mp4", 720, 0, key1);
+        for (int i = 0; i < 20; i++) {
+            M3U8Ts ts = new M3U8Ts("s" + i + ".m4s", 5.5f);
+            ts.setSequence(100 + i);
+            ts.setKey(i < 10 ? key1 : key2);
+            ts.setMap(map);
+            if (i >= 18) {
+                ts.setByteRange(1000, 1000L * (i - 18));
+            }
+            m3U8.addTs(ts);
+        }
+        return m3U8;
+    }
+
+    @Test
+    public void roundTripsPlaylist() throws IOException {
+        M3U8 saved = newPlaylist();
+        new PlaylistIndex(dir).save(URL, VariantPolicy.highest(), saved);
+
+        PlaylistIndex index = PlaylistIndex.load(dir, URL, VariantPolicy.highest());
+        assertNotNull(index);
+        assertTrue(index.isSaved());
+        M3U8 loaded = index.getM3U8();
+        assertEquals(saved.getUrl(), loaded.getUrl());
+        assertEquals(saved.getBasePath(), loaded.getBasePath());
+        assertEquals(6f, loaded.getTargetDuration(), 0);
+        assertTrue(loaded.isEndList());
+
+        M3U8Variant variant = loaded.getVariant();
+        assertEquals(saved.getVariant().getUrl(), variant.getUrl());
+        assertEquals(2500000, variant.getBandwidth());
+        assertEquals(2000000, variant.getAverageBandwidth());
+        assertEquals(1280, variant.getWidth());
+        assertEquals(720, variant.getHeight());
+        assertEquals("avc1.4d401f,mp4a.40.2", variant.getCodecs());
+        assertEquals(29.97f, variant.getFrameRate(), 0);
+
+        List<M3U8Ts> savedList = saved.getTsList();
+        List<M3U8Ts> loadedList = loaded.getTsList();
+        assertEquals(savedList.size(), loadedList.size());
+        for (int i = 0; i < savedList.size(); i++) {
+            M3U8Ts expected = savedList.get(i);
+            M3U8Ts actual = loadedList.get(i);
+            assertEquals(expected.getUrl(), actual.getUrl());
+            assertEquals(expected.getSeconds(), actual.getSeconds(), 0);
+            assertEquals(expected.getSequence(), actual.getSequence());
+            assertEquals(expected.hasByteRange(), actual.hasByteRange());
+            assertEquals(expected.getByteRangeLength(), actual.getByteRangeLength());
+            assertEquals(expected.getByteRangeOffset(), actual.getByteRangeOffset());
+            assertEquals(expected.getKey().getUrl(), actual.getKey().getUrl());
+            assertEquals(expected.getKey().getIv(), actual.getKey().getIv());
+            assertEquals(expected.getMap().getUrl(), actual.getMap().getUrl());
+        }
+        // key和初始化段在切片之间共用同一个对象
+        assertSame(loadedList.get(0).getKey(), loadedList.get(9).getKey());
+        assertSame(loadedList.get(0).getMap(), loadedList.get(19).getMap());
+        assertSame(loadedList.get(0).getKey(), loadedList.get(0).getMap().getKey());
+        assertEquals(2, loaded.getKeys().size());
+        M3U8Map map = loaded.getMaps().get(0);
+        assertEquals(720, map.getByteRangeLength());
+        assertEquals(0, map.getByteRangeOffset());
+    }
+
+    @Test
+    public void savesCompletionMarkedBeforeSave() throws IOException {
+        PlaylistIndex index = new PlaylistIndex(dir);
+        index.markComplete(3, 12345);
+        index.save(URL, null, newPlaylist());
+
+        PlaylistIndex loaded = PlaylistIndex.load(dir, URL, null);
+        assertNotNull(loaded);
+        assertTrue(loaded.isComplete(3));
+        assertEquals(12345, loaded.getSize(3));
+        assertEquals(12345, loaded.getM3U8().getTsList().get(3).getFileSize());
+        assertFalse(loaded.isComplete(4));
+        assertEquals(0, loaded.getM3U8().getTsList().get(4).getFileSize());
+    }
+
+    @Test
+    public void flushWritesCompletionBack() throws IOException {
+        PlaylistIndex index = new PlaylistIndex(dir);
+        index.save(URL, null, newPlaylist());
+        index.markComplete(0, 100);
+        index.markComplete(9, 900);
+        index.markComplete(19, 1900);
+        index.flush();
+        // 没有写回的切片下次按文件检查
+        index.markComplete(10, 1000);
+
+        PlaylistIndex loaded = PlaylistIndex.load(dir, URL, null);
+        assertNotNull(loaded);
+        for (int i = 0; i < 20; i++) {
+            boolean expected = i == 0 || i == 9 || i == 19;
+            assertEquals("segment " + i, expected, loaded.isComplete(i));
+        }
+        assertEquals(900, loaded.getSize(9));
+        assertEquals(1900, loaded.getSize(19));
+    }
+
+    @Test
+    public void dropsIndexOfAnotherUrlOrPolicy() throws IOException {
+        new PlaylistIndex(dir).save(URL, VariantPolicy.maxBandwidth(1000000), newPlaylist());
+        assertNull(PlaylistIndex.load(dir, URL, VariantPolicy.maxBandwidth(2000000)));
+        // 对不上的索引直接删除
+        assertNull(PlaylistIndex.load(dir, URL, VariantPolicy.maxBandwidth(1000000)));
+
+        new PlaylistIndex(dir).save(URL, null, newPlaylist());
+        assertNull(PlaylistIndex.load(dir, "http://127.0.0.1/other/index.m3u8", null));
+    }
+
+    @Test
+    public void dropsCorruptIndex() throws IOException {
+        new PlaylistIndex(dir).save(URL, null, newPlaylist());
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        byte[] bytes = MUtils.readFile(files[0].getPath());
+        byte[] truncated = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        MUtils.saveFile(truncated, files[0].getPath());
+
+        assertNull(PlaylistIndex.load(dir, URL, null));
+        assertFalse(files[0].exists());
+    }
+
+    @Test
+    public void noIndexReturnsNull() {
+        assertNull(PlaylistIndex.load(dir, URL, null));
+    }
+
+    /**
+     * 所有请求都失败，不访问网络
+     */
+    private static class OfflineFetcher implements SegmentFetcher {
+        @Override
+        public InputStream openStream(String url) throws IOException {
+            throw new IOException("offline");
+        }
+
+        @Override
+        public FetchCall fetch(FetchRequest request, FetchListener listener) {
+            listener.onError(new IOException("offline"));
+            return new FetchCall() {
+                @Override
+                public void cancel() {
+                }
+            };
+        }
+    }
+}
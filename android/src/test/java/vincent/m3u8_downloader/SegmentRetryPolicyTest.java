@@ -0,0 +1,110 @@
+package vincent.m3u8_downloader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import vincent.m3u8_downloader.net.HttpStatusException;
+import vincent.m3u8_downloader.utils.TestPreferences;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: {@link SegmentRetryPolicy}的重试判断和退避时间
+ * ================================================
+ */
+public class SegmentRetryPolicyTest {
+
+    private static SegmentRetryPolicy newPolicy(int retryCount) {
+        return new SegmentRetryPolicy(retryCount, new HashSet<>(Arrays.asList(429, 503)));
+    }
+
+    @Test
+    public void retriesNetworkErrorsUntilCountUsedUp() {
+        SegmentRetryPolicy policy = newPolicy(3);
+        IOException e = new IOException("connection reset");
+        assertTrue(policy.shouldRetry(1, e));
+        assertTrue(policy.shouldRetry(3, e));
+        assertFalse(policy.shouldRetry(4, e));
+    }
+
+    @Test
+    public void retriesOnlyConfiguredStatusCodes() {
+        SegmentRetryPolicy policy = newPolicy(3);
+        assertTrue(policy.shouldRetry(1, new HttpStatusException(503)));
+        assertTrue(policy.shouldRetry(1, new HttpStatusException(429)));
+        assertFalse(policy.shouldRetry(1, new HttpStatusException(404)));
+    }
+
+    @Test
+    public void timeoutIsRetriedButInterruptIsNot() {
+        SegmentRetryPolicy policy = newPolicy(3);
+        assertTrue(policy.shouldRetry(1, new SocketTimeoutException("read timed out")));
+        assertFalse(policy.shouldRetry(1, new InterruptedIOException("thread interrupted")));
+    }
+
+    @Test
+    public void doesNotRetryBadUrlOrNonIoErrors() {
+        SegmentRetryPolicy policy = newPolicy(3);
+        assertFalse(policy.shouldRetry(1, new MalformedURLException("no protocol")));
+        assertFalse(policy.shouldRetry(1, new IllegalStateException()));
+    }
+
+    @Test
+    public void zeroRetryCountNeverRetries() {
+        assertFalse(newPolicy(0).shouldRetry(1, new IOException()));
+    }
+
+    @Test
+    public void delayGrowsExponentiallyWithJitter() {
+        SegmentRetryPolicy policy = newPolicy(10);
+        IOException e = new IOException();
+        for (int i = 0; i < 100; i++) {
+            // 第n次的基础时间是500 * 2^(n-1)，取一半固定加一半随机
+            assertBetween(250, 500, policy.getDelay(1, e));
+            assertBetween(500, 1000, policy.getDelay(2, e));
+            assertBetween(1000, 2000, policy.getDelay(3, e));
+        }
+    }
+
+    @Test
+    public void delayIsCapped() {
+        SegmentRetryPolicy policy = newPolicy(100);
+        IOException e = new IOException();
+        assertBetween(15000, 30000, policy.getDelay(10, e));
+        assertBetween(15000, 30000, policy.getDelay(60, e));
+    }
+
+    @Test
+    public void delayHonoursRetryAfter() {
+        SegmentRetryPolicy policy = newPolicy(3);
+        assertBetween(10000, 10000, policy.getDelay(1, new HttpStatusException(503, 10000)));
+        // Retry-After也不超过最长等待时间
+        assertBetween(30000, 30000, policy.getDelay(1, new HttpStatusException(503, 120000)));
+    }
+
+    @Test
+    public void fromConfigSkipsInvalidCodes() {
+        TestPreferences.install();
+        new M3U8DownloaderConfig().setRetryCount(2).setRetryStatusCodes("500, abc,502");
+        SegmentRetryPolicy policy = SegmentRetryPolicy.fromConfig();
+        assertTrue(policy.shouldRetry(1, new HttpStatusException(500)));
+        assertTrue(policy.shouldRetry(2, new HttpStatusException(502)));
+        assertFalse(policy.shouldRetry(3, new HttpStatusException(502)));
+        assertFalse(policy.shouldRetry(1, new HttpStatusException(503)));
+    }
+
+    private static void assertBetween(long min, long max, long value) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+}
@@ -0,0 +1,75 @@
+package vincent.m3u8_downloader.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: {@link BandwidthLimiter}的突发容量、欠账等待和长时间的平均速率
+ * ================================================
+ */
+public class BandwidthLimiterTest {
+
+    @Test
+    public void zeroRateIsUnlimited() {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.reserve(1024 * 1024));
+        }
+    }
+
+    @Test
+    public void burstOfHalfSecondPassesWithoutWaiting() {
+        BandwidthLimiter limiter = new BandwidthLimiter(100 * 1000);
+        assertEquals(0, limiter.reserve(50 * 1000));
+    }
+
+    @Test
+    public void debtIsPaidInOneWait() {
+        BandwidthLimiter limiter = new BandwidthLimiter(100 * 1000);
+        limiter.reserve(50 * 1000);
+        // 欠10000字节，按100KB/s需要等100ms，期间补充的令牌可以让等待略短
+        long wait = limiter.reserve(10 * 1000);
+        assertTrue("wait " + wait, wait >= 80 && wait <= 100);
+    }
+
+    @Test
+    public void smallDebtDoesNotSleep() {
+        BandwidthLimiter limiter = new BandwidthLimiter(1000 * 1000);
+        limiter.reserve(500 * 1000);
+        // 欠5000字节只需要5ms，攒到10ms以上再等
+        assertEquals(0, limiter.reserve(5000));
+    }
+
+    @Test
+    public void setRateRefillsBucket() {
+        BandwidthLimiter limiter = new BandwidthLimiter(100 * 1000);
+        limiter.reserve(50 * 1000);
+        limiter.setRate(200 * 1000);
+        assertEquals(200 * 1000, limiter.getRate());
+        assertEquals(0, limiter.reserve(100 * 1000));
+    }
+
+    @Test
+    public void averageRateMatchesLimit() throws Exception {
+        long rate = 1000 * 1000;
+        BandwidthLimiter limiter = new BandwidthLimiter(rate);
+        long total = 2 * rate;
+        int chunk = 64 * 1024;
+        long start = System.nanoTime();
+        for (long sent = 0; sent < total; sent += chunk) {
+            long pause = limiter.reserve(chunk);
+            if (pause > 0) {
+                Thread.sleep(pause);
+            }
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        // 去掉半秒的突发容量，2MB按1MB/s约1.5秒
+        assertTrue("elapsed " + elapsed, elapsed >= 1300 && elapsed <= 2000);
+    }
+}
@@ -0,0 +1,81 @@
+package vincent.m3u8_downloader.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import vincent.m3u8_downloader.bean.M3U8;
+import vincent.m3u8_downloader.bean.M3U8Ts;
+import vincent.m3u8_downloader.net.Fetchers;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 最初版本的m3u8解析，只作为基准测试的对照
+ * 和原来的MUtils.parseIndex逐行一致：#EXT-X-KEY用split/replaceAll解析并同步获取key，
+ * 遇到.m3u8结尾的行直接解析这个子m3u8。
+ * 只有两处改动：从传入的reader读取，key和子m3u8通过{@link Fetchers}获取，
+ * 原来保存在M3U8中的key和iv现在没有对应字段，解析后丢弃。
+ * ================================================
+ */
+class LegacyPlaylistParser {
+
+    static M3U8 parse(String url, Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+
+        String basePath = url.substring(0, url.lastIndexOf("/") + 1);
+
+        M3U8 ret = new M3U8();
+        ret.setBasePath(basePath);
+
+        String key = null;
+        String iv = null;
+        String line;
+        float seconds = 0;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("#")) {
+                if (line.startsWith("#EXTINF:")) {
+                    line = line.substring(8);
+                    if (line.endsWith(",")) {
+                        line = line.substring(0, line.length() - 1);
+                    }
+                    seconds = Float.parseFloat(line);
+                } else if (line.startsWith("#EXT-X-KEY:")) {
+                    line = line.split("#EXT-X-KEY:")[1];
+                    String[] arr = line.split(",");
+                    for (int i = 0; i < arr.length; i++) {
+                        if (arr[i].contains("=")) {
+                            String k = arr[i].split("=")[0];
+                            String v = arr[i].split("=")[1];
+                            if (k.equals("URI")) {
+                                // 去获取key
+                                v = v.replaceAll("\"", "");
+                                v = v.replaceAll("'", "");
+                                String keyUrl = v.startsWith("http") ? v : (basePath + v);
+                                BufferedReader keyReader = new BufferedReader(new InputStreamReader(Fetchers.get().openStream(keyUrl), "ISO-8859-1"));
+                                key = keyReader.readLine();
+                                keyReader.close();
+                            } else if (k.equals("IV")) {
+                                iv = v;
+                            }
+                        }
+                    }
+                }
+                continue;
+            }
+            if (line.endsWith("m3u8")) {
+                reader.close();
+                String child = basePath + line;
+                return parse(child, new InputStreamReader(Fetchers.get().openStream(child)));
+            }
+            ret.addTs(new M3U8Ts(line, seconds));
+            seconds = 0;
+        }
+        reader.close();
+
+        return ret;
+    }
+}
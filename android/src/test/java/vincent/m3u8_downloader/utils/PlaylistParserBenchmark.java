@@ -0,0 +1,143 @@
+package vincent.m3u8_downloader.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import vincent.m3u8_downloader.bean.M3U8;
+import vincent.m3u8_downloader.net.FetchCall;
+import vincent.m3u8_downloader.net.FetchListener;
+import vincent.m3u8_downloader.net.FetchRequest;
+import vincent.m3u8_downloader.net.Fetchers;
+import vincent.m3u8_downloader.net.SegmentFetcher;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: m3u8解析的JMH基准测试，对比{@link PlaylistTokenizer}和最初的split/replaceAll解析
+ * media是切片列表，带#EXT-X-MAP和定期更换的#EXT-X-KEY；master是主m3u8，全部是#EXT-X-STREAM-INF。
+ * 属性值都是带逗号的引号字符串。key、初始化段和子m3u8由内存中的fetcher返回，不访问网络。
+ * 最初的解析遇到第一个子m3u8就跳过去，不读后面的码率，master下两者的工作量不同。
+ * 运行：./gradlew jmh，加上 -PjmhArgs="-prof gc" 可以看到每次解析分配的字节数
+ * ================================================
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlaylistParserBenchmark {
+    private static final String URL = "http://127.0.0.1/video/index.m3u8";
+    private static final String VARIANT_PLAYLIST = "#EXTM3U\n#EXT-X-TARGETDURATION:5\n"
+            + "#EXTINF:4.000,\nsegment-0.ts\n#EXTINF:4.000,\nsegment-1.ts\n#EXT-X-ENDLIST\n";
+
+    /**
+     * m3u8的行数
+     */
+    @Param({"1000", "10000", "100000"})
+    public int lines;
+
+    @Param({"media", "master"})
+    public String type;
+
+    private String playlist;
+
+    @Setup
+    public void setup() {
+        TestPreferences.install();
+        Fetchers.set(new MemoryFetcher());
+        playlist = "master".equals(type) ? buildMaster() : buildMedia();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fetchers.set(null);
+    }
+
+    private String buildMedia() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:7\n");
+        sb.append("#EXT-X-TARGETDURATION:5\n");
+        sb.append("#EXT-X-MEDIA-SEQUENCE:0\n");
+        sb.append("#EXT-X-MAP:URI=\"init.mp4?v=1,2\"\n");
+        int count = 5;
+        for (int i = 0; count < lines - 1; i++) {
+            if (i % 20 == 0) {
+                // 每20个切片换一次key，key地址在4个之间循环
+                sb.append(String.format(Locale.US, "#EXT-X-KEY:METHOD=AES-128,URI=\"key?id=%d,exp=1700000000\",IV=0x%032x,KEYFORMAT=\"identity\"\n", i / 20 % 4, i));
+                count++;
+            }
+            sb.append(String.format(Locale.US, "#EXTINF:%.3f,\n", 4 + (i % 10) / 1000f));
+            sb.append(String.format(Locale.US, "segment-%06d.m4s?token=5f2b7c91e4\n", i));
+            count += 2;
+        }
+        sb.append("#EXT-X-ENDLIST\n");
+        return sb.toString();
+    }
+
+    private String buildMaster() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("#EXTM3U\n");
+        for (int i = 0; i < (lines - 1) / 2; i++) {
+            sb.append(String.format(Locale.US, "#EXT-X-STREAM-INF:BANDWIDTH=%d,AVERAGE-BANDWIDTH=%d,RESOLUTION=1280x720,"
+                    + "CODECS=\"avc1.4d401f,mp4a.40.2\",AUDIO=\"aac,stereo\"\n", 800000 + i, 700000 + i));
+            sb.append(String.format(Locale.US, "v%06d/index.m3u8\n", i));
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public M3U8 tokenizer() throws IOException {
+        return MUtils.parseIndex(URL, new StringReader(playlist), null, null);
+    }
+
+    @Benchmark
+    public M3U8 legacy() throws IOException {
+        return LegacyPlaylistParser.parse(URL, new StringReader(playlist));
+    }
+
+    /**
+     * 子m3u8返回两个切片的列表，其他地址返回16字节的key/初始化段
+     */
+    private static class MemoryFetcher implements SegmentFetcher {
+        private static final byte[] KEY = "0123456789abcdef".getBytes();
+
+        @Override
+        public InputStream openStream(String url) throws IOException {
+            if (url.endsWith(".m3u8")) {
+                return new ByteArrayInputStream(VARIANT_PLAYLIST.getBytes());
+            }
+            return new ByteArrayInputStream(KEY);
+        }
+
+        @Override
+        public FetchCall fetch(FetchRequest request, FetchListener listener) {
+            listener.onError(new IOException("not supported"));
+            return new FetchCall() {
+                @Override
+                public void cancel() {
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package vincent.m3u8_downloader.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import vincent.m3u8_downloader.bean.M3U8;
+import vincent.m3u8_downloader.bean.M3U8Ts;
+import vincent.m3u8_downloader.bean.VariantPolicy;
+import vincent.m3u8_downloader.net.FetchCall;
+import vincent.m3u8_downloader.net.FetchListener;
+import vincent.m3u8_downloader.net.FetchRequest;
+import vincent.m3u8_downloader.net.Fetchers;
+import vincent.m3u8_downloader.net.SegmentFetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: {@link PlaylistTokenizer}的逐行读取、数字和属性列表解析，以及用它解析m3u8的结果
+ * ================================================
+ */
+public class PlaylistTokenizerTest {
+    private static final String URL = "http://127.0.0.1/video/index.m3u8";
+
+    @Before
+    public void setUp() {
+        TestPreferences.install();
+        Fetchers.set(new MemoryFetcher());
+    }
+
+    @After
+    public void tearDown() {
+        Fetchers.set(null);
+    }
+
+    private static Map<String, String> attributes(String list) {
+        Map<String, String> out = new HashMap<>();
+        char[] chars = list.toCharArray();
+        PlaylistTokenizer.parseAttributes(chars, 0, chars.length, out);
+        return out;
+    }
+
+    private static PlaylistTokenizer tokenizer(String text) throws IOException {
+        PlaylistTokenizer tokenizer = new PlaylistTokenizer(new StringReader(text));
+        assertTrue(tokenizer.nextLine());
+        return tokenizer;
+    }
+
+    @Test
+    public void skipsBlankLinesAndTrims() throws IOException {
+        PlaylistTokenizer tokenizer = new PlaylistTokenizer(new StringReader("\n  #EXTM3U \r\n\r\n\ts1.ts\r\n   \n"));
+        assertTrue(tokenizer.nextLine());
+        assertEquals("#EXTM3U", tokenizer.stringFrom(0));
+        assertTrue(tokenizer.isTag());
+        assertTrue(tokenizer.nextLine());
+        assertEquals("s1.ts", tokenizer.stringFrom(0));
+        assertFalse(tokenizer.isTag());
+        assertFalse(tokenizer.nextLine());
+    }
+
+    @Test
+    public void readsLinesLongerThanBuffer() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        String longLine = builder.toString();
+        PlaylistTokenizer tokenizer = new PlaylistTokenizer(new StringReader(longLine + "\nlast"));
+        assertTrue(tokenizer.nextLine());
+        assertEquals(longLine, tokenizer.stringFrom(0));
+        assertTrue(tokenizer.nextLine());
+        assertEquals("last", tokenizer.stringFrom(0));
+    }
+
+    @Test
+    public void matchesPrefixAndSuffix() throws IOException {
+        PlaylistTokenizer tokenizer = tokenizer("#EXTINF:10,");
+        assertTrue(tokenizer.startsWith("#EXTINF:"));
+        assertFalse(tokenizer.startsWith("#EXT-X-"));
+        assertFalse(tokenizer.startsWith("#EXTINF:10,0"));
+        assertTrue(tokenizer.endsWith(","));
+        assertEquals(7, tokenizer.indexOf(':', 0));
+        assertEquals(-1, tokenizer.indexOf('@', 0));
+    }
+
+    @Test
+    public void parsesNumbers() throws IOException {
+        assertEquals(1024, tokenizer("#EXT-X-BYTERANGE:1024@2048").longFrom(17, -1));
+        assertEquals(-1, tokenizer("#EXT-X-BYTERANGE:abc").longFrom(17, -1));
+        // 超过long范围的数字按没有处理
+        assertEquals(-1, tokenizer("#EXT-X-MEDIA-SEQUENCE:12345678901234567890").longFrom(22, -1));
+        assertEquals(9.009f, tokenizer("#EXTINF:9.009,title").floatFrom(8, 0), 0);
+        assertEquals(10f, tokenizer("#EXTINF: 10 ,").floatFrom(8, 0), 0);
+        assertEquals(1.5e3f, tokenizer("#EXTINF:1.5e3,").floatFrom(8, 0), 0);
+        assertEquals(-1f, tokenizer("#EXTINF:,").floatFrom(8, -1), 0);
+        assertEquals(-1f, tokenizer("#EXTINF:abc,").floatFrom(8, -1), 0);
+    }
+
+    @Test
+    public void quotedValuesKeepCommasAndEquals() {
+        Map<String, String> map = attributes("BANDWIDTH=1280000,CODECS=\"avc1.4d401f,mp4a.40.2\",URI=\"key?a=1&b=2\",RESOLUTION=1280x720");
+        assertEquals(4, map.size());
+        assertEquals("1280000", map.get("BANDWIDTH"));
+        assertEquals("avc1.4d401f,mp4a.40.2", map.get("CODECS"));
+        assertEquals("key?a=1&b=2", map.get("URI"));
+        assertEquals("1280x720", map.get("RESOLUTION"));
+    }
+
+    @Test
+    public void toleratesSpacesAndMalformedAttributes() {
+        Map<String, String> map = attributes(" METHOD = AES-128 , FLAG, =orphan,URI=\"k\"tail,IV=0x01,EMPTY=,");
+        assertEquals("AES-128", map.get("METHOD"));
+        // 引号后面到逗号之间的内容丢弃
+        assertEquals("k", map.get("URI"));
+        assertEquals("0x01", map.get("IV"));
+        assertEquals("", map.get("EMPTY"));
+        assertFalse(map.containsKey("FLAG"));
+        assertFalse(map.containsKey(""));
+    }
+
+    @Test
+    public void unterminatedQuoteTakesRestOfLine() {
+        Map<String, String> map = attributes("URI=\"a,b=c");
+        assertEquals(1, map.size());
+        assertEquals("a,b=c", map.get("URI"));
+    }
+
+    @Test
+    public void attributesFromOffset() throws IOException {
+        PlaylistTokenizer tokenizer = tokenizer("#EXT-X-MAP:URI=\"init.mp4\",BYTERANGE=\"720@0\"");
+        Map<String, String> map = new HashMap<>();
+        tokenizer.attributesFrom(11, map);
+        assertEquals("init.mp4", map.get("URI"));
+        assertEquals("720@0", map.get("BYTERANGE"));
+    }
+
+    @Test
+    public void parsesMediaPlaylist() throws IOException {
+        String playlist = "#EXTM3U\n"
+                + "#EXT-X-TARGETDURATION:6\n"
+                + "#EXT-X-MEDIA-SEQUENCE:100\n"
+                + "#EXT-X-KEY:METHOD=AES-128,URI=\"keys/k1?a=1,b=2\",IV=0x00000000000000000000000000000001\n"
+                + "#EXT-X-MAP:URI=\"init.mp4\",BYTERANGE=\"720@0\"\n"
+                + "#EXTINF:5.5,\n"
+                + "#EXT-X-BYTERANGE:1000@720\n"
+                + "media.mp4\n"
+                + "#EXTINF:5.5,\n"
+                + "#EXT-X-BYTERANGE:2000\n"
+                + "media.mp4\n"
+                + "#EXT-X-KEY:METHOD=NONE\n"
+                + "#EXTINF:4,\n"
+                + "#EXT-X-BYTERANGE:500\n"
+                + "other.mp4\n"
+                + "#EXT-X-ENDLIST\n";
+        M3U8 m3U8 = MUtils.parseIndex(URL, new StringReader(playlist), null, null);
+        assertEquals("http://127.0.0.1/video/", m3U8.getBasePath());
+        assertEquals(6f, m3U8.getTargetDuration(), 0);
+        assertTrue(m3U8.isEndList());
+
+        List<M3U8Ts> list = m3U8.getTsList();
+        assertEquals(3, list.size());
+        M3U8Ts first = list.get(0);
+        assertEquals(100, first.getSequence());
+        assertEquals(5.5f, first.getSeconds(), 0);
+        assertEquals(1000, first.getByteRangeLength());
+        assertEquals(720, first.getByteRangeOffset());
+        assertEquals("http://127.0.0.1/video/keys/k1?a=1,b=2", first.getKey().getUrl());
+        assertEquals("0x00000000000000000000000000000001", first.getKey().getIv());
+        assertEquals("http://127.0.0.1/video/init.mp4", first.getMap().getUrl());
+        assertEquals(720, first.getMap().getByteRangeLength());
+        assertSame(first.getKey(), first.getMap().getKey());
+
+        // 没有起始位置时接着同一个文件的上一段
+        M3U8Ts second = list.get(1);
+        assertEquals(101, second.getSequence());
+        assertEquals(2000, second.getByteRangeLength());
+        assertEquals(1720, second.getByteRangeOffset());
+        assertSame(first.getKey(), second.getKey());
+
+        // 换了文件从0开始，METHOD=NONE之后不再加密
+        M3U8Ts third = list.get(2);
+        assertEquals(500, third.getByteRangeLength());
+        assertEquals(0, third.getByteRangeOffset());
+        assertNull(third.getKey());
+        assertSame(first.getMap(), third.getMap());
+    }
+
+    @Test
+    public void selectsVariantOfMasterPlaylist() throws IOException {
+        String playlist = "#EXTM3U\n"
+                + "#EXT-X-STREAM-INF:BANDWIDTH=800000,RESOLUTION=640x360,CODECS=\"avc1.4d401e,mp4a.40.2\"\n"
+                + "360p/index.m3u8\n"
+                + "#EXT-X-STREAM-INF:BANDWIDTH=2500000,RESOLUTION=1280x720,FRAME-RATE=29.970,CODECS=\"avc1.4d401f,mp4a.40.2\"\n"
+                + "720p/index.m3u8\n";
+        M3U8 m3U8 = MUtils.parseIndex(URL, new StringReader(playlist), VariantPolicy.highest(), null);
+        assertEquals("http://127.0.0.1/video/720p/index.m3u8", m3U8.getUrl());
+        assertEquals(2, m3U8.getVariants().size());
+        assertEquals(2500000, m3U8.getVariant().getBandwidth());
+        assertEquals(720, m3U8.getVariant().getHeight());
+        assertEquals("avc1.4d401f,mp4a.40.2", m3U8.getVariant().getCodecs());
+        assertEquals(29.97f, m3U8.getVariant().getFrameRate(), 0);
+        assertEquals(2, m3U8.getTsList().size());
+    }
+
+    /**
+     * 子m3u8从内存返回，其他请求都失败
+     */
+    private static class MemoryFetcher implements SegmentFetcher {
+        private static final String VARIANT_PLAYLIST = "#EXTM3U\n"
+                + "#EXT-X-TARGETDURATION:6\n"
+                + "#EXTINF:6,\ns0.ts\n"
+                + "#EXTINF:6,\ns1.ts\n"
+                + "#EXT-X-ENDLIST\n";
+
+        @Override
+        public InputStream openStream(String url) throws IOException {
+            if (url.endsWith(".m3u8")) {
+                return new ByteArrayInputStream(VARIANT_PLAYLIST.getBytes());
+            }
+            throw new IOException("offline");
+        }
+
+        @Override
+        public FetchCall fetch(FetchRequest request, FetchListener listener) {
+            listener.onError(new IOException("offline"));
+            return new FetchCall() {
+                @Override
+                public void cancel() {
+                }
+            };
+        }
+    }
+}
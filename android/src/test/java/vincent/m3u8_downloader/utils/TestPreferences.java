@@ -0,0 +1,172 @@
+package vincent.m3u8_downloader.utils;
+
+import android.content.SharedPreferences;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ================================================
+ * 作    者：vincent
+ * 版    本：
+ * 创建日期：2026/10/18
+ * 描    述: 本地JVM测试用的内存SharedPreferences
+ * 没有Context时{@link SPHelper}无法初始化，用{@link #install()}替换进去，配置读写都在内存中。
+ * ================================================
+ */
+public class TestPreferences implements SharedPreferences {
+    private final Map<String, Object> values = new HashMap<>();
+
+    /**
+     * 替换{@link SPHelper}使用的SharedPreferences，之前的配置全部清空
+     */
+    public static TestPreferences install() {
+        TestPreferences preferences = new TestPreferences();
+        try {
+            Field field = SPHelper.class.getDeclaredField("PREFERENCES");
+            field.setAccessible(true);
+            field.set(null, preferences);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return preferences;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        synchronized (values) {
+            return new HashMap<>(values);
+        }
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        Object value = get(key);
+        return value == null ? defValue : (String) value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        Object value = get(key);
+        return value == null ? defValues : (Set<String>) value;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Object value = get(key);
+        return value == null ? defValue : (Integer) value;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Object value = get(key);
+        return value == null ? defValue : (Long) value;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Object value = get(key);
+        return value == null ? defValue : (Float) value;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = get(key);
+        return value == null ? defValue : (Boolean) value;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Editor edit() {
+        return new MemoryEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    }
+
+    private Object get(String key) {
+        synchronized (values) {
+            return values.get(key);
+        }
+    }
+
+    /**
+     * 修改直接写入，apply和commit不需要再做什么
+     */
+    private class MemoryEditor implements Editor {
+
+        private Editor put(String key, Object value) {
+            synchronized (values) {
+                values.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, values);
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            synchronized (values) {
+                values.remove(key);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            synchronized (values) {
+                values.clear();
+            }
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return true;
+        }
+
+        @Override
+        public void apply() {
+        }
+    }
+}
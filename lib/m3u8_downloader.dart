@@ -21,10 +21,26 @@ class M3u8Downloader {
   ///
   /// - [saveDir] 文件保存位置
   /// - [showNotification] 是否显示通知
-  /// - [isConvert] 是否转成mp4
+  /// - [isConvert] 是否转成mp4，fMP4只支持一个初始化段(EXT-X-MAP)，有多个不同初始化段时合并失败并保留切片
   /// - [connTimeout] 网络连接超时时间
   /// - [readTimeout] 文件读取超时时间
-  /// - [threadCount] 同时下载的线程数
+  /// - [threadCount] 单个host初始同时下载的线程数，下载中会自动调整
+  /// - [maxThreadCount] 单个host自动调整时的最大线程数
+  /// - [maxTaskCount] 同时下载的任务数
+  /// - [globalThreadCount] 所有任务共享的最大下载线程数
+  /// - [maxConnectionsPerHost] 同一个host最多同时占用的连接数
+  /// - [bufferSize] 读写缓冲区大小，单位字节，最小64KB
+  /// - [sequential] 顺序下载，已下载的部分可以边下边播
+  /// - [lookAheadSeconds] 顺序下载时最多下载到可播放位置之后多少秒
+  /// - [useNio] 实验性，默认关闭：http切片使用NIO传输，一个线程驱动所有传输；https仍每个传输占用一个线程，同时传输数仍受并发数限制
+  /// - [chunkThreshold] 切片大于这个字节数且服务器支持Range时分段并行下载，0为不分段
+  /// - [maxHedges] 慢切片最多同时发出几个对冲请求，先完成的生效，0为不对冲
+  /// - [segmentCache] 不同任务共享相同url的切片，下载过的不再重复下载
+  /// - [preflight] 下载前并行请求所有切片的大小，空间不足时直接失败，进度按字节计算并给出剩余时间(eta)
+  /// - [prefetchCount] 下载时提前获取队列中接下来几个任务的m3u8和key，0为不预取
+  /// - [rangeMergeSize] 同一个文件中相邻的字节范围切片(#EXT-X-BYTERANGE)合并成一个请求，合并后最多这么多字节，0为不合并
+  /// - [retryCount] 单个切片失败后的最大重试次数
+  /// - [retryStatusCodes] 需要重试的响应码
   /// - [debugMode] 调试模式
   /// - [onSelect] 点击通知的回调
   static Future<bool> initialize({
@@ -34,6 +50,22 @@ class M3u8Downloader {
     int connTimeout,
     int readTimeout,
     int threadCount,
+    int maxThreadCount,
+    int maxTaskCount,
+    int globalThreadCount,
+    int maxConnectionsPerHost,
+    int bufferSize,
+    bool sequential,
+    int lookAheadSeconds,
+    bool useNio,
+    int chunkThreshold,
+    int maxHedges,
+    bool segmentCache,
+    bool preflight,
+    int prefetchCount,
+    int rangeMergeSize,
+    int retryCount,
+    List<int> retryStatusCodes,
     bool debugMode,
     SelectNotificationCallback onSelect
   }) async {
@@ -61,6 +93,22 @@ class M3u8Downloader {
       "connTimeout": connTimeout,
       "readTimeout": readTimeout,
       "threadCount": threadCount,
+      "maxThreadCount": maxThreadCount,
+      "maxTaskCount": maxTaskCount,
+      "globalThreadCount": globalThreadCount,
+      "maxConnectionsPerHost": maxConnectionsPerHost,
+      "bufferSize": bufferSize,
+      "sequential": sequential,
+      "lookAheadSeconds": lookAheadSeconds,
+      "useNio": useNio,
+      "chunkThreshold": chunkThreshold,
+      "maxHedges": maxHedges,
+      "segmentCache": segmentCache,
+      "preflight": preflight,
+      "prefetchCount": prefetchCount,
+      "rangeMergeSize": rangeMergeSize,
+      "retryCount": retryCount,
+      "retryStatusCodes": retryStatusCodes,
       "debugMode": debugMode
     });
     return r ?? false;
@@ -73,11 +121,21 @@ class M3u8Downloader {
   /// - [progressCallback] 下载进度回调
   /// - [successCallback] 下载成功回调
   /// - [errorCallback] 下载失败回调
-  static void download({String url, String name, Function progressCallback, Function successCallback, Function errorCallback}) async {
+  /// - [mirrors] 其他镜像上的同一个m3u8地址（或所在目录），每个切片从当前最快的可用镜像下载
+  /// - [resolution] url是主m3u8时，选分辨率高度最接近这个值的码率，如720
+  /// - [maxBandwidth] url是主m3u8时，选不超过这个码率(bit/s)的最高码率
+  /// - [lowest] url是主m3u8时，选最低码率。三者都不传时选第一个码率
+  /// - [recordSeconds] 录制直播，m3u8没有结束标记时持续获取新切片，直到直播结束或录制了这么多秒，0为不限制，不传时只下载当前列表；最多录制10000个切片
+  static void download({String url, String name, Function progressCallback, Function successCallback, Function errorCallback, List<String> mirrors, int resolution, int maxBandwidth, bool lowest, int recordSeconds}) async {
     assert(url != null && url != "");
     Map<String, dynamic> params = {
       "url": url,
-      "name": name
+      "name": name,
+      "mirrors": mirrors,
+      "resolution": resolution,
+      "maxBandwidth": maxBandwidth,
+      "lowest": lowest,
+      "recordSeconds": recordSeconds
     };
     if (progressCallback != null) {
       final CallbackHandle handle = _getCallbackHandle(progressCallback);
@@ -120,6 +178,45 @@ class M3u8Downloader {
     await _channel.invokeMethod("cancel", { "url": url, "isDelete": isDelete });
   }
 
+  /// 限制下载速度，运行中生效
+  ///
+  /// - [bytesPerSecond] 每秒字节数，小于等于0不限速
+  /// - [url] 指定任务的限速，不传时为所有任务合计的限速
+  static Future<void> setSpeedLimit(int bytesPerSecond, { String url }) async {
+    await _channel.invokeMethod("setSpeedLimit", { "bytesPerSecond": bytesPerSecond, "url": url });
+  }
+
+  /// 启动本地播放服务，返回监听的端口
+  ///
+  /// - [port] 端口，不传时随机分配
+  static Future<int> startServer({ int port = 0 }) async {
+    return await _channel.invokeMethod("startServer", { "port": port });
+  }
+
+  /// 停止本地播放服务
+  static Future<void> stopServer() async {
+    await _channel.invokeMethod("stopServer");
+  }
+
+  /// 获取本地播放地址，下载中也可以播放，还没下载的切片会优先下载
+  ///
+  /// - [url] 下载链接地址
+  static Future<String> getPlaybackUrl(String url) async {
+    return await _channel.invokeMethod("getPlaybackUrl", { "url": url });
+  }
+
+  /// 下载统计
+  ///
+  /// bytes - 累计下载字节数
+  /// segmentsCompleted / segmentsFailed / retries - 完成、失败、重试的切片数
+  /// hedges / hedgesWon - 慢切片发出的对冲请求数，以及其中比原请求先完成的次数
+  /// connectTime / firstByteTime / transferTime - 切片耗时分布(ms)：count、mean、p50、p90、p99、max
+  /// buffers / io - 缓冲区池、读写次数
+  /// tasks - 正在下载的任务：url、bytes、curTs、totalTs、retryCount、playableDuration、totalBytes
+  static Future<dynamic> getMetrics() async {
+    return await _channel.invokeMethod("getMetrics");
+  }
+
   /// 下载状态
   static Future<bool> isRunning() async {
     bool isRunning = await _channel.invokeMethod("isRunning");